@@ -0,0 +1,148 @@
+package chatApplication;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+// The static state Server.main sets up, minus sockets and GUI, in a temporary directory. Handlers are
+// connected to CountingTransports, so a benchmark measures the server's own work and nothing of the
+// network.
+final class BenchmarkServer {
+    final ServerConfig config;
+    final Path directory;
+    private final Cluster cluster;
+
+    private BenchmarkServer(ServerConfig config, Path directory, Cluster cluster) {
+        this.config = config;
+        this.directory = directory;
+        this.cluster = cluster;
+    }
+
+    // Settings as "key", "value" pairs on top of the defaults
+    static BenchmarkServer start(String... settings) throws IOException {
+        Path directory = Files.createTempDirectory("chat-benchmark");
+        Properties properties = new Properties();
+        properties.setProperty("chat.files.directory", directory.resolve("files").toString());
+        properties.setProperty("chat.journal.directory", directory.resolve("journal").toString());
+        properties.setProperty("chat.history.onLogin", "0");
+        properties.setProperty("chat.cluster.node", "benchmark-" + System.nanoTime());
+        // One benchmark sender stands in for many users, the per-user limits would only count it
+        for (String limit : new String[] {"messages", "private", "commands", "fileBytes"}) {
+            properties.setProperty("chat.limits." + limit + ".rate", "0");
+        }
+        for (int i = 0; i + 1 < settings.length; i += 2) {
+            properties.setProperty(settings[i], settings[i + 1]);
+        }
+        ServerConfig config = new ServerConfig(properties);
+
+        Cluster cluster = new Cluster(config.createClusterTransport(), new Cluster.Listener() {
+            public void onBroadcast(byte journalKind, String line) {
+            }
+
+            public void onRoomMessage(String room, String line) {
+            }
+
+            public void onPrivateMessage(String sender, String recipient, String text) {
+            }
+
+            public void onPresenceChanged(String username) {
+            }
+
+            public void onUsernameTaken(String username) {
+            }
+        });
+        cluster.start();
+        Server.config = config;
+        Server.cluster = cluster;
+        Server.sessions = new SessionRegistry(config.disconnectedHistoryLimit);
+        Server.presence = new Presence(Server.sessions::isUsernameInUse, config.presenceBatchMillis);
+        Server.rooms = config.createRooms();
+        Server.files = config.createFileStore();
+        Server.journal = config.openJournal();
+        Server.journal.start();
+        return new BenchmarkServer(config, directory, cluster);
+    }
+
+    // A handler that went through the usual text login
+    Server.ConnectionHandler login(String username, Transport transport) throws IOException {
+        Server.ConnectionHandler handler = new Server.ConnectionHandler(transport);
+        handler.onRead(ByteBuffer.wrap((username + "\n").getBytes(StandardCharsets.UTF_8)));
+        return handler;
+    }
+
+    // Same, in the binary protocol
+    Server.ConnectionHandler loginBinary(String username, Transport transport) throws IOException {
+        Server.ConnectionHandler handler = new Server.ConnectionHandler(transport);
+        handler.onRead(ByteBuffer.wrap((BinaryProtocol.HANDSHAKE + "\n").getBytes(StandardCharsets.UTF_8)));
+        byte[] login = BinaryProtocol.utf8("/login " + username);
+        ByteBuffer frame = BinaryProtocol.allocateFrame(BinaryProtocol.CONTROL, login.length).put(login).flip();
+        try {
+            handler.onRead(frame);
+        } finally {
+            BufferPool.SHARED.release(frame);
+        }
+        return handler;
+    }
+
+    void stop() throws IOException {
+        cluster.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    // Counts what the server writes and throws it away
+    static class CountingTransport implements Transport {
+        private static final SocketAddress ADDRESS = InetSocketAddress.createUnresolved("benchmark", 0);
+        private final AtomicLong frames;
+
+        CountingTransport(AtomicLong frames) {
+            this.frames = frames;
+        }
+
+        @Override
+        public void write(Frame frame) {
+            frames.incrementAndGet();
+        }
+
+        @Override
+        public void suspendReads(long nanos) {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void abort() {
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public SocketAddress remoteAddress() {
+            return ADDRESS;
+        }
+
+        @Override
+        public int queuedMessages() {
+            return 0;
+        }
+
+        @Override
+        public long writeBlockedNanos() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package chatApplication;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Starts clusters of 1..maxNodes server processes on this machine, spreads text clients over the nodes
+// and has every client send private messages to random users anywhere in the cluster. Prints the number
+// of messages delivered per second for each cluster size.
+//
+//   java -cp benchmarks/target/benchmarks.jar chatApplication.ClusterBenchmark [maxNodes] [clientsPerNode] [messagesPerClient]
+public class ClusterBenchmark {
+    private static final int BASE_PORT = 23000;
+    private static final long TIMEOUT_MILLIS = 120_000;
+
+    public static void main(String[] args) throws Exception {
+        int maxNodes = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int clientsPerNode = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int messagesPerClient = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        for (int nodes = 1; nodes <= maxNodes; nodes++) {
+            double rate = run(nodes, clientsPerNode, messagesPerClient);
+            System.out.printf("%d node(s), %d clients: %,.0f messages/s%n", nodes, nodes * clientsPerNode, rate);
+        }
+    }
+
+    private static double run(int nodeCount, int clientsPerNode, int messagesPerClient) throws Exception {
+        Path directory = Files.createTempDirectory("chat-cluster");
+        List<Process> nodes = new ArrayList<>();
+        List<BenchmarkClient> clients = new ArrayList<>();
+        try {
+            StringBuilder peers = new StringBuilder();
+            for (int i = 0; i < nodeCount; i++) {
+                peers.append("localhost:").append(BASE_PORT + 1000 + i).append(',');
+            }
+            for (int i = 0; i < nodeCount; i++) {
+                nodes.add(startNode(i, peers.toString(), directory.resolve("node-" + i)));
+            }
+            for (int i = 0; i < nodeCount; i++) {
+                for (int j = 0; j < clientsPerNode; j++) {
+                    clients.add(new BenchmarkClient(BASE_PORT + i, "u" + i + "_" + j));
+                }
+            }
+            int total = clients.size();
+            // Every node has to know about every user before private messages can be routed
+            for (int i = 0; i < nodeCount; i++) {
+                clients.get(i * clientsPerNode).awaitUsers(total);
+            }
+
+            AtomicLong received = new AtomicLong();
+            clients.forEach(client -> client.countPrivateMessages(received));
+            long expected = (long) total * messagesPerClient;
+            long start = System.nanoTime();
+            List<Thread> senders = new ArrayList<>();
+            for (BenchmarkClient client : clients) {
+                senders.add(Thread.ofVirtual().start(() -> {
+                    Random random = new Random();
+                    for (int m = 0; m < messagesPerClient; m++) {
+                        client.send("/msgto " + clients.get(random.nextInt(total)).username + " message " + m);
+                    }
+                    client.flush();
+                }));
+            }
+            for (Thread sender : senders) {
+                sender.join();
+            }
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (received.get() < expected && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            if (received.get() < expected) {
+                System.out.println("  only " + received.get() + " of " + expected + " messages arrived");
+            }
+            return received.get() / seconds;
+        } finally {
+            for (BenchmarkClient client : clients) {
+                client.close();
+            }
+            for (Process node : nodes) {
+                node.destroy();
+                node.waitFor(5, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    private static Process startNode(int index, String peers, Path directory) throws IOException, InterruptedException {
+        int port = BASE_PORT + index;
+        Process process = new ProcessBuilder(
+                Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-Djava.awt.headless=true",
+                "-Dchat.port=" + port,
+                "-Dchat.cluster.transport=tcp",
+                "-Dchat.cluster.node=node-" + index,
+                "-Dchat.cluster.port=" + (BASE_PORT + 1000 + index),
+                "-Dchat.cluster.peers=" + peers,
+                "-Dchat.files.directory=" + directory.resolve("files"),
+                "-Dchat.journal.directory=" + directory.resolve("journal"),
+                "-Dchat.log.directory=" + directory.resolve("logs"),
+                "-Dchat.history.onLogin=0",
+                "-Dchat.metrics.port=0", // the nodes share this machine
+                "-cp", System.getProperty("java.class.path"),
+                "chatApplication.Server")
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (true) {
+            try {
+                new Socket("localhost", port).close();
+                return process;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline || !process.isAlive()) {
+                    throw new IOException("Node " + index + " did not start", e);
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    // A text protocol client
+    private static class BenchmarkClient {
+        final String username;
+        private final Socket socket;
+        private final BufferedReader in;
+        private final PrintWriter out;
+
+        BenchmarkClient(int port, String username) throws IOException {
+            this.username = username;
+            this.socket = new Socket("localhost", port);
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), false);
+            send(username);
+            flush();
+        }
+
+        // Asks for the user list until it has everyone
+        void awaitUsers(int count) throws IOException, InterruptedException {
+            long deadline = System.currentTimeMillis() + 30_000;
+            while (System.currentTimeMillis() < deadline) {
+                send("/users");
+                flush();
+                String line;
+                while ((line = in.readLine()) != null && !line.startsWith("/users ")) {
+                    // presence deltas and notices
+                }
+                if (line != null && line.split(" ", 3).length > 2 && line.split(" ", 3)[2].split(",").length >= count) {
+                    return;
+                }
+                Thread.sleep(100);
+            }
+            throw new IOException(username + " never saw all " + count + " users");
+        }
+
+        void countPrivateMessages(AtomicLong received) {
+            Thread.ofVirtual().start(() -> {
+                try {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        if (line.contains(" (private): ")) {
+                            received.incrementAndGet();
+                        }
+                    }
+                } catch (IOException e) {
+                    // closed at the end of the run
+                }
+            });
+        }
+
+        void send(String line) {
+            out.print(line);
+            out.print('\n');
+        }
+
+        void flush() {
+            out.flush();
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+}
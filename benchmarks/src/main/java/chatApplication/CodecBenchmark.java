@@ -0,0 +1,81 @@
+package chatApplication;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Decoding a read buffer of MESSAGES private messages in each protocol. The recipient isn't online, so
+// apart from the parsing the handler only does a failed lookup per message.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+    private static final int MESSAGES = 64;
+
+    private BenchmarkServer server;
+    private Server.ConnectionHandler textClient;
+    private Server.ConnectionHandler binaryClient;
+    private ByteBuffer textInput;
+    private ByteBuffer binaryInput;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = BenchmarkServer.start();
+        AtomicLong frames = new AtomicLong();
+        textClient = server.login("text", new BenchmarkServer.CountingTransport(frames));
+        binaryClient = server.loginBinary("binary", new BenchmarkServer.CountingTransport(frames));
+
+        StringBuilder lines = new StringBuilder();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream frameOut = new DataOutputStream(bytes);
+        byte[] recipient = BinaryProtocol.utf8("nobody");
+        byte[] text = BinaryProtocol.utf8("hello, is anyone reading this?");
+        for (int i = 0; i < MESSAGES; i++) {
+            lines.append("/msgto nobody hello, is anyone reading this?\n");
+            ByteBuffer payload = ByteBuffer.allocate(2 + recipient.length + text.length);
+            BinaryProtocol.putString(payload, recipient);
+            payload.put(text);
+            BinaryProtocol.writeFrame(frameOut, BinaryProtocol.PRIVATE, payload.array(), 0, payload.capacity());
+        }
+        textInput = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+        binaryInput = ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void text() {
+        textClient.onRead(textInput.duplicate());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void binary() {
+        binaryClient.onRead(binaryInput.duplicate());
+    }
+}
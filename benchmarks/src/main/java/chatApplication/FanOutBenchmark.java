@@ -0,0 +1,69 @@
+package chatApplication;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// One message to every member of a room, until the last member has it queued. Rooms of at least
+// parallelThreshold members are delivered by the fan-out threads, smaller ones on the calling thread.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanOutBenchmark {
+    @Param({"10", "1000", "10000"})
+    int members;
+
+    @Param({"1", "4"})
+    int fanOutThreads;
+
+    private BenchmarkServer server;
+    private final AtomicLong delivered = new AtomicLong();
+    private long expected;
+    private Room room;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = BenchmarkServer.start("chat.rooms.fanOutThreads", Integer.toString(fanOutThreads),
+                "chat.rooms.parallelThreshold", "256");
+        for (int i = 0; i < members; i++) {
+            Server.ConnectionHandler member = new Server.ConnectionHandler(new BenchmarkServer.CountingTransport(delivered));
+            room = Server.rooms.join("benchmark", member);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.stop();
+    }
+
+    @Benchmark
+    public void publish() {
+        OutboundMessage message = OutboundMessage.chat("alice: hello everyone");
+        try {
+            room.publish(message);
+        } finally {
+            message.release();
+        }
+        expected += members;
+        while (delivered.get() < expected) {
+            Thread.onSpinWait();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package chatApplication;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Receiving a whole file in FILE_CHUNK_SIZE chunks: written to the incoming directory and hashed on the
+// way, as an upload is. The file is deleted again, so the page cache rather than the disk sets the pace.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileReceiveBenchmark {
+    @Param({"1048576", "16777216"})
+    int size;
+
+    private Path directory;
+    private ByteBuffer chunk;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("chat-benchmark");
+        byte[] data = new byte[BinaryProtocol.FILE_CHUNK_SIZE];
+        ThreadLocalRandom.current().nextBytes(data);
+        chunk = ByteBuffer.allocateDirect(data.length).put(data).flip();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public String receive() throws IOException {
+        IncomingFile incoming = IncomingFile.begin(directory, "benchmark.bin", size);
+        try {
+            for (long offset = 0; offset < size; offset += chunk.capacity()) {
+                incoming.write(chunk.duplicate().limit((int) Math.min(chunk.capacity(), size - offset)));
+            }
+            return incoming.digest();
+        } finally {
+            incoming.abort();
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package chatApplication;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Drives a running server with many simulated text clients and reports message throughput and delivery
+// latency. Every client sends at a fixed rate, either private messages to random other clients or chat
+// messages that go to everyone; each message carries its send time, so the latency is measured from the
+// sender's write to the recipient's read. Settings are system properties:
+//
+//   load.host (localhost), load.port (12345), load.clients (1000), load.seconds (30),
+//   load.warmupSeconds (5), load.rate (messages per second per client, 1), load.mode (private|broadcast)
+//
+//   java -Dload.clients=5000 -cp benchmarks/target/benchmarks.jar chatApplication.LoadGenerator
+public class LoadGenerator {
+    private static final long REPORT_MILLIS = 5000;
+
+    private final String host;
+    private final int port;
+    private final boolean broadcast;
+    private final double rate;
+    private final Histogram interval = new Histogram();
+    private final Histogram total = new Histogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private volatile boolean measuring;
+    private volatile boolean running = true;
+
+    private LoadGenerator(String host, int port, boolean broadcast, double rate) {
+        this.host = host;
+        this.port = port;
+        this.broadcast = broadcast;
+        this.rate = rate;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Properties properties = System.getProperties();
+        String host = properties.getProperty("load.host", "localhost");
+        int port = ServerConfig.intValue(properties, "load.port", 12345);
+        int clientCount = ServerConfig.intValue(properties, "load.clients", 1000);
+        int seconds = ServerConfig.intValue(properties, "load.seconds", 30);
+        int warmupSeconds = ServerConfig.intValue(properties, "load.warmupSeconds", 5);
+        double rate = Double.parseDouble(properties.getProperty("load.rate", "1"));
+        boolean broadcast = properties.getProperty("load.mode", "private").equalsIgnoreCase("broadcast");
+
+        LoadGenerator generator = new LoadGenerator(host, port, broadcast, rate);
+        System.out.printf("%d clients against %s:%d, %s messages at %.1f/s each%n",
+                clientCount, host, port, broadcast ? "broadcast" : "private", rate);
+        List<SimulatedClient> clients = generator.connect(clientCount);
+        System.out.println("All clients logged in");
+        generator.run(clients, warmupSeconds, seconds);
+        for (SimulatedClient client : clients) {
+            client.close();
+        }
+    }
+
+    private List<SimulatedClient> connect(int count) throws InterruptedException {
+        String prefix = "load" + ThreadLocalRandom.current().nextInt(1000, 10000) + "-";
+        List<SimulatedClient> clients = new ArrayList<>();
+        CountDownLatch loggedIn = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            SimulatedClient client = new SimulatedClient(prefix + i, loggedIn);
+            clients.add(client);
+            Thread.ofVirtual().start(client::connect);
+        }
+        if (!loggedIn.await(60, TimeUnit.SECONDS)) {
+            System.out.println("Only " + (count - loggedIn.getCount()) + " clients could log in");
+        }
+        return clients;
+    }
+
+    private void run(List<SimulatedClient> clients, int warmupSeconds, int seconds) throws InterruptedException {
+        List<SimulatedClient> online = clients.stream().filter(SimulatedClient::isConnected).toList();
+        for (SimulatedClient client : online) {
+            Thread.ofVirtual().start(() -> client.send(online));
+        }
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmupSeconds));
+        interval.reset();
+        sent.reset();
+        delivered.reset();
+        measuring = true;
+
+        long start = System.currentTimeMillis();
+        long end = start + TimeUnit.SECONDS.toMillis(seconds);
+        long lastReport = start;
+        long lastSent = 0;
+        long lastDelivered = 0;
+        while (System.currentTimeMillis() < end) {
+            Thread.sleep(Math.min(REPORT_MILLIS, end - System.currentTimeMillis()));
+            long now = System.currentTimeMillis();
+            double elapsed = (now - lastReport) / 1000.0;
+            long sentNow = sent.sum();
+            long deliveredNow = delivered.sum();
+            report(String.format("%5ds", (now - start) / 1000), (sentNow - lastSent) / elapsed,
+                    (deliveredNow - lastDelivered) / elapsed, interval);
+            interval.reset();
+            lastReport = now;
+            lastSent = sentNow;
+            lastDelivered = deliveredNow;
+        }
+        running = false;
+        double elapsed = (System.currentTimeMillis() - start) / 1000.0;
+        report("total", sent.sum() / elapsed, delivered.sum() / elapsed, total);
+    }
+
+    private static void report(String label, double sentRate, double deliveredRate, Histogram latency) {
+        System.out.printf("%s  sent %,9.0f/s  delivered %,10.0f/s  p50 %7.2f ms  p99 %7.2f ms  p999 %7.2f ms  max %7.2f ms%n",
+                label, sentRate, deliveredRate, millis(latency.percentile(0.5)), millis(latency.percentile(0.99)),
+                millis(latency.percentile(0.999)), millis(latency.max()));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private class SimulatedClient {
+        final String username;
+        private final CountDownLatch loggedIn;
+        private Socket socket;
+        private PrintWriter out;
+        private volatile boolean connected;
+
+        SimulatedClient(String username, CountDownLatch loggedIn) {
+            this.username = username;
+            this.loggedIn = loggedIn;
+        }
+
+        boolean isConnected() {
+            return connected;
+        }
+
+        void connect() {
+            try {
+                socket = new Socket(host, port);
+                socket.setTcpNoDelay(true);
+                out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+                out.println(username);
+                receive(new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)));
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println(username + ": " + e.getMessage());
+                }
+            } finally {
+                if (!connected) {
+                    loggedIn.countDown(); // never got in, don't wait for it
+                }
+                connected = false;
+            }
+        }
+
+        // The presence snapshot is the last thing the server sends on login
+        private void receive(BufferedReader in) throws IOException {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!connected) {
+                    if (line.startsWith("/users ")) {
+                        connected = true;
+                        loggedIn.countDown();
+                    }
+                    continue;
+                }
+                // "sender (private): <nanos>" or "sender: <nanos>"
+                int separator = line.lastIndexOf(": ");
+                if (separator < 0 || line.startsWith("/")) {
+                    continue;
+                }
+                long sentAt;
+                try {
+                    sentAt = Long.parseLong(line.substring(separator + 2));
+                } catch (NumberFormatException e) {
+                    continue; // notices and other chatter
+                }
+                if (measuring) {
+                    long latency = System.nanoTime() - sentAt;
+                    interval.record(latency);
+                    total.record(latency);
+                }
+                delivered.increment();
+            }
+        }
+
+        // Sends at the configured rate, starting at a random point of the first period so the clients
+        // don't all send at once
+        void send(List<SimulatedClient> online) {
+            long period = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+            long next = System.nanoTime() + ThreadLocalRandom.current().nextLong(period);
+            try {
+                while (running && connected) {
+                    long wait = next - System.nanoTime();
+                    if (wait > 0) {
+                        Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                    }
+                    next += period;
+                    if (broadcast) {
+                        out.println(System.nanoTime());
+                    } else {
+                        SimulatedClient recipient = online.get(ThreadLocalRandom.current().nextInt(online.size()));
+                        out.println("/msgto " + recipient.username + " " + System.nanoTime());
+                    }
+                    sent.increment();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void close() {
+            try {
+                if (socket != null) {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                // already gone
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package chatApplication;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Routing a private message to one of many logged-in users: "/msgto" as the text protocol sends it, and
+// the binary PRIVATE frame that arrives already split into recipient and text.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PrivateMessageBenchmark {
+    @Param({"1000", "100000"})
+    int users;
+
+    private BenchmarkServer server;
+    private Server.ConnectionHandler sender;
+    private String[] recipients;
+    private String[] commands;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = BenchmarkServer.start();
+        AtomicLong frames = new AtomicLong();
+        sender = server.login("sender", new BenchmarkServer.CountingTransport(frames));
+        recipients = new String[users];
+        commands = new String[users];
+        for (int i = 0; i < users; i++) {
+            // Claimed directly, logging in this many users one by one would broadcast every login to all
+            recipients[i] = "user" + i;
+            commands[i] = "/msgto " + recipients[i] + " are you there?";
+            Server.sessions.claim(recipients[i], new Server.ConnectionHandler(new BenchmarkServer.CountingTransport(frames)));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.stop();
+    }
+
+    @Benchmark
+    public void msgtoCommand() throws IOException {
+        sender.onLine(commands[next++ % users]);
+    }
+
+    @Benchmark
+    public void privateFrame() {
+        sender.onPrivateMessage(recipients[next++ % users], "are you there?");
+    }
+}
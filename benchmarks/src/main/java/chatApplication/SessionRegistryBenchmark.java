@@ -0,0 +1,59 @@
+package chatApplication;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Username lookups as every private message and login does them
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SessionRegistryBenchmark {
+    @Param({"1000", "100000"})
+    int users;
+
+    private SessionRegistry sessions;
+    private String[] present;
+    private String[] absent;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        sessions = new SessionRegistry(1000);
+        Server.config = new ServerConfig(new Properties());
+        Server.ConnectionHandler handler = new Server.ConnectionHandler(new BenchmarkServer.CountingTransport(new AtomicLong()));
+        present = new String[users];
+        absent = new String[users];
+        for (int i = 0; i < users; i++) {
+            present[i] = "user" + i;
+            absent[i] = "nobody" + i;
+            sessions.claim(present[i], handler);
+        }
+    }
+
+    @Benchmark
+    public Server.ConnectionHandler lookupHit() {
+        return sessions.lookup(present[next++ % users]);
+    }
+
+    @Benchmark
+    public boolean lookupMiss() {
+        return sessions.isUsernameInUse(absent[next++ % users]);
+    }
+}
@@ -0,0 +1,254 @@
+package chatApplication;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+// TLS against plaintext over loopback sockets, both ends on TlsSession as the server uses it.
+//   connect  one client connection: TCP connect, the handshake and one byte there and back, then close.
+//            "full" handshakes from scratch, "resumed" offers the session of the previous connection,
+//            which is what a reconnecting client does.
+//   send64k  64 KB of chat-sized messages in one gathering write on an open connection; the server end
+//            reads and drops them.
+// The key pair is made with the JDK's keytool, in a temporary directory.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TlsBenchmark {
+    private static final String[] PROTOCOLS = {"TLSv1.3"};
+    private static final char[] PASSWORD = "benchmark".toCharArray();
+
+    @State(Scope.Benchmark)
+    public static class Handshakes {
+        @Param({"plain", "full", "resumed"})
+        String mode;
+
+        Loopback server;
+        private final ByteBuffer app = ByteBuffer.allocate(32 * 1024);
+        private final ByteBuffer ping = ByteBuffer.allocate(1);
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            server = new Loopback(!mode.equals("plain"), true);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            server.close();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Connection {
+        @Param({"plain", "tls"})
+        String transport;
+
+        Loopback server;
+        SocketChannel channel;
+        TlsSession tls;
+        private final ByteBuffer[] messages = new ByteBuffer[64];
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            server = new Loopback(transport.equals("tls"), false);
+            channel = server.connect();
+            if (server.tls != null) {
+                tls = new TlsSession(server.clientEngine(false));
+                tls.handshake(channel, ByteBuffer.allocate(32 * 1024), data -> { });
+            }
+            byte[] message = new byte[1024];
+            Arrays.fill(message, (byte) 'x');
+            for (int i = 0; i < messages.length; i++) {
+                messages[i] = ByteBuffer.allocateDirect(message.length).put(message).flip();
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            channel.close();
+            server.close();
+        }
+    }
+
+    @Benchmark
+    public void connect(Handshakes state) throws IOException {
+        try (SocketChannel channel = state.server.connect()) {
+            ByteBuffer ping = state.ping.clear().put((byte) 1).flip();
+            if (state.server.tls == null) {
+                channel.write(ping);
+                channel.read(ping.clear());
+                return;
+            }
+            TlsSession tls = new TlsSession(state.server.clientEngine(state.mode.equals("resumed")));
+            tls.handshake(channel, state.app, data -> { });
+            // The reply also brings the session ticket that the next connection resumes with
+            tls.write(channel, new ByteBuffer[] {ping}, 0, 1);
+            int[] received = {0};
+            while (received[0] == 0 && tls.read(channel, state.app, data -> received[0] += data.remaining()) >= 0) {
+            }
+            tls.close(channel, true);
+        }
+    }
+
+    @Benchmark
+    public long send64k(Connection state) throws IOException {
+        ByteBuffer[] messages = state.messages;
+        for (ByteBuffer message : messages) {
+            message.rewind();
+        }
+        long sent = 0;
+        while (messages[messages.length - 1].hasRemaining()) {
+            sent += state.tls == null ? state.channel.write(messages) : state.tls.write(state.channel, messages, 0, messages.length);
+        }
+        return sent;
+    }
+
+    // A server on a loopback port, a virtual thread per connection. It answers every byte with one byte
+    // if echo is set, otherwise it reads and drops what it gets.
+    static class Loopback {
+        final SSLContext tls; // the server's, null for plaintext
+        private final SSLContext clientTls;
+        private final ServerSocketChannel serverChannel;
+        private final Path directory;
+
+        Loopback(boolean useTls, boolean echo) throws IOException {
+            directory = Files.createTempDirectory("chat-benchmark");
+            if (useTls) {
+                Path keyStore = createKeyStore(directory);
+                tls = TlsSession.serverContext(keyStore, PASSWORD, 1000, 3600);
+                clientTls = clientContext(keyStore);
+            } else {
+                tls = null;
+                clientTls = null;
+            }
+            serverChannel = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+            Thread.ofPlatform().daemon().start(() -> {
+                while (serverChannel.isOpen()) {
+                    try {
+                        SocketChannel channel = serverChannel.accept();
+                        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                        Thread.ofVirtual().start(() -> serve(channel, echo));
+                    } catch (IOException e) {
+                        return; // closed
+                    }
+                }
+            });
+        }
+
+        SocketChannel connect() throws IOException {
+            SocketChannel channel = SocketChannel.open(serverChannel.getLocalAddress());
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true); // as the server and Client have it
+            return channel;
+        }
+
+        // With a peer host and port the client looks in its session cache, without it always starts afresh
+        SSLEngine clientEngine(boolean resume) throws IOException {
+            InetSocketAddress address = (InetSocketAddress) serverChannel.getLocalAddress();
+            SSLEngine engine = resume ? clientTls.createSSLEngine("localhost", address.getPort()) : clientTls.createSSLEngine();
+            engine.setUseClientMode(true);
+            engine.setEnabledProtocols(PROTOCOLS);
+            return engine;
+        }
+
+        void close() throws IOException {
+            serverChannel.close();
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+
+        private void serve(SocketChannel channel, boolean echo) {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            ByteBuffer[] reply = {ByteBuffer.allocate(1)};
+            try (channel) {
+                if (tls == null) {
+                    while (channel.read(buffer.clear()) >= 0) {
+                        if (echo) {
+                            channel.write(reply[0].clear().put((byte) 1).flip());
+                        }
+                    }
+                    return;
+                }
+                TlsSession session = new TlsSession(TlsSession.serverEngine(tls, PROTOCOLS));
+                boolean[] received = {false};
+                Consumer<ByteBuffer> consumer = data -> received[0] = true;
+                session.handshake(channel, buffer, consumer); // the first byte may come with the client's last message
+                do {
+                    if (echo && received[0]) {
+                        received[0] = false;
+                        reply[0].clear().put((byte) 1).flip();
+                        session.write(channel, reply, 0, 1);
+                    }
+                } while (session.read(channel, buffer, consumer) >= 0);
+                session.close(channel, true);
+            } catch (IOException ignored) {
+                // the client went away
+            }
+        }
+
+        private static Path createKeyStore(Path directory) throws IOException {
+            Path keyStore = directory.resolve("benchmark.p12");
+            Process keytool = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "keytool").toString(),
+                    "-genkeypair", "-alias", "chat", "-keyalg", "EC", "-groupname", "secp256r1",
+                    "-storetype", "PKCS12", "-keystore", keyStore.toString(), "-storepass", new String(PASSWORD),
+                    "-dname", "CN=localhost", "-ext", "san=dns:localhost", "-validity", "2")
+                    .inheritIO().start();
+            try {
+                if (keytool.waitFor() != 0) {
+                    throw new IOException("keytool failed");
+                }
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return keyStore;
+        }
+
+        // Trusts the certificate in the key store and nothing else
+        private static SSLContext clientContext(Path keyStore) throws IOException {
+            try (InputStream in = Files.newInputStream(keyStore)) {
+                KeyStore keys = KeyStore.getInstance("PKCS12");
+                keys.load(in, PASSWORD);
+                TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                trust.init(keys);
+                SSLContext context = SSLContext.getInstance("TLS");
+                context.init(null, trust.getTrustManagers(), null);
+                return context;
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package chatApplication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Decoder for BinaryProtocol frames. A frame is dispatched once it is complete; only the bytes of a
+// frame that is still arriving are buffered, so the per-connection cost is bounded by the largest frame.
+// Compressed frames are inflated before dispatch, if the handshake allowed them.
+class BinaryCodec implements ProtocolCodec {
+    private final boolean compression;
+    private final ByteBuffer header = ByteBuffer.allocate(BinaryProtocol.HEADER_LENGTH);
+    private ByteBuffer payload;
+    private byte type;
+
+    BinaryCodec(boolean compression) {
+        this.compression = compression;
+    }
+
+    @Override
+    public Format format() {
+        return Format.BINARY;
+    }
+
+    @Override
+    public void decode(ByteBuffer data, Server.ConnectionHandler handler) throws IOException {
+        while (data.hasRemaining() && handler.usesCodec(this)) {
+            if (payload == null) {
+                while (header.hasRemaining() && data.hasRemaining()) {
+                    header.put(data.get());
+                }
+                if (header.hasRemaining()) {
+                    return;
+                }
+                header.flip();
+                byte version = header.get();
+                type = header.get();
+                int length = header.getInt();
+                header.clear();
+                if (version != BinaryProtocol.VERSION) {
+                    throw new IOException("Unsupported protocol version " + version);
+                }
+                if (length < 0 || length > BinaryProtocol.MAX_PAYLOAD_LENGTH) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                payload = ByteBuffer.allocate(length);
+            }
+
+            int length = Math.min(payload.remaining(), data.remaining());
+            payload.put(payload.position(), data, data.position(), length);
+            payload.position(payload.position() + length);
+            data.position(data.position() + length);
+            if (!payload.hasRemaining()) {
+                ByteBuffer frame = payload.flip();
+                payload = null;
+                dispatch(type, frame, handler);
+            }
+        }
+    }
+
+    private void dispatch(byte type, ByteBuffer frame, Server.ConnectionHandler handler) throws IOException {
+        if ((type & Compression.COMPRESSED) != 0 && compression) {
+            type &= ~Compression.COMPRESSED;
+            frame = Compression.decompress(frame);
+        }
+        switch (type) {
+            case BinaryProtocol.CHAT -> handler.onChat(BinaryProtocol.getRemainingString(frame));
+            case BinaryProtocol.PRIVATE -> {
+                String recipient = BinaryProtocol.getString(frame);
+                handler.onPrivateMessage(recipient, BinaryProtocol.getRemainingString(frame));
+            }
+            case BinaryProtocol.CONTROL -> handler.onControl(BinaryProtocol.getRemainingString(frame));
+            case BinaryProtocol.FILE_CHUNK -> receiveFileChunk(frame, handler);
+            default -> throw new IOException("Unexpected frame type " + type);
+        }
+    }
+
+    private void receiveFileChunk(ByteBuffer frame, Server.ConnectionHandler handler) {
+        String name = BinaryProtocol.getString(frame);
+        long offset = frame.getLong();
+        int checksum = frame.getInt();
+        handler.onFileChunk(name, offset, checksum, frame);
+    }
+}
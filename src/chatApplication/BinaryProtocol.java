@@ -0,0 +1,136 @@
+package chatApplication;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32C;
+
+// Wire format of the binary protocol, shared by Server and Client.
+//
+// A client asks for it by sending HANDSHAKE as its very first line instead of its username. The server
+// answers with the same line if it agrees (or TEXT_FALLBACK if not) and from then on both sides exchange
+// frames of the form
+//
+//   [version: 1 byte][type: 1 byte][payload length: 4 bytes][payload]
+//
+// Strings inside structured payloads are written as a 2 byte length followed by UTF-8 bytes. The handshake
+// may also turn on compression, which then marks compressed frames in their type byte, see Compression.
+//
+// File transfers are the same in both protocols. The sender announces the file ("/upload <size> <name>"
+// from a client, "/filedata <size> <name>" from the server), the receiver answers "/resume <offset> <name>"
+// with the number of bytes it already has from an earlier, interrupted attempt, and the sender then sends
+// chunks from there. Every chunk carries its offset and a CRC32C of its data. The receiver acknowledges each
+// chunk it wrote with "/ack <offset> <name>" and asks for a resend with "/resume" when a checksum doesn't
+// match. A sender keeps at most TRANSFER_WINDOW chunks unacknowledged, so chat traffic is never queued
+// behind more than that. In the text protocol a chunk is the line "/chunk <offset> <length> <crc> <name>"
+// followed by the raw bytes, in the binary protocol it is a FILE_CHUNK frame.
+final class BinaryProtocol {
+    static final byte VERSION = 3;
+    static final String HANDSHAKE = "/proto binary/3";
+    static final String TEXT_FALLBACK = "/proto text";
+
+    static final int HEADER_LENGTH = 6;
+    static final int MAX_PAYLOAD_LENGTH = 1024 * 1024;
+    static final int FILE_CHUNK_SIZE = 64 * 1024;
+    static final int TRANSFER_WINDOW = 8; // chunks
+
+    // Frame types
+    static final byte CHAT = 1;       // client: message to broadcast, server: line to display
+    static final byte PRIVATE = 2;    // [peer][text], peer is the recipient (client) or the sender (server)
+    static final byte USER_LIST = 3;  // see the USER_LIST operations below
+    static final byte FILE_CHUNK = 4; // [file name][offset: 8 bytes][crc32c: 4 bytes][data]
+    static final byte CONTROL = 5;    // a command line such as "/quit" or "/error <reason>"
+    static final byte ROOM = 6;       // server only: [room][line], a line said in a room the client joined
+
+    // USER_LIST operations, see Presence
+    static final byte USERS_SNAPSHOT = 0; // [op][version: 8 bytes][count: 4 bytes][names...]
+    static final byte USERS_DELTA = 3;    // [op][base version: 8][version: 8][count: 4][entries...]
+    // Delta entries are [USERS_JOINED or USERS_LEFT][name]
+    static final byte USERS_JOINED = 1;
+    static final byte USERS_LEFT = 2;
+
+    private BinaryProtocol() {
+    }
+
+    static byte[] utf8(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    static void putString(ByteBuffer buffer, byte[] utf8) {
+        buffer.putShort((short) utf8.length).put(utf8);
+    }
+
+    static String getString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static String getRemainingString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // CRC32C of the remaining bytes, the buffer's position is left alone
+    static int checksum(ByteBuffer data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data.duplicate());
+        return (int) crc.getValue();
+    }
+
+    // Builds a complete frame in a pooled buffer; the caller fills in exactly payloadLength bytes
+    static ByteBuffer allocateFrame(byte type, int payloadLength) {
+        ByteBuffer buffer = BufferPool.SHARED.acquire(HEADER_LENGTH + payloadLength);
+        return buffer.put(VERSION).put(type).putInt(payloadLength);
+    }
+
+    // Blocking helpers for the Swing client
+
+    static void writeFrame(DataOutputStream out, byte type, byte[] payload, int offset, int length) throws IOException {
+        out.writeByte(VERSION);
+        out.writeByte(type);
+        out.writeInt(length);
+        out.write(payload, offset, length);
+    }
+
+    // Returns the payload of the next frame and stores its type in type[0]
+    static ByteBuffer readFrame(DataInputStream in, byte[] type) throws IOException {
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported protocol version " + version);
+        }
+        type[0] = in.readByte();
+        int length = in.readInt();
+        if (length < 0 || length > MAX_PAYLOAD_LENGTH) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        if ((type[0] & Compression.COMPRESSED) != 0) {
+            type[0] &= ~Compression.COMPRESSED;
+            return Compression.decompress(ByteBuffer.wrap(payload));
+        }
+        return ByteBuffer.wrap(payload);
+    }
+
+    // Reads one UTF-8 line and not a byte more, so whatever follows (frames after the handshake, file data
+    // after "/filedata") can still be read from the same stream. Pass a buffered stream.
+    static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        String text = line.toString(StandardCharsets.UTF_8);
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+}
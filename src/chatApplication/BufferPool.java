@@ -0,0 +1,65 @@
+package chatApplication;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Recycles direct buffers in power-of-two size classes. Allocating a direct buffer is expensive
+// and freeing one waits for the GC, so broadcast frames borrow one from here and give it back when
+// the last recipient has been written to.
+class BufferPool {
+    static final BufferPool SHARED = new BufferPool(64, 64 * 1024, 4 * 1024 * 1024);
+
+    private final int minSize;
+    private final int maxSize;
+    private final ConcurrentLinkedQueue<ByteBuffer>[] classes;
+    private final AtomicInteger[] pooledCounts;
+    private final int[] maxPooled;
+
+    @SuppressWarnings("unchecked")
+    BufferPool(int minSize, int maxSize, int maxBytesPerClass) {
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        int classCount = Integer.numberOfTrailingZeros(maxSize / minSize) + 1;
+        classes = (ConcurrentLinkedQueue<ByteBuffer>[]) new ConcurrentLinkedQueue<?>[classCount];
+        pooledCounts = new AtomicInteger[classCount];
+        maxPooled = new int[classCount];
+        for (int i = 0; i < classCount; i++) {
+            classes[i] = new ConcurrentLinkedQueue<>();
+            pooledCounts[i] = new AtomicInteger();
+            maxPooled[i] = Math.max(1, maxBytesPerClass / (minSize << i));
+        }
+    }
+
+    // The returned buffer is cleared and has at least the requested capacity
+    ByteBuffer acquire(int size) {
+        if (size > maxSize) {
+            return ByteBuffer.allocateDirect(size); // too big to be worth keeping, see release
+        }
+        int index = classIndex(size);
+        ByteBuffer buffer = classes[index].poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(minSize << index);
+        }
+        pooledCounts[index].decrementAndGet();
+        return buffer.clear();
+    }
+
+    void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (capacity > maxSize || capacity < minSize || Integer.bitCount(capacity) != 1) {
+            return; // not one of ours, let the GC have it
+        }
+        int index = classIndex(capacity);
+        if (pooledCounts[index].incrementAndGet() <= maxPooled[index]) {
+            classes[index].offer(buffer);
+        } else {
+            pooledCounts[index].decrementAndGet();
+        }
+    }
+
+    private int classIndex(int size) {
+        int rounded = Math.max(minSize, Integer.highestOneBit(size - 1) << 1);
+        return Integer.numberOfTrailingZeros(rounded / minSize);
+    }
+}
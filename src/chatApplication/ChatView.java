@@ -0,0 +1,191 @@
+package chatApplication;
+
+import javax.swing.AbstractListModel;
+import javax.swing.JList;
+import javax.swing.JScrollBar;
+import javax.swing.JScrollPane;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import java.awt.event.MouseEvent;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The client's chat window contents. Messages can be added from any thread; they wait in a queue and a
+// Swing timer moves whatever piled up into the list every refreshMillis, with one model event per batch.
+// The list has a fixed row height and only paints the rows in view, so the cost per frame is the same
+// whether ten or ten thousand messages arrived since the last one.
+//
+// Only the last scrollback lines are kept. Scrolling to the very top asks the onTop callback for more,
+// which the client answers with older history from the server (see prependOlder); those pages may take
+// the list up to twice the scrollback, live messages then push them out again.
+class ChatView {
+    private final int scrollback;
+    private final Lines lines;
+    private final JList<String> list;
+    private final JScrollPane scrollPane;
+    private final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private Runnable onTop = () -> { };
+    private Runnable onEvicted = () -> { };
+
+    ChatView(int scrollback, int refreshMillis) {
+        this.scrollback = scrollback;
+        this.lines = new Lines(2 * scrollback);
+        this.list = new JList<>(lines) {
+            @Override
+            public boolean getScrollableTracksViewportWidth() {
+                return true; // rows are as wide as the window instead of measuring every line
+            }
+
+            @Override
+            public String getToolTipText(MouseEvent event) {
+                int row = locationToIndex(event.getPoint());
+                return row < 0 ? null : lines.getElementAt(row); // the whole line if it doesn't fit
+            }
+        };
+        list.setPrototypeCellValue("Xg"); // fixed row height, no row is measured
+        list.setFixedCellWidth(1);
+        list.setToolTipText("");
+        scrollPane = new JScrollPane(list);
+        scrollPane.getVerticalScrollBar().addAdjustmentListener(event -> {
+            JScrollBar bar = scrollPane.getVerticalScrollBar();
+            if (!event.getValueIsAdjusting() && bar.getValue() == bar.getMinimum() && lines.getSize() > 0) {
+                onTop.run();
+            }
+        });
+        new Timer(refreshMillis, e -> flush()).start();
+    }
+
+    JScrollPane component() {
+        return scrollPane;
+    }
+
+    // Called on the EDT when the user scrolled to the oldest line
+    void onTop(Runnable callback) {
+        onTop = callback;
+    }
+
+    // Called on the EDT after live messages pushed the oldest lines out
+    void onEvicted(Runnable callback) {
+        onEvicted = callback;
+    }
+
+    // Any thread. If the EDT falls behind, only the newest scrollback lines are kept waiting.
+    void append(String line) {
+        pending.add(line);
+        if (pendingCount.incrementAndGet() > scrollback && pending.poll() != null) {
+            pendingCount.decrementAndGet();
+        }
+    }
+
+    // EDT only. Older lines go above everything shown, as long as they fit; the view stays where it was.
+    void prependOlder(List<String> older) {
+        int count = Math.min(older.size(), lines.capacity() - lines.getSize());
+        if (count <= 0) {
+            return;
+        }
+        JScrollBar bar = scrollPane.getVerticalScrollBar();
+        int offset = bar.getValue() + count * list.getFixedCellHeight();
+        lines.prepend(older.subList(older.size() - count, older.size()));
+        SwingUtilities.invokeLater(() -> bar.setValue(offset)); // once the list has grown
+    }
+
+    // The oldest lines shown, for telling a page of history apart from what is already there
+    List<String> head(int count) {
+        return lines.head(count);
+    }
+
+    private void flush() {
+        if (pendingCount.get() == 0) {
+            return;
+        }
+        JScrollBar bar = scrollPane.getVerticalScrollBar();
+        boolean following = bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum(); // at the newest line
+        int evicted = 0;
+        int added = 0;
+        String line;
+        // No more than the scrollback per tick, senders may still be adding while we drain
+        while (added < scrollback && (line = pending.poll()) != null) {
+            pendingCount.decrementAndGet();
+            if (lines.getSize() >= scrollback) {
+                lines.removeFirst();
+                evicted++;
+            }
+            lines.add(line);
+            added++;
+        }
+        lines.changed(evicted, added);
+        if (following) {
+            // once the list has grown
+            SwingUtilities.invokeLater(() -> list.ensureIndexIsVisible(lines.getSize() - 1));
+        }
+        if (evicted > 0) {
+            onEvicted.run();
+        }
+    }
+
+    // A ring of lines with room for capacity of them, the list model
+    private static class Lines extends AbstractListModel<String> {
+        private static final long serialVersionUID = 1L;
+        private final String[] ring;
+        private int head;
+        private int size;
+
+        Lines(int capacity) {
+            ring = new String[capacity];
+        }
+
+        int capacity() {
+            return ring.length;
+        }
+
+        @Override
+        public int getSize() {
+            return size;
+        }
+
+        @Override
+        public String getElementAt(int index) {
+            return ring[(head + index) % ring.length];
+        }
+
+        void add(String line) {
+            ring[(head + size) % ring.length] = line;
+            size++;
+        }
+
+        void removeFirst() {
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+            size--;
+        }
+
+        void prepend(List<String> older) {
+            for (int i = older.size() - 1; i >= 0; i--) {
+                head = (head - 1 + ring.length) % ring.length;
+                ring[head] = older.get(i);
+                size++;
+            }
+            fireIntervalAdded(this, 0, older.size() - 1);
+        }
+
+        List<String> head(int count) {
+            String[] first = new String[Math.min(count, size)];
+            for (int i = 0; i < first.length; i++) {
+                first[i] = getElementAt(i);
+            }
+            return List.of(first);
+        }
+
+        // One event for the rows pushed out at the top and one for those added at the bottom
+        void changed(int removed, int added) {
+            if (removed > 0) {
+                fireIntervalRemoved(this, 0, removed - 1);
+            }
+            if (added > 0) {
+                fireIntervalAdded(this, size - added, size - 1);
+            }
+        }
+    }
+}
@@ -1,32 +1,90 @@
 package chatApplication;
 
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.text.SimpleDateFormat;
-import java.util.Arrays;
-import java.util.Date;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Client {
     private static final int PORT = 12345;
     private static final int MAX_FILE_SIZE = 10 * 1024 * 1024; // 10 MB
     private static final String[] ALLOWED_EXTENSIONS = {"png", "jpeg", "jpg", "pdf", "txt"};
-    private static final int DEFAULT_BUFFER_SIZE = 8192; // Default buffer size
-
-    private BufferedReader reader;
+    private static final long TRANSFER_TIMEOUT_MILLIS = 30_000; // give up on an upload the server stopped answering
+    // "binary" asks the server for the framed protocol, see BinaryProtocol; "text" is the line protocol
+    private static final String PROTOCOL = System.getProperty("chat.protocol", "text");
+    // With the binary protocol, also ask for compressed frames, see Compression
+    private static final boolean COMPRESSION = Boolean.parseBoolean(System.getProperty("chat.client.compression", "true"));
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss"); // immutable, one for all messages
+    // Lines kept in the chat window, and how often new messages are drawn, see ChatView
+    private static final int SCROLLBACK = Integer.getInteger("chat.client.scrollback", 5000);
+    private static final int REFRESH_MILLIS = Integer.getInteger("chat.client.refreshMillis", 50);
+    // Connect with TLS (the server runs with -Dchat.tls=true). The server's certificate is checked against
+    // the trust store given with -Djavax.net.ssl.trustStore, or the JDK's. The default SSLContext caches
+    // the session, so connecting again resumes it with a short handshake.
+    private static final boolean TLS = Boolean.getBoolean("chat.client.tls");
+    private static final String HOST = "localhost";
+    private static final int CONNECT_TIMEOUT_MILLIS = 10_000;
+    // What we sent last, kept to send again if the connection drops, see ClientSession. An upload has up
+    // to BinaryProtocol.TRANSFER_WINDOW chunks in flight, so keep room for them.
+    private static final int RESUME_BYTES = Integer.getInteger("chat.client.resumeBytes", 1024 * 1024);
+    private static final String USERNAME_IN_USE = "Username already in use. Please choose a different username.";
+    // Files fetched with "/get <name>" end up here
+    private static final Path DOWNLOAD_DIRECTORY = Paths.get(System.getProperty("user.home"), "ChatDownloads");
+
+    // Raw buffered bytes rather than a BufferedReader: file data can follow a text line directly
+    private BufferedInputStream reader;
     private PrintWriter writer;
-    private Socket socket;
+    private ClientSession session; // the connection, and the one after it if it drops
     private OutputStream outputStream;
+    private WritableByteChannel fileOut; // where upload chunks are transferred to
+
+    // Only set when the binary protocol was negotiated
+    private DataInputStream binaryIn;
+    private DataOutputStream binaryOut;
+    private boolean compress; // the server agreed to compression
 
     private String username;
+    private volatile boolean loggingOut;
+
+    // Every write to the server goes through this lock, held for one message or one file chunk at a time.
+    // It is fair, so a chat message waits for at most one chunk of each running upload.
+    private final ReentrantLock sendLock = new ReentrantLock(true);
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+    // Journal sequence after the last history replay, "/history since <cursor>" continues from there
+    private volatile long historyCursor = -1;
+    private final List<String> olderLines = new ArrayList<>(); // the page of history coming in, ServerListener only
 
     //Composants d'interface utilisateur Swing
-    private JTextArea chatArea;
+    private ChatView chatView;
     private JTextField messageField;
     private JComboBox<String> sendToComboBox; // Dropdown to choose recipient
     private JList<String> connectedUsersList; // List of connected users
@@ -79,18 +137,10 @@ public class Client {
 
     private void connectToServer() {
         try {
-            socket = new Socket("localhost", PORT);
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            writer = new PrintWriter(socket.getOutputStream(), true);
-            outputStream = socket.getOutputStream();
-
-            writer.println(username);
-
-
-            String response = reader.readLine();
-            if (response != null && response.equals("Username already in use. Please choose a different username.")) {
+            String response = login();
+            if (USERNAME_IN_USE.equals(response)) {
                 JOptionPane.showMessageDialog(loginFrame, response);
-                socket.close();
+                session.close();
             } else {
                 loginFrame.dispose(); // Close login window
                 initializeChatUI();
@@ -103,15 +153,233 @@ public class Client {
         }
     }
 
+    // Connects and logs in; returns the server's error message if the login was refused
+    private String login() throws IOException {
+        sendLock.lock();
+        try {
+            session = new ClientSession(Client::connect, RESUME_BYTES);
+            reader = new BufferedInputStream(session.input());
+            outputStream = session.output();
+            writer = new PrintWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8), true);
+            // Upload chunks go through the session too, so they can be sent again
+            fileOut = Channels.newChannel(outputStream);
+            binaryIn = null;
+            binaryOut = null;
+            compress = false;
+        } finally {
+            sendLock.unlock();
+        }
+
+        try {
+            if (PROTOCOL.equalsIgnoreCase("binary") && negotiateBinaryProtocol()) {
+                return loginBinary();
+            }
+            writer.println(username);
+            String response = BinaryProtocol.readLine(reader);
+            if (response != null && response.startsWith("/session ")) {
+                String[] parts = response.split(" ");
+                session.resumable(parts[1], Integer.parseInt(parts[2]));
+            }
+            return response;
+        } catch (IOException e) {
+            session.close();
+            throw e;
+        }
+    }
+
+    private static Socket connect() throws IOException {
+        Socket socket = new Socket();
+        socket.connect(new InetSocketAddress(HOST, PORT), CONNECT_TIMEOUT_MILLIS);
+        return TLS ? startTls(socket) : socket;
+    }
+
+    // The session couldn't be resumed (the server restarted, or we were gone too long): log in again as a
+    // new connection, in the same window
+    private void loginAgain() {
+        chatView.append("[" + TIME.format(LocalTime.now()) + "] Connection to the server lost, logging in again");
+        for (int attempt = 0; !loggingOut; attempt++) {
+            try {
+                Thread.sleep(ClientSession.backoffMillis(attempt));
+                String response = login();
+                if (USERNAME_IN_USE.equals(response)) {
+                    JOptionPane.showMessageDialog(null, response);
+                    logout();
+                    return;
+                }
+                new Thread(new ServerListener()).start();
+                return;
+            } catch (IOException e) {
+                // the server isn't back yet
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static Socket startTls(Socket plain) throws IOException {
+        SSLSocket tls = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault()).createSocket(plain, HOST, PORT, true);
+        SSLParameters parameters = tls.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS"); // the certificate must be for HOST
+        tls.setSSLParameters(parameters);
+        tls.startHandshake();
+        return tls;
+    }
+
+    // Asks for the binary protocol before anything else is sent, falls back to text if the server declines
+    private boolean negotiateBinaryProtocol() throws IOException {
+        String compressed = BinaryProtocol.HANDSHAKE + " " + Compression.NAME;
+        writer.println(COMPRESSION ? compressed : BinaryProtocol.HANDSHAKE);
+        String reply = BinaryProtocol.readLine(reader);
+        compress = compressed.equals(reply);
+        if (!compress && !BinaryProtocol.HANDSHAKE.equals(reply)) {
+            return false;
+        }
+        binaryIn = new DataInputStream(reader);
+        binaryOut = new DataOutputStream(new BufferedOutputStream(outputStream));
+        return true;
+    }
+
+    // Returns the server's error message if the login was refused, null otherwise
+    private String loginBinary() throws IOException {
+        sendCommand("/login " + username);
+        byte[] type = new byte[1];
+        ByteBuffer payload = BinaryProtocol.readFrame(binaryIn, type);
+        if (type[0] == BinaryProtocol.CONTROL) {
+            String control = BinaryProtocol.getRemainingString(payload);
+            if (control.startsWith("/error ")) {
+                return control.substring(7);
+            }
+        }
+        return null;
+    }
+
+    private void sendChat(String message) {
+        if (binaryOut == null) {
+            writeLine(message);
+        } else {
+            writeFrame(BinaryProtocol.CHAT, BinaryProtocol.utf8(message));
+        }
+    }
+
+    private void sendPrivateMessage(String recipient, String message) {
+        if (binaryOut == null) {
+            writeLine("/msgto " + recipient + " " + message);
+        } else {
+            byte[] name = BinaryProtocol.utf8(recipient);
+            byte[] body = BinaryProtocol.utf8(message);
+            ByteBuffer payload = ByteBuffer.allocate(2 + name.length + body.length);
+            BinaryProtocol.putString(payload, name);
+            payload.put(body);
+            writeFrame(BinaryProtocol.PRIVATE, payload.array());
+        }
+    }
+
+    private void sendCommand(String command) {
+        if (binaryOut == null) {
+            writeLine(command);
+        } else {
+            writeFrame(BinaryProtocol.CONTROL, BinaryProtocol.utf8(command));
+        }
+    }
+
+    private void writeLine(String line) {
+        sendLock.lock();
+        try {
+            writer.println(line);
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    private void writeFrame(byte type, byte[] payload) {
+        ByteBuffer compressed = compress && payload.length >= Compression.DEFAULT_THRESHOLD
+                ? Compression.compress(type, ByteBuffer.allocate(0), ByteBuffer.wrap(payload)) : null;
+        sendLock.lock();
+        try {
+            if (compressed != null) {
+                writeFully(compressed);
+            } else {
+                BinaryProtocol.writeFrame(binaryOut, type, payload, 0, payload.length);
+            }
+            binaryOut.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            sendLock.unlock();
+            if (compressed != null) {
+                BufferPool.SHARED.release(compressed);
+            }
+        }
+    }
+
+    // A frame from Compression, through the buffered stream; the pooled buffer is direct
+    private void writeFully(ByteBuffer frame) throws IOException {
+        byte[] bytes = new byte[Math.min(frame.remaining(), 8192)];
+        while (frame.hasRemaining()) {
+            int length = Math.min(bytes.length, frame.remaining());
+            frame.get(bytes, 0, length);
+            binaryOut.write(bytes, 0, length);
+        }
+    }
+
+    // One chunk of an upload: a "/chunk" line or FILE_CHUNK frame header, then the data itself with
+    // transferTo. The checksum is taken from a mapping of the chunk so the file never enters the heap.
+    // With compression the whole frame is deflated from that mapping instead, if it gets smaller; returns
+    // whether it did, so the upload can stop trying.
+    private boolean sendChunk(FileChannel file, String name, long offset, int length, boolean compressible)
+            throws IOException {
+        ByteBuffer data = file.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        int checksum = BinaryProtocol.checksum(data);
+        ByteBuffer compressed = null;
+        if (compressible && compress) {
+            byte[] nameBytes = BinaryProtocol.utf8(name);
+            ByteBuffer head = ByteBuffer.allocate(2 + nameBytes.length + 12);
+            BinaryProtocol.putString(head, nameBytes);
+            head.putLong(offset).putInt(checksum).flip();
+            compressed = Compression.compress(BinaryProtocol.FILE_CHUNK, head, data);
+        }
+        sendLock.lock();
+        try {
+            if (compressed != null) {
+                writeFully(compressed);
+                binaryOut.flush();
+                return true;
+            }
+            if (binaryOut == null) {
+                writer.println("/chunk " + offset + " " + length + " " + checksum + " " + name);
+                if (writer.checkError()) {
+                    throw new IOException("Connection closed");
+                }
+            } else {
+                byte[] nameBytes = BinaryProtocol.utf8(name);
+                binaryOut.writeByte(BinaryProtocol.VERSION);
+                binaryOut.writeByte(BinaryProtocol.FILE_CHUNK);
+                binaryOut.writeInt(2 + nameBytes.length + 12 + length);
+                binaryOut.writeShort(nameBytes.length);
+                binaryOut.write(nameBytes);
+                binaryOut.writeLong(offset);
+                binaryOut.writeInt(checksum);
+                binaryOut.flush();
+            }
+            transferFully(file, offset, length);
+            return false;
+        } finally {
+            sendLock.unlock();
+            if (compressed != null) {
+                BufferPool.SHARED.release(compressed);
+            }
+        }
+    }
+
     private void initializeChatUI() {
         JFrame chatFrame = new JFrame("Chat Client - " + username);
         chatFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         chatFrame.setSize(400, 300);
 
-        chatArea = new JTextArea();
-        chatArea.setEditable(false); // Ensures that users cannot edit the chat history
-        JScrollPane scrollPane = new JScrollPane(chatArea); // Provides scrolling functionality
-        chatFrame.add(scrollPane, BorderLayout.CENTER);
+        chatView = new ChatView(SCROLLBACK, REFRESH_MILLIS);
+        chatView.onTop(this::requestOlderHistory);
+        chatView.onEvicted(() -> anchorStale = true);
+        chatFrame.add(chatView.component(), BorderLayout.CENTER);
 
         JPanel bottomPanel = new JPanel();
         bottomPanel.setLayout(new BorderLayout());
@@ -131,7 +399,7 @@ public class Client {
         logoutButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                writer.println("/quit");
+                sendCommand("/quit");
                 logout();
             }
         });
@@ -165,22 +433,160 @@ public class Client {
         chatFrame.setVisible(true);
     }
 
+    // The user list follows the server's presence versions: a snapshot replaces it, a delta is applied
+    // to it in place if it continues from our version. Only used on the event thread.
+    private long presenceVersion = -1; // -1 until the login snapshot arrived
+    private boolean snapshotRequested;
+
+    private void applySnapshot(long version, List<String> users) {
+        SwingUtilities.invokeLater(() -> {
+            connectedUsersListModel.clear();
+            connectedUsersListModel.addAll(users);
+            presenceVersion = version;
+            snapshotRequested = false;
+        });
+    }
+
+    private void applyDelta(long baseVersion, long version, List<String> joined, List<String> left) {
+        SwingUtilities.invokeLater(() -> {
+            if (presenceVersion < 0 || version <= presenceVersion) {
+                return; // the snapshot we have or are about to get already includes it
+            }
+            if (baseVersion != presenceVersion) {
+                // We missed a delta, the next snapshot puts us back in step
+                if (!snapshotRequested) {
+                    snapshotRequested = true;
+                    sendCommand("/users");
+                }
+                return;
+            }
+            for (String user : left) {
+                connectedUsersListModel.removeElement(user);
+            }
+            for (String user : joined) {
+                connectedUsersListModel.addElement(user);
+            }
+            presenceVersion = version;
+        });
+    }
+
+    // Scrolling back past the oldest line fetches a page of older history with "/history before <sequence>".
+    // The sequence comes with the login history (see handleCommand); once live messages have pushed lines
+    // out of the window it no longer borders on what is shown, so a fresh one is asked for with
+    // "/history 0" first. Only used on the event thread.
+    private long oldestSequence = -1; // -1 until known, or when there is nothing older
+    private boolean anchorStale;
+    private boolean checkpointRequested;
+    private boolean olderRequested;
+
+    private void requestOlderHistory() {
+        if (checkpointRequested || olderRequested) {
+            return;
+        }
+        if (anchorStale) {
+            checkpointRequested = true;
+            sendCommand("/history 0");
+        } else if (oldestSequence >= 0) {
+            olderRequested = true;
+            sendCommand("/history before " + oldestSequence);
+        }
+    }
+
+    // "/cursor <next>" without a first sequence answers "/history 0"
+    private void applyCheckpoint(long next) {
+        SwingUtilities.invokeLater(() -> {
+            if (checkpointRequested) {
+                checkpointRequested = false;
+                anchorStale = false;
+                oldestSequence = next;
+                requestOlderHistory();
+            }
+        });
+    }
+
+    private void applyFirstSequence(long first) {
+        SwingUtilities.invokeLater(() -> {
+            if (oldestSequence < 0 && !anchorStale) {
+                oldestSequence = first;
+            }
+        });
+    }
+
+    // The lines the page shares with the top of the window are the ones that arrived live between the
+    // checkpoint and the eviction; they are shown once.
+    private void applyOlder(List<String> page, long oldest) {
+        SwingUtilities.invokeLater(() -> {
+            olderRequested = false;
+            oldestSequence = oldest;
+            Set<String> shown = new HashSet<>();
+            for (String line : chatView.head(page.size())) {
+                shown.add(line.substring(line.indexOf(' ') + 1));
+            }
+            List<String> older = new ArrayList<>();
+            for (String line : page) {
+                if (!shown.contains(line.substring(line.indexOf(' ') + 1))) {
+                    older.add(line);
+                }
+            }
+            chatView.prependOlder(older);
+        });
+    }
+
     private class ServerListener implements Runnable {
+        private final Map<String, IncomingFile> downloads = new HashMap<>(); // by file name
+
         @Override
         public void run() {
+            try {
+                if (binaryIn != null) {
+                    readFrames();
+                } else {
+                    readLines();
+                }
+            } finally {
+                // Whatever was received stays in the part files, the next "/get" of the same file resumes
+                downloads.values().forEach(IncomingFile::suspend);
+                uploads.values().forEach(upload -> upload.fail("Connection to the server lost"));
+            }
+            if (!loggingOut) {
+                loginAgain();
+            }
+        }
+
+        private void readLines() {
             try {
                 String message;
-                while ((message = reader.readLine()) != null) {
-                    if (message.equals("Username already in use. Please choose a different username.")) {
+                while ((message = BinaryProtocol.readLine(reader)) != null) {
+                    if (message.equals(USERNAME_IN_USE)) {
                         JOptionPane.showMessageDialog(loginFrame, message);
                         logout(); // Close the client connection
                         break;
                     } else if (message.startsWith("/users ")) {
-                        // Update connected users list
-                        String[] users = message.substring(7).split(",");
-                        connectedUsersListModel.clear();
-                        connectedUsersListModel.addAll(Arrays.asList(users));
-                    } else {
+                        // "/users <version> name,name,"
+                        String[] parts = message.split(" ", 3);
+                        applySnapshot(Long.parseLong(parts[1]), names(parts.length > 2 ? parts[2] : ""));
+                    } else if (message.startsWith("/presence ")) {
+                        // "/presence <base> <version> +joined,-left,"
+                        String[] parts = message.split(" ", 4);
+                        List<String> joined = new ArrayList<>();
+                        List<String> left = new ArrayList<>();
+                        for (String entry : names(parts.length > 3 ? parts[3] : "")) {
+                            (entry.charAt(0) == '+' ? joined : left).add(entry.substring(1));
+                        }
+                        applyDelta(Long.parseLong(parts[1]), Long.parseLong(parts[2]), joined, left);
+                    } else if (message.startsWith("/chunk ")) {
+                        // "/chunk <offset> <length> <crc> <name>", the raw bytes follow
+                        String[] parts = message.split(" ", 5);
+                        int length = Integer.parseInt(parts[2]);
+                        if (length < 0 || length > BinaryProtocol.MAX_PAYLOAD_LENGTH) {
+                            throw new IOException("Invalid chunk length " + length);
+                        }
+                        byte[] data = reader.readNBytes(length);
+                        if (data.length < length) {
+                            throw new EOFException("Connection closed during download of " + parts[4]);
+                        }
+                        receiveChunk(parts[4], Long.parseLong(parts[1]), Integer.parseInt(parts[3]), ByteBuffer.wrap(data));
+                    } else if (!handleCommand(message)) {
                         processMessage(message);
                     }
                 }
@@ -189,10 +595,172 @@ public class Client {
             }
         }
 
+        private void readFrames() {
+            byte[] type = new byte[1];
+            try {
+                while (true) {
+                    ByteBuffer payload = BinaryProtocol.readFrame(binaryIn, type);
+                    switch (type[0]) {
+                        case BinaryProtocol.CHAT -> processMessage(BinaryProtocol.getRemainingString(payload));
+                        case BinaryProtocol.PRIVATE -> {
+                            String sender = BinaryProtocol.getString(payload);
+                            processMessage(sender + " (private): " + BinaryProtocol.getRemainingString(payload));
+                        }
+                        case BinaryProtocol.ROOM -> {
+                            String room = BinaryProtocol.getString(payload);
+                            processMessage("[" + room + "] " + BinaryProtocol.getRemainingString(payload));
+                        }
+                        case BinaryProtocol.USER_LIST -> applyUserList(payload);
+                        case BinaryProtocol.FILE_CHUNK -> {
+                            String name = BinaryProtocol.getString(payload);
+                            long offset = payload.getLong();
+                            receiveChunk(name, offset, payload.getInt(), payload);
+                        }
+                        case BinaryProtocol.CONTROL -> handleCommand(BinaryProtocol.getRemainingString(payload));
+                        default -> {
+                            // nothing else the chat window needs
+                        }
+                    }
+                }
+            } catch (EOFException e) {
+                // server closed the connection
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // Commands from the server that aren't for the chat window: the server's side of a file transfer (see
+        // BinaryProtocol), the history cursor, heartbeats and the session token. Returns false for anything else.
+        private boolean handleCommand(String command) throws IOException {
+            if (command.equals("/ping")) {
+                sendCommand("/pong"); // without an answer the server takes us for gone, see Server.checkIdle
+                return true;
+            }
+            String[] parts = command.split(" ", 3);
+            if (parts[0].equals("/cursor") && parts.length > 1) {
+                historyCursor = Long.parseLong(parts[1]);
+                if (parts.length > 2) {
+                    applyFirstSequence(Long.parseLong(parts[2]));
+                } else {
+                    applyCheckpoint(historyCursor);
+                }
+                return true;
+            }
+            if (parts[0].equals("/older") && parts.length > 2) {
+                // "/older <time> <line>", a line of the page we asked for
+                String time = TIME.format(Instant.ofEpochMilli(Long.parseLong(parts[1])).atZone(ZoneId.systemDefault()));
+                olderLines.add("[" + time + "] " + parts[2]);
+                return true;
+            }
+            if (parts[0].equals("/oldest") && parts.length > 1) {
+                applyOlder(new ArrayList<>(olderLines), Long.parseLong(parts[1]));
+                olderLines.clear();
+                return true;
+            }
+            if (parts[0].equals("/reject") && parts.length > 1) {
+                Upload upload = uploads.get(command.substring(8));
+                if (upload != null) {
+                    upload.fail("The server refused the file");
+                }
+                return true;
+            }
+            if (parts.length < 3) {
+                return false;
+            }
+            switch (parts[0]) {
+                case "/session" -> session.resumable(parts[1], Integer.parseInt(parts[2]));
+                case "/filedata" -> startDownload(parts[2], Long.parseLong(parts[1]));
+                case "/resume", "/ack" -> {
+                    Upload upload = uploads.get(parts[2]);
+                    if (upload != null) {
+                        upload.progress(Long.parseLong(parts[1]), parts[0].equals("/resume"));
+                    }
+                }
+                default -> {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Picks up a part file an interrupted download of the same file left behind and tells the server
+        // where to continue
+        private void startDownload(String name, long size) throws IOException {
+            String fileName = IncomingFile.safeFileName(name);
+            if (fileName == null || size < 0) {
+                return;
+            }
+            IncomingFile download = IncomingFile.resume(DOWNLOAD_DIRECTORY,
+                    IncomingFile.partName(null, fileName, size), fileName, size);
+            IncomingFile previous = downloads.put(fileName, download);
+            if (previous != null) {
+                previous.suspend();
+            }
+            if (download.isComplete()) {
+                finishDownload(download);
+            }
+            sendCommand("/resume " + download.received() + " " + fileName);
+        }
+
+        // Chunks that don't continue the file where it ends were sent before the server got our last
+        // /resume and are dropped; a damaged chunk is asked for again
+        private void receiveChunk(String name, long offset, int checksum, ByteBuffer data) throws IOException {
+            IncomingFile download = downloads.get(name);
+            if (download == null || offset != download.received()) {
+                return;
+            }
+            if (BinaryProtocol.checksum(data) != checksum) {
+                sendCommand("/resume " + download.received() + " " + name);
+                return;
+            }
+            if (download.write(data)) {
+                finishDownload(download);
+            }
+            sendCommand("/ack " + download.received() + " " + name);
+        }
+
+        private void finishDownload(IncomingFile download) throws IOException {
+            downloads.remove(download.fileName);
+            processMessage("Downloaded " + download.fileName + " to " + download.complete());
+        }
+
+        private void applyUserList(ByteBuffer payload) {
+            byte op = payload.get();
+            if (op == BinaryProtocol.USERS_SNAPSHOT) {
+                long version = payload.getLong();
+                int count = payload.getInt();
+                List<String> users = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    users.add(BinaryProtocol.getString(payload));
+                }
+                applySnapshot(version, users);
+            } else if (op == BinaryProtocol.USERS_DELTA) {
+                long baseVersion = payload.getLong();
+                long version = payload.getLong();
+                int count = payload.getInt();
+                List<String> joined = new ArrayList<>();
+                List<String> left = new ArrayList<>();
+                for (int i = 0; i < count; i++) {
+                    byte change = payload.get();
+                    (change == BinaryProtocol.USERS_JOINED ? joined : left).add(BinaryProtocol.getString(payload));
+                }
+                applyDelta(baseVersion, version, joined, left);
+            }
+        }
+
+        private List<String> names(String list) {
+            List<String> names = new ArrayList<>();
+            for (String name : list.split(",")) {
+                if (!name.isEmpty()) {
+                    names.add(name);
+                }
+            }
+            return names;
+        }
+
+        // Any thread, ChatView draws it with the next batch
         private void processMessage(String message) {
-            SimpleDateFormat dateFormat = new SimpleDateFormat("HH:mm:ss");
-            String timestamp = dateFormat.format(new Date());
-            chatArea.append("[" + timestamp + "] " + message + "\n");
+            chatView.append("[" + TIME.format(LocalTime.now()) + "] " + message);
         }
     }
 
@@ -204,16 +772,23 @@ public class Client {
                 return;
             }
             if (input.equalsIgnoreCase("/quit")) {
-                writer.println("/quit");
+                sendCommand("/quit");
                 logout();
+            } else if (input.startsWith("/get ")) {
+                sendCommand(input); // download a file someone sent
+            } else if (input.startsWith("/join ") || input.startsWith("/leave ") || input.startsWith("/to ")
+                    || input.equals("/rooms")) {
+                sendCommand(input); // rooms, "/to <room> <message>" talks in one
+            } else if (input.startsWith("/search ")) {
+                sendCommand(input); // the server's search of the lobby and our private messages
             } else {
                 String recipient = (String) sendToComboBox.getSelectedItem();
                 if (recipient.equals("All Clients")) {
-                    writer.println(input);
+                    sendChat(input);
                 } else {
                     String selectedUser = connectedUsersList.getSelectedValue();
                     if (selectedUser != null) {
-                        writer.println("/msgto " + selectedUser + " " + input);
+                        sendPrivateMessage(selectedUser, input);
                     } else {
                         JOptionPane.showMessageDialog(null,
                                 "Please select a recipient from the connected users list.",
@@ -252,25 +827,7 @@ public class Client {
                         return;
                     }
 
-                    // Create input stream for reading file data
-                    FileInputStream fileInputStream = new FileInputStream(selectedFile);
-                    byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
-                    int bytesRead;
-
-                    // Send file metadata to the server
-                    writer.println("/file");
-                    writer.println(selectedFile.getName());
-                    writer.println(fileSize);
-                    writer.flush();
-
-                    // Read from file and write to the output stream
-                    while ((bytesRead = fileInputStream.read(buffer)) != -1) {
-                        outputStream.write(buffer, 0, bytesRead);
-                    }
-                    outputStream.flush();
-
-                    JOptionPane.showMessageDialog(null,
-                            "File sent successfully.", "File Sent", JOptionPane.INFORMATION_MESSAGE);
+                    startUpload(selectedFile);
                 } catch (IOException ex) {
                     ex.printStackTrace();
                     JOptionPane.showMessageDialog(null,
@@ -282,11 +839,130 @@ public class Client {
 
     }
 
+    // The transfer runs on its own thread, the event thread only picks the file
+    private void startUpload(File selectedFile) throws IOException {
+        Upload upload = new Upload(selectedFile);
+        if (uploads.putIfAbsent(upload.name, upload) != null) {
+            JOptionPane.showMessageDialog(null,
+                    "This file is already being sent.", "File Sending Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        new Thread(upload, "upload-" + upload.name).start();
+    }
+
+    // A file being sent in chunks, see BinaryProtocol. The ServerListener passes on the server's replies;
+    // an upload that breaks off can be resumed by sending the same file again.
+    private class Upload implements Runnable {
+        private final File file;
+        private final String name;
+        private final long size;
+
+        // Guarded by this
+        private long acknowledged = -1; // -1 until the server's first /resume
+        private long resumeFrom = -1;   // where to continue after a /resume, -1 if there is none pending
+        private String failure;
+
+        Upload(File file) throws IOException {
+            this.file = file;
+            this.name = file.getName();
+            this.size = Files.size(file.toPath());
+        }
+
+        @Override
+        public void run() {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                // With the digest the server can skip the transfer if it already has the content
+                sendCommand("/upload " + size + " sha256:" + digest(channel) + " " + name);
+                ByteBuffer head = ByteBuffer.allocate(8);
+                channel.read(head, 0);
+                boolean compressible = !Compression.isCompressedFormat(head.flip()); // png, jpeg and pdf aren't
+                long offset = -1;
+                while (true) {
+                    synchronized (this) {
+                        awaitSendable(offset);
+                        if (acknowledged == size) {
+                            break;
+                        }
+                        if (resumeFrom >= 0) {
+                            offset = resumeFrom;
+                            resumeFrom = -1;
+                        }
+                    }
+                    int length = (int) Math.min(BinaryProtocol.FILE_CHUNK_SIZE, size - offset);
+                    compressible = sendChunk(channel, name, offset, length, compressible);
+                    offset += length;
+                }
+                finished("File sent successfully.", "File Sent", JOptionPane.INFORMATION_MESSAGE);
+            } catch (IOException | InterruptedException e) {
+                finished("Error occurred while sending the file: " + e.getMessage()
+                        + ". Send it again to resume.", "File Sending Error", JOptionPane.ERROR_MESSAGE);
+            }
+        }
+
+        private String digest(FileChannel channel) throws IOException {
+            MessageDigest sha256 = IncomingFile.newDigest();
+            long step = 8 * 1024 * 1024;
+            for (long offset = 0; offset < size; offset += step) {
+                long length = Math.min(step, size - offset);
+                sha256.update(channel.map(FileChannel.MapMode.READ_ONLY, offset, length));
+            }
+            return HexFormat.of().formatHex(sha256.digest());
+        }
+
+        // Waits until the window has room for the chunk at offset, a resend is asked for or the upload is done
+        private void awaitSendable(long offset) throws IOException, InterruptedException {
+            long window = (long) BinaryProtocol.TRANSFER_WINDOW * BinaryProtocol.FILE_CHUNK_SIZE;
+            long deadline = System.currentTimeMillis() + TRANSFER_TIMEOUT_MILLIS;
+            while (failure == null && resumeFrom < 0 && acknowledged != size
+                    && (offset < 0 || offset >= size || offset - acknowledged >= window)) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new IOException("the server stopped answering");
+                }
+                wait(remaining);
+            }
+            if (failure != null) {
+                throw new IOException(failure);
+            }
+        }
+
+        // "/resume" moves the upload back to offset, "/ack" confirms everything before it
+        synchronized void progress(long offset, boolean resume) {
+            if (resume) {
+                acknowledged = offset;
+                resumeFrom = offset;
+            } else if (offset > acknowledged) {
+                acknowledged = offset;
+            }
+            notifyAll();
+        }
+
+        synchronized void fail(String reason) {
+            failure = reason;
+            notifyAll();
+        }
+
+        private void finished(String message, String title, int messageType) {
+            uploads.remove(name, this);
+            SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(null, message, title, messageType));
+        }
+    }
+
+    private void transferFully(FileChannel file, long position, long count) throws IOException {
+        long end = position + count;
+        while (position < end) {
+            position += file.transferTo(position, end - position, fileOut);
+        }
+    }
+
     private void logout() {
+        loggingOut = true;
         try {
-            reader.close();
+            if (reader != null) {
+                reader.close();
+            }
             writer.close();
-            socket.close();
+            session.close();
             System.exit(0);
         } catch (IOException ex) {
             ex.printStackTrace();
@@ -0,0 +1,258 @@
+package chatApplication;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+
+// The client's end of a session the server can resume, see ResumableTransport. input() and output() read
+// and write whatever connection is current and stay the same streams when it is replaced. Every byte read
+// is counted and the last bytes written are kept, so once the server has sent "/session <token> <seconds>"
+// a dropped connection is not the end: the reader connects again and, instead of logging in, sends
+//
+//   /reconnect <token> <bytes received>
+//
+// The server answers "/reconnected <bytes it received>" and sends what we missed, we send what it missed,
+// and both sides carry on mid-stream. The reader doesn't see any of it, its read just takes longer. If the
+// server answers "/expired", or we don't get through before the session times out, input() ends as if
+// the server had closed the connection.
+//
+// Attempts back off exponentially, with jitter, so the clients a network blip cut off don't all come back
+// in the same instant.
+class ClientSession {
+    interface Connector {
+        Socket connect() throws IOException;
+    }
+
+    private static final long FIRST_BACKOFF_MILLIS = 250;
+    private static final long MAX_BACKOFF_MILLIS = 8_000;
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 10_000;
+
+    private final Connector connector;
+    private final byte[] kept; // the last bytes written, byte n of the session at kept[n % kept.length]
+    private final InputStream input = new SessionInput();
+    private final OutputStream output = new SessionOutput();
+
+    // Guarded by this
+    private Socket socket;
+    private OutputStream out; // null while reconnecting
+    private long sent;
+
+    private InputStream in; // reader only
+    private long received; // reader only
+    private volatile String token; // null while the session can't be resumed
+    private volatile long resumeMillis;
+    private volatile boolean closed;
+
+    ClientSession(Connector connector, int keptBytes) throws IOException {
+        this.connector = connector;
+        this.kept = new byte[keptBytes];
+        this.socket = connector.connect();
+        this.out = socket.getOutputStream();
+        this.in = socket.getInputStream();
+    }
+
+    InputStream input() {
+        return input;
+    }
+
+    OutputStream output() {
+        return output;
+    }
+
+    // "/session <token> <seconds>"
+    void resumable(String token, int seconds) {
+        this.resumeMillis = seconds * 1000L;
+        this.token = token;
+    }
+
+    // For good, nothing is resumed after this
+    void close() {
+        closed = true;
+        synchronized (this) {
+            closeQuietly(socket);
+        }
+    }
+
+    // Between attempts to get back in, for the nth attempt
+    static long backoffMillis(int attempt) {
+        long cap = Math.min(MAX_BACKOFF_MILLIS, FIRST_BACKOFF_MILLIS << Math.min(attempt, 6));
+        return ThreadLocalRandom.current().nextLong(cap / 2, cap + 1);
+    }
+
+    // On the reader's thread. Returns false if the session can't be resumed.
+    private boolean reconnect() {
+        synchronized (this) {
+            out = null; // writers keep what they write until we are back
+            closeQuietly(socket);
+        }
+        long deadline = System.currentTimeMillis() + resumeMillis;
+        for (int attempt = 0; !closed && System.currentTimeMillis() < deadline; attempt++) {
+            try {
+                Thread.sleep(backoffMillis(attempt));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            Socket next = null;
+            try {
+                next = connector.connect();
+                next.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+                OutputStream nextOut = next.getOutputStream();
+                InputStream nextIn = next.getInputStream();
+                nextOut.write(("/reconnect " + token + " " + received + "\n").getBytes(StandardCharsets.UTF_8));
+                nextOut.flush();
+                String reply = BinaryProtocol.readLine(nextIn); // unbuffered, what follows is the session's
+                if (reply == null) {
+                    closeQuietly(next); // the server still had the old connection, it has dropped it now
+                    continue;
+                }
+                if (!reply.startsWith("/reconnected ")) {
+                    closeQuietly(next);
+                    break;
+                }
+                long serverReceived = Long.parseLong(reply.substring(13));
+                next.setSoTimeout(0);
+                synchronized (this) {
+                    if (closed || serverReceived > sent || serverReceived < sent - Math.min(sent, kept.length)) {
+                        closeQuietly(next);
+                        break;
+                    }
+                    resend(serverReceived, nextOut);
+                    socket = next;
+                    out = nextOut;
+                }
+                in = nextIn;
+                return true;
+            } catch (IOException | NumberFormatException e) {
+                closeQuietly(next); // not there yet, try again
+            }
+        }
+        token = null;
+        return false;
+    }
+
+    // What the server didn't get, from the kept bytes
+    private void resend(long from, OutputStream target) throws IOException {
+        for (long position = from; position < sent; ) {
+            int index = (int) (position % kept.length);
+            int length = (int) Math.min(sent - position, kept.length - index);
+            target.write(kept, index, length);
+            position += length;
+        }
+        target.flush();
+    }
+
+    private void keep(byte[] bytes, int offset, int length) {
+        for (int i = Math.max(0, length - kept.length); i < length; ) {
+            int index = (int) ((sent + i) % kept.length);
+            int count = Math.min(length - i, kept.length - index);
+            System.arraycopy(bytes, offset + i, kept, index, count);
+            i += count;
+        }
+        sent += length;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // it's going anyway
+        }
+    }
+
+    private class SessionInput extends InputStream {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            while (true) {
+                int n;
+                try {
+                    n = in.read(bytes, offset, length);
+                } catch (IOException e) {
+                    if (closed || token == null) {
+                        throw e;
+                    }
+                    n = -1;
+                }
+                if (n > 0) {
+                    received += n;
+                    return n;
+                }
+                if (closed || token == null || !reconnect()) {
+                    return -1;
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            ClientSession.this.close();
+        }
+    }
+
+    private class SessionOutput extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            synchronized (ClientSession.this) {
+                if (closed) {
+                    throw new IOException("Connection closed");
+                }
+                keep(bytes, offset, length);
+                if (out == null) {
+                    return; // reconnecting, it goes out with the rest the server missed
+                }
+                try {
+                    out.write(bytes, offset, length);
+                } catch (IOException e) {
+                    if (token == null) {
+                        throw e;
+                    }
+                    out = null;
+                    closeQuietly(socket); // the reader runs into the closed socket and reconnects
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (ClientSession.this) {
+                if (out == null) {
+                    return;
+                }
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    if (token == null) {
+                        throw e;
+                    }
+                    out = null;
+                    closeQuietly(socket);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            ClientSession.this.close();
+        }
+    }
+}
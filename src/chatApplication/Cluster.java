@@ -0,0 +1,178 @@
+package chatApplication;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// This node's view of the other server nodes. Every node tells the others which usernames it holds and
+// passes on what its users say, so a user on any node sees the same chat and can message anyone.
+//
+// Usernames stay unique without asking anyone first: a login checks the names the other nodes have
+// announced and then announces its own claim. If two nodes give out the same name at the same time, both
+// hear of the other claim and the older one wins (claim time, then node id, so every node agrees); the
+// loser disconnects its user as if the name had been taken from the start.
+class Cluster implements ClusterTransport.Receiver {
+    // Messages between nodes
+    private static final String JOIN = "JOIN";   // <claim time> <username>
+    private static final String LEAVE = "LEAVE"; // <username>
+    private static final String SAY = "SAY";     // <journal kind> <line>, a broadcast
+    private static final String ROOM = "ROOM";   // <room> <line>
+    private static final String TELL = "TELL";   // <sender> <recipient> <text>, a private message
+
+    // What the server does with news from other nodes, called from the transport's threads
+    interface Listener {
+        void onBroadcast(byte journalKind, String line);
+
+        void onRoomMessage(String room, String line);
+
+        void onPrivateMessage(String sender, String recipient, String text);
+
+        // Someone logged in or out on another node
+        void onPresenceChanged(String username);
+
+        // An older claim from another node won, the local user with that name has to go
+        void onUsernameTaken(String username);
+    }
+
+    private record Claim(String node, long time) {
+        boolean winsOver(Claim other) {
+            return time != other.time ? time < other.time : node.compareTo(other.node) < 0;
+        }
+    }
+
+    private final ClusterTransport transport;
+    private final Listener listener;
+    private final Map<String, Claim> local = new HashMap<>(); // guarded by this
+    private final ConcurrentHashMap<String, Claim> remote = new ConcurrentHashMap<>(); // written under this
+
+    Cluster(ClusterTransport transport, Listener listener) {
+        this.transport = transport;
+        this.listener = listener;
+    }
+
+    void start() throws IOException {
+        transport.start(this);
+    }
+
+    void close() {
+        transport.close();
+    }
+
+    String nodeId() {
+        return transport.nodeId();
+    }
+
+    // Returns false if the name is in use on this node or any other we know of
+    synchronized boolean claim(String username) {
+        if (local.containsKey(username) || remote.containsKey(username)) {
+            return false;
+        }
+        Claim claim = new Claim(transport.nodeId(), System.currentTimeMillis());
+        local.put(username, claim);
+        transport.sendToAll(JOIN, Long.toString(claim.time), username);
+        return true;
+    }
+
+    // Returns false if the name had already been taken over by another node
+    synchronized boolean release(String username) {
+        if (local.remove(username) == null) {
+            return false;
+        }
+        transport.sendToAll(LEAVE, username);
+        return true;
+    }
+
+    boolean isRemoteUser(String username) {
+        return remote.containsKey(username);
+    }
+
+    void broadcast(byte journalKind, String line) {
+        transport.sendToAll(SAY, Byte.toString(journalKind), line);
+    }
+
+    void roomMessage(String room, String line) {
+        transport.sendToAll(ROOM, room, line);
+    }
+
+    // Returns false if no other node has the recipient
+    boolean tell(String sender, String recipient, String text) {
+        Claim claim = remote.get(recipient);
+        if (claim == null) {
+            return false;
+        }
+        transport.sendTo(claim.node, TELL, sender, recipient, text);
+        return true;
+    }
+
+    // Under the same lock as claim and release, so the node gets every change after this snapshot
+    @Override
+    public synchronized void onPeerUp(String node) {
+        for (Map.Entry<String, Claim> entry : local.entrySet()) {
+            transport.sendTo(node, JOIN, Long.toString(entry.getValue().time), entry.getKey());
+        }
+    }
+
+    @Override
+    public void onPeerDown(String node) {
+        List<String> gone = new ArrayList<>();
+        synchronized (this) {
+            remote.entrySet().removeIf(entry -> {
+                if (entry.getValue().node.equals(node)) {
+                    gone.add(entry.getKey());
+                    return true;
+                }
+                return false;
+            });
+        }
+        gone.forEach(listener::onPresenceChanged);
+    }
+
+    @Override
+    public void onMessage(String node, String[] message) {
+        switch (message[0]) {
+            case JOIN -> onClaim(message[2], new Claim(node, Long.parseLong(message[1])));
+            case LEAVE -> onRelease(message[1], node);
+            case SAY -> listener.onBroadcast(Byte.parseByte(message[1]), message[2]);
+            case ROOM -> listener.onRoomMessage(message[1], message[2]);
+            case TELL -> listener.onPrivateMessage(message[1], message[2], message[3]);
+            default -> Log.warn("cluster.message.unknown", "node", node, "type", message[0]);
+        }
+    }
+
+    private void onClaim(String username, Claim claim) {
+        boolean taken = false;
+        synchronized (this) {
+            Claim mine = local.get(username);
+            if (mine != null) {
+                if (mine.winsOver(claim)) {
+                    return; // the other node drops its user when our claim reaches it
+                }
+                local.remove(username);
+                taken = true;
+            }
+            Claim known = remote.get(username);
+            if (known != null && !known.node.equals(claim.node) && known.winsOver(claim)) {
+                return;
+            }
+            remote.put(username, claim);
+        }
+        if (taken) {
+            listener.onUsernameTaken(username);
+        }
+        listener.onPresenceChanged(username);
+    }
+
+    private void onRelease(String username, String node) {
+        synchronized (this) {
+            Claim claim = remote.get(username);
+            if (claim == null || !claim.node.equals(node)) {
+                return;
+            }
+            remote.remove(username);
+        }
+        listener.onPresenceChanged(username);
+    }
+}
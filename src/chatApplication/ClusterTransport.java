@@ -0,0 +1,29 @@
+package chatApplication;
+
+import java.io.IOException;
+
+// Carries Cluster messages between server nodes. A message is a list of strings, its meaning is up to
+// Cluster. Sending never blocks: a message to a node that is down or can't keep up is dropped, and the
+// node is told everything it needs again when its link comes back up (onPeerUp).
+interface ClusterTransport {
+    String nodeId();
+
+    void start(Receiver receiver) throws IOException;
+
+    void sendToAll(String... message);
+
+    void sendTo(String node, String... message);
+
+    void close();
+
+    // Calls for one peer never run concurrently and arrive in the order the peer sent them
+    interface Receiver {
+        // Messages to node can be sent from now on, this is where the node learns our state
+        void onPeerUp(String node);
+
+        // The node left or its link broke, whatever it told us is stale
+        void onPeerDown(String node);
+
+        void onMessage(String node, String[] message);
+    }
+}
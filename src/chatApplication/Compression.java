@@ -0,0 +1,171 @@
+package chatApplication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Per-message compression for the binary protocol. A client offers it by sending
+// HANDSHAKE + " " + NAME; if the server answers with the same line, both sides may send compressed
+// frames from then on. A compressed frame has COMPRESSED set in its type byte and the payload
+//
+//   [original payload length: 4 bytes][raw deflate of the original payload]
+//
+// Each frame is compressed on its own, nothing is carried over from one frame to the next, so a broadcast
+// is compressed once and the same bytes go to every recipient that asked for compression. Short chat lines
+// gain little from that alone, so both sides preset DICTIONARY, strings chat traffic is full of. Payloads
+// under the threshold, and those deflate doesn't make smaller, are sent as they are.
+//
+// Deflaters and inflaters hold native memory and are expensive to set up; they are pooled rather than
+// kept per thread, since the virtual-thread engine has a thread per connection.
+final class Compression {
+    static final String NAME = "deflate/1"; // a different dictionary needs a different name
+    static final byte COMPRESSED = (byte) 0x80;
+    static final int DEFAULT_THRESHOLD = 256; // payload bytes
+
+    private static final int POOLED_FRAME = 64 * 1024; // BufferPool.SHARED's largest class
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    // The most common strings go last, deflate reaches them with the shortest distances
+    private static final byte[] DICTIONARY = (
+            "https://www. .com .org .pdf .png .jpg .txt /history /older /rooms /leave /join /get /ack /resume "
+            + "/upload /filedata /chunk /users /presence /error /msgto /to /quit sha256: "
+            + "Thanks thank you please could would should because really something anything about there "
+            + "their which when what where have that this with from will just like know think here "
+            + "not but are you the and for it's I'm don't can't "
+            + " joined the room left the room connected disconnected (private): ")
+            .getBytes(StandardCharsets.UTF_8);
+
+    // Only ever as many as were in use at the same time
+    private static final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private static final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+
+    private Compression() {
+    }
+
+    // The frame compressed, if its payload has at least threshold bytes and deflate shrinks it; otherwise
+    // the frame itself, with one more reference
+    static Frame compress(Frame frame, int threshold) {
+        ByteBuffer view = frame.view();
+        if (view.remaining() - BinaryProtocol.HEADER_LENGTH < threshold) {
+            return frame.retain();
+        }
+        byte type = view.get(1);
+        ByteBuffer compressed = compress(type, EMPTY, view.position(BinaryProtocol.HEADER_LENGTH));
+        return compressed == null ? frame.retain() : Frame.pooled(compressed);
+    }
+
+    // A whole compressed frame of the type whose payload is head followed by body, in a buffer from
+    // BufferPool.SHARED; null if that wouldn't be smaller than sending the payload as it is. The
+    // buffers' positions are left alone.
+    static ByteBuffer compress(byte type, ByteBuffer head, ByteBuffer body) {
+        int length = head.remaining() + body.remaining();
+        // Room for less than the original; for payloads just over a pooled buffer (whole file chunks)
+        // no more than fits in one
+        int room = Math.min(length - 5, Math.max(POOLED_FRAME - BinaryProtocol.HEADER_LENGTH - 4, length / 2));
+        if (room <= 0) {
+            return null;
+        }
+        ByteBuffer frame = BufferPool.SHARED.acquire(BinaryProtocol.HEADER_LENGTH + 4 + room);
+        frame.position(BinaryProtocol.HEADER_LENGTH + 4).limit(BinaryProtocol.HEADER_LENGTH + 4 + room);
+        Deflater deflater = deflater();
+        try {
+            deflater.setInput(head.duplicate());
+            while (!deflater.needsInput() && frame.hasRemaining()) {
+                deflater.deflate(frame);
+            }
+            deflater.setInput(body.duplicate());
+            deflater.finish();
+            while (!deflater.finished() && frame.hasRemaining()) {
+                deflater.deflate(frame);
+            }
+            if (!deflater.finished()) {
+                BufferPool.SHARED.release(frame); // doesn't compress, or not enough to be worth it
+                return null;
+            }
+        } finally {
+            deflater.reset();
+            deflater.setDictionary(DICTIONARY);
+            deflaters.offer(deflater);
+        }
+        int payloadLength = frame.position() - BinaryProtocol.HEADER_LENGTH;
+        frame.put(0, BinaryProtocol.VERSION).put(1, (byte) (type | COMPRESSED)).putInt(2, payloadLength).putInt(6, length);
+        Metrics.SERVER.framesCompressed.increment();
+        Metrics.SERVER.compressionSavedBytes.add(length - payloadLength);
+        return frame.flip();
+    }
+
+    // The original payload of a compressed frame. It may not inflate to more than MAX_PAYLOAD_LENGTH,
+    // nor to anything but the length it announces.
+    static ByteBuffer decompress(ByteBuffer payload) throws IOException {
+        if (payload.remaining() < 4) {
+            throw new IOException("Truncated compressed frame");
+        }
+        int length = payload.getInt();
+        if (length < 0 || length > BinaryProtocol.MAX_PAYLOAD_LENGTH) {
+            throw new IOException("Invalid uncompressed length " + length);
+        }
+        ByteBuffer original = ByteBuffer.allocate(length + 1); // one byte more shows a frame that inflates to more
+        Inflater inflater = inflater();
+        try {
+            inflater.setInput(payload);
+            while (!inflater.finished()) {
+                if (inflater.inflate(original) == 0 && (inflater.needsInput() || !original.hasRemaining())) {
+                    break;
+                }
+            }
+            if (!inflater.finished() || original.position() != length) {
+                throw new IOException("Corrupt compressed frame");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed frame", e);
+        } finally {
+            inflater.reset();
+            inflater.setDictionary(DICTIONARY);
+            inflaters.offer(inflater);
+        }
+        return original.flip();
+    }
+
+    // Formats that are compressed already, recognised by their first bytes: PNG, JPEG, PDF (its content
+    // streams are deflated), ZIP and GZIP. Deflating them again costs CPU and saves nothing.
+    static boolean isCompressedFormat(ByteBuffer head) {
+        return startsWith(head, 0x89, 'P', 'N', 'G')
+                || startsWith(head, 0xFF, 0xD8, 0xFF)
+                || startsWith(head, '%', 'P', 'D', 'F')
+                || startsWith(head, 'P', 'K', 3, 4)
+                || startsWith(head, 0x1F, 0x8B);
+    }
+
+    private static boolean startsWith(ByteBuffer head, int... magic) {
+        if (head.remaining() < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if ((head.get(head.position() + i) & 0xFF) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Deflater deflater() {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            deflater.setDictionary(DICTIONARY);
+        }
+        return deflater;
+    }
+
+    private static Inflater inflater() {
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+            inflater.setDictionary(DICTIONARY);
+        }
+        return inflater;
+    }
+}
@@ -0,0 +1,30 @@
+package chatApplication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.Function;
+
+// Accepts client sockets and moves bytes between them and their ConnectionHandler.
+// The handler callbacks of one connection are never called concurrently.
+interface ConnectionEngine {
+
+    // Listens on the port. Clients can connect from here on, they wait in the backlog until start.
+    void bind() throws IOException;
+
+    // Binds first unless bind was called
+    void start(Function<Transport, Listener> listenerFactory) throws IOException;
+
+    // Closes the listening socket, the connections carry on
+    void stopAccepting();
+
+    void stop();
+
+    interface Listener {
+        void onOpen();
+
+        // The buffer is only valid for the duration of the call.
+        void onRead(ByteBuffer data);
+
+        void onClose();
+    }
+}
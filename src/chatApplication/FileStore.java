@@ -0,0 +1,27 @@
+package chatApplication;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+// Where the files users send are kept. Content is stored once per SHA-256 digest, however often and under
+// whatever names it is uploaded, and an index maps every upload (uploader, name, time) to its digest.
+// Implementations are shared by all connections and must be thread safe.
+interface FileStore {
+
+    // An upload into the store. A resumable one continues from whatever an interrupted attempt by the same
+    // uploader left behind.
+    IncomingFile receive(String uploader, String fileName, long size, boolean resumable) throws IOException;
+
+    // Keeps the content of a finished upload, unless the store already has it, and indexes the upload
+    StoredFile commit(String uploader, IncomingFile upload) throws IOException;
+
+    // Indexes an upload of content the store already has without receiving it again.
+    // Returns null if the store doesn't have that content.
+    StoredFile link(String uploader, String fileName, long size, String digest) throws IOException;
+
+    // The most recent upload with that name, or null
+    StoredFile lookup(String fileName);
+
+    record StoredFile(String uploader, String fileName, long size, String digest, long time, Path path) {
+    }
+}
@@ -0,0 +1,172 @@
+package chatApplication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// An outbound message encoded to bytes once and shared by every connection it is sent to.
+// Frames are reference counted: whoever creates one owns a reference and releases it when done,
+// Transport.write takes its own reference for as long as the frame sits in the outbound queue.
+//
+// A frame can also stand for a range of a file. The writer then sends it with FileChannel.transferTo,
+// so the bytes go from the page cache to the socket without passing through the heap. A file region
+// tracks its own progress and must only be written to one connection.
+final class Frame {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final ByteBuffer buffer; // read-only view of the encoded bytes, never moved
+    private final ByteBuffer pooled; // the buffer to give back to the pool, null if not pooled
+    private final AtomicInteger references = new AtomicInteger(1);
+    private volatile boolean droppable; // a chat line a DROP_ overflow policy may discard, see OutboundQueue
+
+    // File regions only
+    private final FileChannel file;
+    private final long start;
+    private long position;
+    private final long end;
+    private final Runnable onRelease;
+
+    private Frame(ByteBuffer buffer, ByteBuffer pooled) {
+        this.buffer = buffer.asReadOnlyBuffer();
+        this.pooled = pooled;
+        this.file = null;
+        this.start = 0;
+        this.end = 0;
+        this.onRelease = null;
+    }
+
+    private Frame(FileChannel file, long position, long count, Runnable onRelease) {
+        this.buffer = EMPTY;
+        this.pooled = null;
+        this.file = file;
+        this.start = position;
+        this.position = position;
+        this.end = position + count;
+        this.onRelease = onRelease;
+    }
+
+    // Encodes one line of the text protocol
+    static Frame text(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = BufferPool.SHARED.acquire(bytes.length + 1);
+        buffer.put(bytes).put((byte) '\n').flip();
+        return new Frame(buffer, buffer);
+    }
+
+    // Takes over a buffer from BufferPool.SHARED that already holds the encoded bytes
+    static Frame pooled(ByteBuffer encoded) {
+        return new Frame(encoded, encoded);
+    }
+
+    // Wraps bytes that are already encoded, without copying them
+    static Frame wrap(ByteBuffer encoded) {
+        return new Frame(encoded, null);
+    }
+
+    // count bytes of the file starting at position; onRelease runs when the frame is released for the last time
+    static Frame fileRegion(FileChannel file, long position, long count, Runnable onRelease) {
+        return new Frame(file, position, count, onRelease);
+    }
+
+    // A private cursor over the shared bytes for one recipient. No bytes are copied.
+    // File regions have an empty view, their bytes are sent with transferTo.
+    ByteBuffer view() {
+        return file == null ? buffer.duplicate() : EMPTY;
+    }
+
+    long length() {
+        return file == null ? buffer.remaining() : end - position;
+    }
+
+    // All of the frame's bytes, however many of a file region have been sent already
+    long size() {
+        return file == null ? buffer.remaining() : end - start;
+    }
+
+    // The frame's bytes from skip on, as a frame of their own that the caller releases. A file region
+    // gets a new region over the same part of the file, which holds on to this one (and so keeps the
+    // file open) until it is released itself.
+    Frame from(long skip) {
+        if (file != null) {
+            retain();
+            return new Frame(file, start + skip, end - start - skip, this::release);
+        }
+        if (skip == 0) {
+            return retain();
+        }
+        ByteBuffer rest = buffer.duplicate();
+        rest.position(rest.position() + (int) skip);
+        ByteBuffer copy = BufferPool.SHARED.acquire(rest.remaining());
+        return pooled(copy.put(rest).flip());
+    }
+
+    // For frames of messages a client can do without; protocol frames and file regions never are
+    Frame droppable() {
+        droppable = true;
+        return this;
+    }
+
+    boolean isDroppable() {
+        return droppable;
+    }
+
+    boolean isFileRegion() {
+        return file != null;
+    }
+
+    // Sends as much of the region as the channel accepts, returns true once all of it has been sent
+    boolean transferTo(WritableByteChannel target) throws IOException {
+        while (position < end) {
+            long sent = file.transferTo(position, end - position, target);
+            if (sent <= 0) {
+                if (position >= file.size()) {
+                    throw new IOException("File shrank while it was being sent");
+                }
+                return false; // socket buffer is full
+            }
+            position += sent;
+            Metrics.SERVER.bytesOut.add(sent);
+            Metrics.SERVER.fileBytesSent.add(sent);
+        }
+        return true;
+    }
+
+    // Copies the next part of the region into target, for connections that encrypt (TLS) and so can't
+    // use transferTo
+    void read(ByteBuffer target) throws IOException {
+        int limit = target.limit();
+        target.limit(target.position() + (int) Math.min(target.remaining(), end - position));
+        int read = file.read(target, position);
+        target.limit(limit);
+        if (read < 0) {
+            throw new IOException("File shrank while it was being sent");
+        }
+        position += read;
+        Metrics.SERVER.fileBytesSent.add(read);
+    }
+
+    Frame retain() {
+        if (references.getAndIncrement() <= 0) {
+            references.getAndDecrement();
+            throw new IllegalStateException("Frame already released");
+        }
+        return this;
+    }
+
+    void release() {
+        int remaining = references.decrementAndGet();
+        if (remaining == 0) {
+            if (pooled != null) {
+                BufferPool.SHARED.release(pooled);
+            }
+            if (onRelease != null) {
+                onRelease.run();
+            }
+        } else if (remaining < 0) {
+            throw new IllegalStateException("Frame released too often");
+        }
+    }
+}
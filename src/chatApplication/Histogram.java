@@ -0,0 +1,82 @@
+package chatApplication;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Counts of non-negative values (latencies in nanoseconds, sizes) in log-linear buckets, in the manner of
+// HdrHistogram: every power of two is split into 128 equal buckets, so a value read back is within 1% of
+// what was recorded whatever its magnitude, in a fixed 57 KB. Recording is a single atomic increment and
+// safe from any thread; reads see a consistent enough view for reporting.
+class Histogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    void record(long value) {
+        counts.incrementAndGet(index(Math.max(0, value)));
+    }
+
+    long count() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    // The value below which the given fraction of the recorded values lie, e.g. 0.99 for p99; 0 if empty
+    long percentile(double fraction) {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        long rank = (long) Math.ceil(fraction * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= Math.max(rank, 1) && snapshot[i] > 0) {
+                return highestValue(i);
+            }
+        }
+        return 0;
+    }
+
+    long max() {
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            if (counts.get(i) > 0) {
+                return highestValue(i);
+            }
+        }
+        return 0;
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+    }
+
+    // Values below 128 have a bucket each; above that the top 8 bits of the value pick the bucket
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int group = exponent - SUB_BUCKET_BITS + 1;
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+        return group * SUB_BUCKETS + subBucket;
+    }
+
+    private static long highestValue(int index) {
+        int group = index >>> SUB_BUCKET_BITS;
+        long subBucket = index & (SUB_BUCKETS - 1);
+        if (group == 0) {
+            return subBucket;
+        }
+        long lowest = (SUB_BUCKETS + subBucket) << (group - 1);
+        return lowest + (1L << (group - 1)) - 1;
+    }
+}
@@ -0,0 +1,158 @@
+package chatApplication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+// Streams one incoming file (an upload on the server, a download on the client) straight to disk as its
+// chunks arrive, so a transfer costs the same memory whatever the file size. The bytes go to a temp file
+// in the target directory that is renamed into place once the last byte is in: readers never see a half
+// written file and a broken transfer leaves nothing behind.
+//
+// Chunked transfers use a part file with a fixed name instead, which is kept when the connection drops so
+// the next attempt can pick up where this one stopped.
+//
+// The content is hashed with SHA-256 as it is written, see FileStore.
+class IncomingFile {
+    final String fileName;
+    final long size;
+    private final Path target;
+    private final Path temp;
+    private final FileChannel channel;
+    private final MessageDigest sha256 = newDigest();
+    private String digest;
+    private long received;
+
+    private IncomingFile(String fileName, long size, Path target, Path temp, FileChannel channel) {
+        this.fileName = fileName;
+        this.size = size;
+        this.target = target;
+        this.temp = temp;
+        this.channel = channel;
+    }
+
+    static IncomingFile begin(Path directory, String fileName, long size) throws IOException {
+        Files.createDirectories(directory);
+        Path target = directory.resolve(fileName);
+        Path temp = Files.createTempFile(directory, ".incoming-", ".part");
+        FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+        return new IncomingFile(fileName, size, target, temp, channel);
+    }
+
+    // Continues a chunked transfer from what an earlier attempt left in the part file
+    static IncomingFile resume(Path directory, String partName, String fileName, long size) throws IOException {
+        Files.createDirectories(directory);
+        Path temp = directory.resolve(partName);
+        FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        IncomingFile incoming = new IncomingFile(fileName, size, directory.resolve(fileName), temp, channel);
+        channel.truncate(Math.min(channel.size(), size));
+        incoming.hashExisting();
+        return incoming;
+    }
+
+    // The digest of the part an earlier attempt left behind has to be rebuilt before new chunks are added
+    private void hashExisting() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BinaryProtocol.FILE_CHUNK_SIZE);
+        long length = channel.size();
+        while (received < length) {
+            int read = channel.read(buffer.clear(), received);
+            if (read < 0) {
+                break;
+            }
+            sha256.update(buffer.flip());
+            received += read;
+        }
+        channel.position(received);
+    }
+
+    // Name of the part file for a chunked transfer of the file; owner keeps two users' uploads apart
+    static String partName(String owner, String fileName, long size) {
+        String prefix = owner == null ? "" : owner.replaceAll("[\\\\/:]", "_") + "-";
+        return "." + prefix + size + "-" + fileName + ".part";
+    }
+
+    // Writes the chunk, returns true once all announced bytes have arrived
+    boolean write(ByteBuffer data) throws IOException {
+        if (received + data.remaining() > size) {
+            throw new IOException("File " + fileName + " is larger than announced");
+        }
+        sha256.update(data.duplicate());
+        while (data.hasRemaining()) {
+            received += channel.write(data);
+        }
+        return received == size;
+    }
+
+    boolean isComplete() {
+        return received == size;
+    }
+
+    long received() {
+        return received;
+    }
+
+    // Hex SHA-256 of the content, only meaningful once the file is complete
+    String digest() {
+        if (digest == null) {
+            digest = HexFormat.of().formatHex(sha256.digest());
+        }
+        return digest;
+    }
+
+    // Moves the finished file into place, replacing an older file of the same name
+    Path complete() throws IOException {
+        return moveTo(target);
+    }
+
+    Path moveTo(Path destination) throws IOException {
+        channel.close();
+        try {
+            Files.move(temp, destination, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, destination, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return destination;
+    }
+
+    // Closes the file but keeps what has been received so far for a later resume
+    void suspend() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.error("file.close.failed", e, "name", fileName);
+        }
+    }
+
+    void abort() {
+        try {
+            channel.close();
+            Files.deleteIfExists(temp);
+        } catch (IOException e) {
+            Log.error("file.abort.failed", e, "name", fileName, "temp", temp);
+        }
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JDK has SHA-256
+        }
+    }
+
+    // Strips any directory part so a client can't write or read outside the file directory
+    static String safeFileName(String name) {
+        if (name == null) {
+            return null;
+        }
+        String baseName = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1).trim();
+        if (baseName.isEmpty() || baseName.equals(".") || baseName.equals("..")) {
+            return null;
+        }
+        return baseName;
+    }
+}
@@ -0,0 +1,64 @@
+package chatApplication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Incremental replacement for BufferedReader.readLine that works on the byte chunks an engine hands us.
+// Only the bytes of an unfinished line are kept between calls.
+class LineDecoder {
+    private final int maxLineLength;
+    private byte[] partial = new byte[0];
+    private int partialLength;
+
+    LineDecoder(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
+
+    // Returns the next complete line (without the line terminator), or null once the buffer is used up.
+    String next(ByteBuffer data) throws IOException {
+        int start = data.position();
+        for (int i = start; i < data.limit(); i++) {
+            if (data.get(i) == '\n') {
+                int length = i - start;
+                String line;
+                if (partialLength == 0) {
+                    line = decode(data, start, length);
+                } else {
+                    append(data, start, length);
+                    line = decode(ByteBuffer.wrap(partial), 0, partialLength);
+                    partialLength = 0;
+                    if (partial.length > 4096) {
+                        partial = new byte[0]; // don't keep a large buffer around on an idle connection
+                    }
+                }
+                data.position(i + 1);
+                return line;
+            }
+        }
+        append(data, start, data.limit() - start);
+        data.position(data.limit());
+        return null;
+    }
+
+    private void append(ByteBuffer data, int from, int length) throws IOException {
+        if (partialLength + length > maxLineLength) {
+            throw new IOException("Line exceeds " + maxLineLength + " bytes");
+        }
+        if (partial.length < partialLength + length) {
+            partial = Arrays.copyOf(partial, Math.max(partialLength + length, Math.max(64, partial.length * 2)));
+        }
+        data.get(from, partial, partialLength, length);
+        partialLength += length;
+    }
+
+    private static String decode(ByteBuffer data, int from, int length) {
+        if (length > 0 && data.get(from + length - 1) == '\r') {
+            length--;
+        }
+        byte[] bytes = new byte[length];
+        data.get(from, bytes, 0, length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,86 @@
+package chatApplication;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+// Nodes in the same JVM, connected through a static hub. A node that is alone in the hub is a cluster of
+// one, which is what a server without chat.cluster.* settings runs as. Each node gets its messages on its
+// own thread, in the order they were sent.
+class LocalClusterTransport implements ClusterTransport {
+    private static final Map<String, LocalClusterTransport> nodes = new ConcurrentHashMap<>();
+
+    private final String nodeId;
+    private ExecutorService inbox;
+    private Receiver receiver;
+
+    LocalClusterTransport(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    @Override
+    public String nodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public void start(Receiver receiver) {
+        this.receiver = receiver;
+        this.inbox = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cluster-" + nodeId);
+            thread.setDaemon(true);
+            return thread;
+        });
+        synchronized (nodes) {
+            if (nodes.putIfAbsent(nodeId, this) != null) {
+                throw new IllegalStateException("Node " + nodeId + " is already running");
+            }
+            for (LocalClusterTransport other : nodes.values()) {
+                if (other != this) {
+                    other.deliver(() -> other.receiver.onPeerUp(nodeId));
+                    deliver(() -> receiver.onPeerUp(other.nodeId));
+                }
+            }
+        }
+    }
+
+    @Override
+    public void sendToAll(String... message) {
+        for (LocalClusterTransport other : nodes.values()) {
+            if (other != this) {
+                other.deliver(() -> other.receiver.onMessage(nodeId, message));
+            }
+        }
+    }
+
+    @Override
+    public void sendTo(String node, String... message) {
+        LocalClusterTransport other = nodes.get(node);
+        if (other != null && other != this) {
+            other.deliver(() -> other.receiver.onMessage(nodeId, message));
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (nodes) {
+            if (!nodes.remove(nodeId, this)) {
+                return;
+            }
+            for (LocalClusterTransport other : nodes.values()) {
+                other.deliver(() -> other.receiver.onPeerDown(nodeId));
+            }
+        }
+        inbox.shutdown();
+    }
+
+    private void deliver(Runnable task) {
+        try {
+            inbox.execute(task);
+        } catch (RejectedExecutionException e) {
+            // closed, it doesn't want messages any more
+        }
+    }
+}
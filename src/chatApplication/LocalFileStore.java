@@ -0,0 +1,122 @@
+package chatApplication;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// FileStore in a local directory:
+//
+//   blobs/ab/abcdef...  the content, named by its digest
+//   incoming/           uploads that haven't finished yet
+//   index.log           one tab separated line per upload: time, uploader, size, digest, name
+//
+// The index is only ever appended to and is read back at startup. Only the latest upload of every name is
+// kept in memory, which is all lookup needs.
+class LocalFileStore implements FileStore {
+    private final Path blobs;
+    private final Path incoming;
+    private final Path index;
+    private final Map<String, StoredFile> latestByName = new ConcurrentHashMap<>();
+
+    LocalFileStore(Path root) throws IOException {
+        blobs = root.resolve("blobs");
+        incoming = root.resolve("incoming");
+        index = root.resolve("index.log");
+        Files.createDirectories(blobs);
+        Files.createDirectories(incoming);
+        loadIndex();
+    }
+
+    @Override
+    public IncomingFile receive(String uploader, String fileName, long size, boolean resumable) throws IOException {
+        if (resumable) {
+            return IncomingFile.resume(incoming, IncomingFile.partName(uploader, fileName, size), fileName, size);
+        }
+        return IncomingFile.begin(incoming, fileName, size);
+    }
+
+    @Override
+    public StoredFile commit(String uploader, IncomingFile upload) throws IOException {
+        String digest = upload.digest();
+        Path blob = blobPath(digest);
+        if (Files.exists(blob)) {
+            upload.abort(); // we already have this content, the copy just received isn't needed
+        } else {
+            Files.createDirectories(blob.getParent());
+            upload.moveTo(blob);
+        }
+        return record(uploader, upload.fileName, upload.size, digest);
+    }
+
+    @Override
+    public StoredFile link(String uploader, String fileName, long size, String digest) throws IOException {
+        if (!isDigest(digest)) {
+            return null;
+        }
+        Path blob = blobPath(digest);
+        if (!Files.isRegularFile(blob) || Files.size(blob) != size) {
+            return null;
+        }
+        return record(uploader, fileName, size, digest);
+    }
+
+    @Override
+    public StoredFile lookup(String fileName) {
+        return latestByName.get(fileName);
+    }
+
+    private synchronized StoredFile record(String uploader, String fileName, long size, String digest) throws IOException {
+        StoredFile file = new StoredFile(uploader, fileName, size, digest, System.currentTimeMillis(), blobPath(digest));
+        String line = file.time() + "\t" + field(uploader) + "\t" + size + "\t" + digest + "\t" + field(fileName) + "\n";
+        Files.writeString(index, line, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        latestByName.put(fileName, file);
+        return file;
+    }
+
+    private void loadIndex() throws IOException {
+        if (!Files.exists(index)) {
+            return;
+        }
+        List<String> lines = Files.readAllLines(index, StandardCharsets.UTF_8);
+        for (String line : lines) {
+            String[] fields = line.split("\t", 5);
+            if (fields.length < 5 || !isDigest(fields[3])) {
+                continue; // e.g. the last line of a crash during an append
+            }
+            try {
+                StoredFile file = new StoredFile(fields[1], fields[4], Long.parseLong(fields[2]), fields[3],
+                        Long.parseLong(fields[0]), blobPath(fields[3]));
+                latestByName.put(file.fileName(), file);
+            } catch (NumberFormatException e) {
+                Log.warn("files.index.skipped", "line", line);
+            }
+        }
+    }
+
+    private Path blobPath(String digest) {
+        return blobs.resolve(digest.substring(0, 2)).resolve(digest);
+    }
+
+    private static String field(String value) {
+        return value.replace('\t', ' ').replace('\n', ' ');
+    }
+
+    // Lower case hex SHA-256, anything else could point outside the blob directory
+    static boolean isDigest(String value) {
+        if (value == null || value.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
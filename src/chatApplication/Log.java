@@ -0,0 +1,295 @@
+package chatApplication;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+// The server's log. Logging an event only puts it into a RingBuffer; the log-writer thread formats it and
+// writes it to logs/server.log (rotated by size), to the console and to the tail listener (the GUI). A
+// connection thread therefore never waits for a console or disk. If the writer falls behind and the buffer
+// fills up, events are dropped and counted rather than slowing the server down.
+//
+// Every event is one line: time, level, event name, then key=value fields, e.g.
+//
+//   2026-10-18 14:03:07.512 INFO file.saved user=alice path=files/blobs/04/048c...
+//
+// Before start is called (in the client, the benchmarks and tools) events are written to the console
+// right away.
+class Log {
+    enum Level { INFO, WARN, ERROR }
+
+    private record Event(long time, Level level, String name, Object[] fields, Throwable error) {
+    }
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final LongAdder dropped = new LongAdder();
+    private static volatile Log instance;
+    private static final LineFormat consoleFormat = new LineFormat(); // guarded by itself, before start
+
+    private final RingBuffer<Event> buffer;
+    private volatile Level minimumLevel;
+    private final Path file;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private final boolean console;
+    private final LineFormat format = new LineFormat(); // writer thread only
+    private final Thread writer;
+    private volatile boolean idle; // the writer is parked, the next event unparks it
+    private volatile boolean stopping;
+    private volatile Consumer<String> tail;
+    private Writer out;
+    private long fileBytes;
+
+    private Log(ServerConfig config) throws IOException {
+        buffer = new RingBuffer<>(config.logBufferSize);
+        minimumLevel = config.logLevel;
+        file = config.logDirectory.resolve("server.log");
+        maxFileBytes = config.logMaxFileBytes;
+        maxFiles = config.logMaxFiles;
+        console = config.logConsole;
+        Files.createDirectories(config.logDirectory);
+        open();
+        writer = new Thread(this::run, "log-writer");
+        writer.setDaemon(true);
+    }
+
+    static void start(ServerConfig config) throws IOException {
+        Log log = new Log(config);
+        log.writer.start();
+        instance = log;
+    }
+
+    // Writes out what is still in the buffer, once the server's last event is in. Later events are lost.
+    static void stop() {
+        Log log = instance;
+        if (log != null) {
+            log.stopWriter();
+        }
+    }
+
+    // After a config reload
+    static void level(Level level) {
+        Log log = instance;
+        if (log != null) {
+            log.minimumLevel = level;
+        }
+    }
+
+    // Receives every line the writer writes (without stack traces), on the log-writer thread
+    static void tail(Consumer<String> listener) {
+        Log log = instance;
+        if (log != null) {
+            log.tail = listener;
+        }
+    }
+
+    // Events lost because the buffer was full
+    static long dropped() {
+        return dropped.sum();
+    }
+
+    // fields are key, value, key, value...
+    static void info(String event, Object... fields) {
+        log(Level.INFO, event, null, fields);
+    }
+
+    static void warn(String event, Object... fields) {
+        log(Level.WARN, event, null, fields);
+    }
+
+    static void error(String event, Throwable error, Object... fields) {
+        log(Level.ERROR, event, error, fields);
+    }
+
+    private static void log(Level level, String name, Throwable error, Object[] fields) {
+        Event event = new Event(System.currentTimeMillis(), level, name, fields, error);
+        Log log = instance;
+        if (log == null) {
+            synchronized (consoleFormat) {
+                (level == Level.INFO ? System.out : System.err).print(consoleFormat.format(event));
+            }
+            return;
+        }
+        if (level.compareTo(log.minimumLevel) < 0) {
+            return;
+        }
+        if (!log.buffer.offer(event)) {
+            dropped.increment();
+            return;
+        }
+        if (log.idle) {
+            LockSupport.unpark(log.writer);
+        }
+    }
+
+    private void run() {
+        while (true) {
+            Event event = buffer.poll();
+            if (event != null) {
+                write(event);
+                continue;
+            }
+            flush();
+            if (stopping) {
+                return;
+            }
+            idle = true;
+            if ((event = buffer.poll()) == null) { // an event that came in before idle was set
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+            idle = false;
+            if (event != null) {
+                write(event);
+            }
+        }
+    }
+
+    private void stopWriter() {
+        stopping = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(Event event) {
+        String text = format.format(event);
+        if (console) {
+            (event.level == Level.INFO ? System.out : System.err).print(text);
+        }
+        Consumer<String> listener = tail;
+        if (listener != null) {
+            listener.accept(text.substring(0, text.indexOf('\n')));
+        }
+        try {
+            out.write(text);
+            fileBytes += text.length(); // characters, close enough to bytes for rotation
+            if (fileBytes >= maxFileBytes) {
+                rotate();
+            }
+        } catch (IOException e) {
+            System.err.println("Cannot write " + file + ": " + e);
+        }
+    }
+
+    private void flush() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Cannot write " + file + ": " + e);
+        }
+    }
+
+    private void open() throws IOException {
+        out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8), 64 * 1024);
+        fileBytes = Files.size(file);
+    }
+
+    // server.log becomes server.log.1, server.log.1 becomes server.log.2 and so on; the oldest is deleted
+    private void rotate() throws IOException {
+        out.close();
+        Files.deleteIfExists(numbered(maxFiles - 1));
+        for (int i = maxFiles - 2; i >= 1; i--) {
+            Path older = numbered(i);
+            if (Files.exists(older)) {
+                Files.move(older, numbered(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (maxFiles > 1) {
+            Files.move(file, numbered(1), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(file);
+        }
+        open();
+    }
+
+    private Path numbered(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    // Formats events into lines. The date and time up to the second only change once a second, so they
+    // are formatted once and reused; the formatter itself is immutable and shared.
+    private static class LineFormat {
+        private static final DateTimeFormatter SECONDS =
+                DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+        private final StringBuilder line = new StringBuilder(256);
+        private long cachedSecond = Long.MIN_VALUE;
+        private String cachedPrefix;
+
+        String format(Event event) {
+            line.setLength(0);
+            long second = Math.floorDiv(event.time, 1000);
+            if (second != cachedSecond) {
+                cachedSecond = second;
+                cachedPrefix = SECONDS.format(Instant.ofEpochSecond(second));
+            }
+            int millis = Math.floorMod(event.time, 1000);
+            line.append(cachedPrefix).append('.');
+            if (millis < 100) {
+                line.append(millis < 10 ? "00" : "0");
+            }
+            line.append(millis).append(' ').append(event.level).append(' ').append(event.name);
+            Object[] fields = event.fields;
+            for (int i = 0; i + 1 < fields.length; i += 2) {
+                line.append(' ').append(fields[i]).append('=');
+                appendValue(String.valueOf(fields[i + 1]));
+            }
+            if (event.error != null) {
+                line.append(" error=");
+                appendValue(event.error.toString());
+            }
+            line.append('\n');
+            if (event.error != null) {
+                StringWriter trace = new StringWriter();
+                event.error.printStackTrace(new PrintWriter(trace));
+                line.append(trace);
+            }
+            return line.toString();
+        }
+
+        // Values with spaces, quotes or line breaks are quoted so every event stays on one line
+        private void appendValue(String value) {
+            boolean quote = value.isEmpty();
+            for (int i = 0; i < value.length() && !quote; i++) {
+                char c = value.charAt(i);
+                quote = c == ' ' || c == '"' || c == '=' || c < ' ';
+            }
+            if (!quote) {
+                line.append(value);
+                return;
+            }
+            line.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '"' -> line.append("\\\"");
+                    case '\\' -> line.append("\\\\");
+                    case '\n' -> line.append("\\n");
+                    case '\r' -> line.append("\\r");
+                    case '\t' -> line.append("\\t");
+                    default -> line.append(c);
+                }
+            }
+            line.append('"');
+        }
+    }
+}
@@ -0,0 +1,451 @@
+package chatApplication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+// Durable history of the broadcast messages, so clients that connect later (or after a restart) can be
+// shown what they missed.
+//
+// The journal is a directory of append-only segment files, each created at its full size and mapped into
+// memory. Appending copies a record into the mapping and returns; a background thread forces the written
+// range to disk every syncMillis, so one fsync covers every message appended in that interval (group
+// commit). A crash of the process loses nothing, a crash of the machine at most that interval.
+//
+// A record is
+//
+//   [length: 4][sequence: 8][time: 8][kind: 1][binary frame header: 6][UTF-8 text][\n]
+//
+// so both wire encodings of the message are already in the file: the binary CHAT frame is the header plus
+// the text, the text protocol line is the text plus the newline. Replay hands out Frames over those ranges
+// of the mapping, nothing is copied onto the heap.
+//
+// Sequence numbers increase by one per record. Every segment keeps a sparse in-memory index of the
+// position of every INDEX_INTERVAL-th record, so a replay start point is found with two binary searches
+// (segment, then index entry) and a short scan. Old segments are deleted by the retention settings, and
+// sealed segments older than compactAfterMillis are rewritten without their NOTICE records.
+class MessageJournal {
+    static final byte MESSAGE = 0; // chat lines, kept until retention removes them
+    static final byte NOTICE = 1;  // "x connected" and the like, dropped by compaction
+
+    private static final int HEADER_LENGTH = 27;
+    private static final int KIND_OFFSET = 20;
+    private static final int FRAME_OFFSET = 21;
+    private static final int INDEX_INTERVAL = 16;
+    private static final String SUFFIX = ".seg";
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long syncMillis;
+    private final int maxSegments;
+    private final long retentionMillis;
+    private final long compactAfterMillis;
+
+    // Sorted by first sequence, replaced as a whole (copy on write); the last one takes the appends
+    private volatile List<Segment> segments = new ArrayList<>();
+    private long nextSequence; // guarded by this
+    private boolean dirty;     // guarded by this
+
+    MessageJournal(Path directory, int segmentSize, long syncMillis, int maxSegments, long retentionMillis,
+                   long compactAfterMillis) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.syncMillis = syncMillis;
+        this.maxSegments = maxSegments;
+        this.retentionMillis = retentionMillis;
+        this.compactAfterMillis = compactAfterMillis;
+        Files.createDirectories(directory);
+        open();
+    }
+
+    private void open() throws IOException {
+        List<Path> all;
+        try (Stream<Path> list = Files.list(directory)) {
+            all = list.sorted().toList();
+        }
+        List<Path> files = new ArrayList<>();
+        for (Path file : all) {
+            if (file.getFileName().toString().endsWith(SUFFIX)) {
+                files.add(file);
+            } else if (file.getFileName().toString().endsWith(".compacting")) {
+                Files.delete(file); // a compaction that didn't finish, the segment itself is still intact
+            }
+        }
+        List<Segment> opened = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            opened.add(Segment.open(files.get(i), i == files.size() - 1 ? segmentSize : 0));
+        }
+        if (opened.isEmpty()) {
+            opened.add(Segment.create(directory, 0, segmentSize));
+        }
+        segments = opened;
+        nextSequence = opened.get(opened.size() - 1).nextSequence();
+    }
+
+    void start() {
+        Thread flusher = new Thread(this::runFlusher, "journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    // Records a broadcast line and returns its sequence number. Lines too long for a segment are not kept.
+    synchronized long append(byte kind, String line) {
+        byte[] text = BinaryProtocol.utf8(line);
+        int length = HEADER_LENGTH + text.length + 1;
+        if (length + 4 > segmentSize) {
+            return -1;
+        }
+        Segment active = segments.get(segments.size() - 1);
+        if (!active.hasRoom(length)) {
+            try {
+                active = roll();
+            } catch (IOException e) {
+                Log.error("journal.roll.failed", e);
+                return -1;
+            }
+        }
+        long sequence = nextSequence++;
+        active.append(sequence, System.currentTimeMillis(), kind, text, length);
+        dirty = true;
+        return sequence;
+    }
+
+    // The sequence number the next record will get
+    synchronized long nextSequence() {
+        return nextSequence;
+    }
+
+    // The oldest sequence retention has kept, older records are gone
+    long firstSequence() {
+        return segments.get(0).baseSequence;
+    }
+
+    // Hands out up to max frames, in the client's format, for the records from sequence from on. Returns the
+    // sequence to continue from. The caller owns the frames.
+    long replay(long from, int max, ProtocolCodec.Format format, Consumer<Frame> out) {
+        return scan(from, Long.MAX_VALUE, max,
+                (data, position, length) -> out.accept(frame(data, position, length, format)));
+    }
+
+    // Decodes up to max records from sequence from up to, but not including, to, with their time. For the
+    // rarer requests that need more than the wire encoding.
+    long replayText(long from, long to, int max, TextSink out) {
+        return scan(from, to, max, (data, position, length) -> out.accept(data.getLong(position + 12),
+                StandardCharsets.UTF_8.decode(data.slice(position + HEADER_LENGTH, length - HEADER_LENGTH - 1)).toString()));
+    }
+
+    interface TextSink {
+        void accept(long time, String line);
+    }
+
+    private interface RecordSink {
+        void accept(ByteBuffer data, int position, int length);
+    }
+
+    private long scan(long from, long to, int max, RecordSink out) {
+        List<Segment> snapshot;
+        long end;
+        synchronized (this) {
+            snapshot = segments;
+            end = Math.min(nextSequence, to);
+        }
+        long next = Math.max(from, 0);
+        int sent = 0;
+        for (int i = findSegment(snapshot, next); i < snapshot.size() && sent < max && next < end; i++) {
+            Segment segment = snapshot.get(i);
+            ByteBuffer data = segment.buffer.duplicate();
+            int position = segment.positionOf(next);
+            while (sent < max && position < segment.end()) {
+                long sequence = data.getLong(position + 4);
+                int length = data.getInt(position);
+                if (sequence >= end) {
+                    return next;
+                }
+                if (sequence >= next) {
+                    out.accept(data, position, length);
+                    sent++;
+                    next = sequence + 1;
+                }
+                position += length;
+            }
+        }
+        return next;
+    }
+
+    private static Frame frame(ByteBuffer data, int position, int length, ProtocolCodec.Format format) {
+        if (format == ProtocolCodec.Format.BINARY) {
+            return Frame.wrap(data.slice(position + FRAME_OFFSET, length - FRAME_OFFSET - 1));
+        }
+        return Frame.wrap(data.slice(position + HEADER_LENGTH, length - HEADER_LENGTH));
+    }
+
+    // Index of the last segment that can hold the sequence
+    private static int findSegment(List<Segment> list, long sequence) {
+        int low = 0;
+        int high = list.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (list.get(middle).baseSequence <= sequence) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    // The full segment is forced by the next sync like any other
+    private Segment roll() throws IOException {
+        Segment next = Segment.create(directory, nextSequence, segmentSize);
+        List<Segment> updated = new ArrayList<>(segments);
+        updated.add(next);
+        segments = updated;
+        return next;
+    }
+
+    private void runFlusher() {
+        long lastMaintenance = System.currentTimeMillis();
+        while (true) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(syncMillis);
+                sync();
+                if (System.currentTimeMillis() - lastMaintenance > TimeUnit.MINUTES.toMillis(1)) {
+                    lastMaintenance = System.currentTimeMillis();
+                    applyRetention();
+                    compact();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                Log.error("journal.maintenance.failed", e);
+            }
+        }
+    }
+
+    // One fsync for everything appended since the last one, also at shutdown
+    void sync() {
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            dirty = false;
+        }
+        for (Segment segment : segments) {
+            segment.force();
+        }
+    }
+
+    private void applyRetention() throws IOException {
+        long now = System.currentTimeMillis();
+        while (true) {
+            Segment oldest;
+            synchronized (this) {
+                if (segments.size() <= 1) {
+                    return;
+                }
+                oldest = segments.get(0);
+                boolean tooMany = maxSegments > 0 && segments.size() > maxSegments;
+                boolean tooOld = retentionMillis > 0 && oldest.lastTime < now - retentionMillis;
+                if (!tooMany && !tooOld) {
+                    return;
+                }
+                segments = new ArrayList<>(segments.subList(1, segments.size()));
+            }
+            // Replays still walking the segment keep their mapping, the file itself can go
+            Files.deleteIfExists(oldest.path);
+        }
+    }
+
+    private void compact() throws IOException {
+        if (compactAfterMillis <= 0) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - compactAfterMillis;
+        for (Segment segment : segments.subList(0, segments.size() - 1)) {
+            if (segment.notices > 0 && segment.lastTime < cutoff) {
+                Segment compacted = segment.withoutNotices();
+                synchronized (this) {
+                    List<Segment> updated = new ArrayList<>(segments);
+                    int index = updated.indexOf(segment);
+                    if (index < 0) {
+                        continue; // removed by retention meanwhile
+                    }
+                    updated.set(index, compacted);
+                    segments = updated;
+                }
+            }
+        }
+    }
+
+    // One segment file. Only the last segment of the journal is appended to, and only under the journal's lock.
+    private static final class Segment {
+        final Path path;
+        final long baseSequence; // from the file name, no record in the file has a lower sequence
+        final MappedByteBuffer buffer;
+        private volatile int end; // published after the record bytes are written
+        private final Object syncLock = new Object(); // fsync must not hold up appends
+        private int syncedEnd;
+        private long[] indexSequences = new long[16];
+        private int[] indexPositions = new int[16];
+        private int indexCount;
+        private int records;
+        volatile int notices;
+        volatile long lastTime;
+        private long lastSequence;
+
+        private Segment(Path path, long baseSequence, MappedByteBuffer buffer) {
+            this.path = path;
+            this.baseSequence = baseSequence;
+            this.buffer = buffer;
+            this.lastSequence = baseSequence - 1;
+        }
+
+        static Segment create(Path directory, long baseSequence, int size) throws IOException {
+            return open(directory.resolve(String.format("%020d", baseSequence) + SUFFIX), size);
+        }
+
+        // size 0 maps a sealed segment read-only as it is, otherwise the file is extended to size for appending
+        static Segment open(Path path, int size) throws IOException {
+            String name = path.getFileName().toString();
+            long baseSequence = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+            boolean sealed = size == 0;
+            try (FileChannel channel = sealed ? FileChannel.open(path, StandardOpenOption.READ)
+                    : FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long length = Math.max(channel.size(), size);
+                MappedByteBuffer buffer = channel.map(sealed ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE,
+                        0, length);
+                Segment segment = new Segment(path, baseSequence, buffer);
+                segment.scan();
+                return segment;
+            }
+        }
+
+        // Rebuilds the index and finds the end of the data: the first zero length, or a record that was
+        // only partly written when the machine went down
+        private void scan() {
+            int position = 0;
+            while (position + 4 <= buffer.capacity()) {
+                int length = buffer.getInt(position);
+                if (length < HEADER_LENGTH + 1 || position + length > buffer.capacity()
+                        || buffer.get(position + length - 1) != '\n' || buffer.getLong(position + 4) <= lastSequence) {
+                    break;
+                }
+                indexRecord(position, length);
+                position += length;
+            }
+            end = position;
+            syncedEnd = position;
+        }
+
+        private void indexRecord(int position, int length) {
+            long sequence = buffer.getLong(position + 4);
+            if (records % INDEX_INTERVAL == 0) {
+                if (indexCount == indexSequences.length) {
+                    indexSequences = Arrays.copyOf(indexSequences, indexCount * 2);
+                    indexPositions = Arrays.copyOf(indexPositions, indexCount * 2);
+                }
+                indexSequences[indexCount] = sequence;
+                indexPositions[indexCount] = position;
+                indexCount++;
+            }
+            records++;
+            if (buffer.get(position + KIND_OFFSET) == NOTICE) {
+                notices++;
+            }
+            lastTime = buffer.getLong(position + 12);
+            lastSequence = sequence;
+        }
+
+        boolean hasRoom(int length) {
+            // keeps 4 zero bytes after the last record as the end marker
+            return end + length + 4 <= buffer.capacity();
+        }
+
+        long nextSequence() {
+            return lastSequence + 1;
+        }
+
+        void append(long sequence, long time, byte kind, byte[] text, int length) {
+            int position = end;
+            buffer.putInt(position, length)
+                    .putLong(position + 4, sequence)
+                    .putLong(position + 12, time)
+                    .put(position + KIND_OFFSET, kind)
+                    .put(position + FRAME_OFFSET, BinaryProtocol.VERSION)
+                    .put(position + FRAME_OFFSET + 1, BinaryProtocol.CHAT)
+                    .putInt(position + FRAME_OFFSET + 2, text.length)
+                    .put(position + HEADER_LENGTH, text)
+                    .put(position + length - 1, (byte) '\n');
+            synchronized (this) {
+                indexRecord(position, length);
+            }
+            end = position + length;
+        }
+
+        int end() {
+            return end;
+        }
+
+        // Position of the first record with a sequence of at least the given one, or end
+        synchronized int positionOf(long sequence) {
+            int low = 0;
+            int high = indexCount - 1;
+            if (high < 0 || indexSequences[0] >= sequence) {
+                return 0;
+            }
+            while (low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if (indexSequences[middle] <= sequence) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return indexPositions[low];
+        }
+
+        void force() {
+            synchronized (syncLock) {
+                int upTo = end;
+                if (upTo > syncedEnd) {
+                    buffer.force(syncedEnd, upTo - syncedEnd);
+                    syncedEnd = upTo;
+                }
+            }
+        }
+
+        // Writes the MESSAGE records to a new file that replaces this one
+        Segment withoutNotices() throws IOException {
+            Path temp = path.resolveSibling(path.getFileName() + ".compacting");
+            ByteBuffer data = buffer.duplicate();
+            int kept = 0;
+            for (int position = 0; position < end; position += data.getInt(position)) {
+                if (data.get(position + KIND_OFFSET) != NOTICE) {
+                    kept += data.getInt(position);
+                }
+            }
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer target = channel.map(FileChannel.MapMode.READ_WRITE, 0, kept + 4);
+                for (int position = 0; position < end; position += data.getInt(position)) {
+                    int length = data.getInt(position);
+                    if (data.get(position + KIND_OFFSET) != NOTICE) {
+                        target.put(data.slice(position, length));
+                    }
+                }
+                target.force();
+            }
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return open(path, 0);
+        }
+    }
+}
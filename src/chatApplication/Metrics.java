@@ -0,0 +1,214 @@
+package chatApplication;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// What the server is doing, for MetricsExporter to publish. The hot paths only touch LongAdders and
+// Histograms, which are lock-free and don't allocate; a fan-out adds once per shard, not per member.
+// Everything derived (rates, the connections' queue depths) is worked out once a second by a sampler
+// thread, so reading the metrics costs the connections nothing.
+class Metrics {
+    static final Metrics SERVER = new Metrics();
+    private static final long SAMPLE_MILLIS = 1000;
+
+    final LongAdder connectionsAccepted = new LongAdder();
+    final LongAdder connectionsClosed = new LongAdder();
+    final LongAdder messagesReceived = new LongAdder(); // chat, private and room messages from users
+    final LongAdder messagesDelivered = new LongAdder(); // queued for a recipient, a broadcast counts once per member
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder(); // written to sockets, file transfers included
+    final LongAdder fileBytesReceived = new LongAdder();
+    final LongAdder fileBytesSent = new LongAdder();
+    final LongAdder filesReceived = new LongAdder();
+    // Times a limit made the server stop reading a connection (or accepting), see TokenBucket
+    final LongAdder messagesThrottled = new LongAdder();
+    final LongAdder privateThrottled = new LongAdder();
+    final LongAdder commandsThrottled = new LongAdder();
+    final LongAdder fileBytesThrottled = new LongAdder();
+    final LongAdder acceptsThrottled = new LongAdder();
+    final LongAdder throttledMillis = new LongAdder(); // reads suspended in total, summed over connections
+    final LongAdder heartbeatsSent = new LongAdder();
+    final LongAdder connectionsReaped = new LongAdder(); // closed for a read or write timeout
+    final LongAdder sessionsDetached = new LongAdder(); // lost their connection and wait for the client to reconnect
+    final LongAdder sessionsResumed = new LongAdder();
+    final LongAdder sessionsExpired = new LongAdder(); // the client didn't come back in time, or too late for the replay
+    final LongAdder sessionReplayBytes = new LongAdder(); // sent again to clients that resumed
+    // Private messages for offline users, see OfflineInbox
+    final LongAdder inboxStored = new LongAdder();
+    final LongAdder inboxDelivered = new LongAdder();
+    final LongAdder inboxDropped = new LongAdder(); // inbox full, too many inboxes or the queue to the writer full
+    // The /search index, see SearchIndex
+    final LongAdder documentsIndexed = new LongAdder();
+    final LongAdder searchDropped = new LongAdder(); // messages not indexed, the queue to the indexer was full
+    // Compressed frames produced, once per broadcast however many recipients get it, see Compression
+    final LongAdder framesCompressed = new LongAdder();
+    final LongAdder compressionSavedBytes = new LongAdder();
+    final Histogram broadcastLatency = new Histogram(); // nanoseconds until every member of the room has the message queued
+    final Histogram gcPauses = new Histogram(); // milliseconds the application was stopped, per collection
+    final Histogram tlsHandshakes = new Histogram(); // nanoseconds from accepting a TLS connection to the end of its handshake
+    final Histogram searchLatency = new Histogram(); // nanoseconds a /search took on its search thread
+
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>(); // by name
+    private final Histogram queueDepths = new Histogram(); // sampler thread only
+    private Collection<Server.ConnectionHandler> connections = List.of();
+
+    // Written by the sampler, every second
+    private volatile long messagesReceivedRate;
+    private volatile long messagesDeliveredRate;
+    private volatile long bytesInRate;
+    private volatile long bytesOutRate;
+    private volatile long fileBytesReceivedRate;
+    private volatile long fileBytesSentRate;
+    private volatile long queueDepthP50;
+    private volatile long queueDepthP99;
+    private volatile long queueDepthMax;
+    private volatile long queuedMessages;
+    private final long[] last = new long[6]; // counter values at the previous sample
+    private final LongAdder gcPauseMillis = new LongAdder();
+
+    // Starts sampling the given connections' outbound queues and listening for GC pauses
+    void start(Collection<Server.ConnectionHandler> connections) {
+        this.connections = connections;
+        listenForGcPauses();
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(this::sample, SAMPLE_MILLIS, SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // A value read whenever the metrics are, e.g. how many users are online
+    void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    // Every metric by name, counters first, then rates, gauges and histogram summaries
+    Map<String, Long> snapshot() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        long accepted = connectionsAccepted.sum();
+        values.put("connections_accepted_total", accepted);
+        values.put("connections_active", accepted - connectionsClosed.sum());
+        values.put("messages_received_total", messagesReceived.sum());
+        values.put("messages_delivered_total", messagesDelivered.sum());
+        values.put("bytes_in_total", bytesIn.sum());
+        values.put("bytes_out_total", bytesOut.sum());
+        values.put("file_bytes_received_total", fileBytesReceived.sum());
+        values.put("file_bytes_sent_total", fileBytesSent.sum());
+        values.put("files_received_total", filesReceived.sum());
+        values.put("throttled_messages_total", messagesThrottled.sum());
+        values.put("throttled_private_total", privateThrottled.sum());
+        values.put("throttled_commands_total", commandsThrottled.sum());
+        values.put("throttled_file_bytes_total", fileBytesThrottled.sum());
+        values.put("throttled_accepts_total", acceptsThrottled.sum());
+        values.put("throttled_read_millis_total", throttledMillis.sum());
+        values.put("heartbeats_sent_total", heartbeatsSent.sum());
+        values.put("connections_reaped_total", connectionsReaped.sum());
+        values.put("sessions_detached_total", sessionsDetached.sum());
+        values.put("sessions_resumed_total", sessionsResumed.sum());
+        values.put("sessions_expired_total", sessionsExpired.sum());
+        values.put("session_replay_bytes_total", sessionReplayBytes.sum());
+        values.put("inbox_stored_total", inboxStored.sum());
+        values.put("inbox_delivered_total", inboxDelivered.sum());
+        values.put("inbox_dropped_total", inboxDropped.sum());
+        values.put("search_documents_indexed_total", documentsIndexed.sum());
+        values.put("search_dropped_total", searchDropped.sum());
+        values.put("compressed_frames_total", framesCompressed.sum());
+        values.put("compression_saved_bytes_total", compressionSavedBytes.sum());
+        values.put("messages_received_per_second", messagesReceivedRate);
+        values.put("messages_delivered_per_second", messagesDeliveredRate);
+        values.put("bytes_in_per_second", bytesInRate);
+        values.put("bytes_out_per_second", bytesOutRate);
+        values.put("file_bytes_received_per_second", fileBytesReceivedRate);
+        values.put("file_bytes_sent_per_second", fileBytesSentRate);
+        values.put("outbound_queued_messages", queuedMessages);
+        values.put("outbound_queue_depth_p50", queueDepthP50);
+        values.put("outbound_queue_depth_p99", queueDepthP99);
+        values.put("outbound_queue_depth_max", queueDepthMax);
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            values.put(gauge.getKey(), gauge.getValue().getAsLong());
+        }
+        values.put("broadcast_latency_count", broadcastLatency.count());
+        values.put("broadcast_latency_micros_p50", broadcastLatency.percentile(0.5) / 1000);
+        values.put("broadcast_latency_micros_p99", broadcastLatency.percentile(0.99) / 1000);
+        values.put("broadcast_latency_micros_p999", broadcastLatency.percentile(0.999) / 1000);
+        values.put("broadcast_latency_micros_max", broadcastLatency.max() / 1000);
+        values.put("tls_handshakes_total", tlsHandshakes.count());
+        values.put("tls_handshake_micros_p50", tlsHandshakes.percentile(0.5) / 1000);
+        values.put("tls_handshake_micros_p99", tlsHandshakes.percentile(0.99) / 1000);
+        values.put("search_queries_total", searchLatency.count());
+        values.put("search_latency_micros_p50", searchLatency.percentile(0.5) / 1000);
+        values.put("search_latency_micros_p99", searchLatency.percentile(0.99) / 1000);
+        values.put("gc_pauses_total", gcPauses.count());
+        values.put("gc_pause_millis_total", gcPauseMillis.sum());
+        values.put("gc_pause_millis_p99", gcPauses.percentile(0.99));
+        values.put("gc_pause_millis_max", gcPauses.max());
+        return values;
+    }
+
+    private void sample() {
+        messagesReceivedRate = perSecond(0, messagesReceived);
+        messagesDeliveredRate = perSecond(1, messagesDelivered);
+        bytesInRate = perSecond(2, bytesIn);
+        bytesOutRate = perSecond(3, bytesOut);
+        fileBytesReceivedRate = perSecond(4, fileBytesReceived);
+        fileBytesSentRate = perSecond(5, fileBytesSent);
+
+        queueDepths.reset();
+        long total = 0;
+        for (Server.ConnectionHandler connection : connections) {
+            int depth = connection.queuedMessages();
+            queueDepths.record(depth);
+            total += depth;
+        }
+        queuedMessages = total;
+        queueDepthP50 = queueDepths.percentile(0.5);
+        queueDepthP99 = queueDepths.percentile(0.99);
+        queueDepthMax = queueDepths.max();
+    }
+
+    // How much the counter grew since the last sample
+    private long perSecond(int index, LongAdder counter) {
+        long now = counter.sum();
+        long delta = now - last[index];
+        last[index] = now;
+        return delta * 1000 / SAMPLE_MILLIS;
+    }
+
+    // Stop-the-world pauses as the collectors report them. Concurrent collectors also report their
+    // cycles, which mostly run alongside the application and are left out.
+    private void listenForGcPauses() {
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (!(collector instanceof NotificationEmitter emitter)) {
+                continue;
+            }
+            emitter.addNotificationListener((notification, handback) -> {
+                if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                    return;
+                }
+                GarbageCollectionNotificationInfo info =
+                        GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                if (info.getGcAction().contains("cycle")) {
+                    return;
+                }
+                long millis = info.getGcInfo().getDuration();
+                gcPauses.record(millis);
+                gcPauseMillis.add(millis);
+            }, null, null);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package chatApplication;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+// Publishes Metrics two ways: as the MBean chatApplication:type=Metrics, for jconsole and other JMX
+// clients, and as plain text on http://localhost:<chat.metrics.port>/metrics, one "chat_<name> <value>"
+// line per metric, which Prometheus and similar scrapers read as is. Both read a fresh snapshot per
+// request, nothing is computed in between.
+class MetricsExporter {
+    static final String OBJECT_NAME = "chatApplication:type=Metrics";
+
+    private final Metrics metrics;
+    private HttpServer http;
+
+    MetricsExporter(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    void registerMBean() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), new ObjectName(OBJECT_NAME));
+    }
+
+    // Only reachable from this machine
+    void startEndpoint(int port) throws IOException {
+        http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", this::scrape);
+        http.start();
+    }
+
+    void close() {
+        if (http != null) {
+            http.stop(0);
+        }
+    }
+
+    private void scrape(HttpExchange exchange) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Long> metric : metrics.snapshot().entrySet()) {
+            text.append("chat_").append(metric.getKey()).append(' ').append(metric.getValue()).append('\n');
+        }
+        byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    // Read-only, one long attribute per metric. Gauges can be added after registration, so the
+    // attribute list is built from the snapshot each time it is asked for.
+    private class MetricsMBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String name) throws AttributeNotFoundException {
+            Long value = metrics.snapshot().get(name);
+            if (value == null) {
+                throw new AttributeNotFoundException(name);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names) {
+            Map<String, Long> snapshot = metrics.snapshot();
+            AttributeList attributes = new AttributeList();
+            for (String name : names) {
+                Long value = snapshot.get(name);
+                if (value != null) {
+                    attributes.add(new Attribute(name, value));
+                }
+            }
+            return attributes;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String action, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(action);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            MBeanAttributeInfo[] attributes = metrics.snapshot().keySet().stream()
+                    .map(name -> new MBeanAttributeInfo(name, "long", name, true, false, false))
+                    .toArray(MBeanAttributeInfo[]::new);
+            return new MBeanInfo(Metrics.class.getName(), "Chat server metrics", attributes, null, null, null);
+        }
+    }
+}
@@ -0,0 +1,515 @@
+package chatApplication;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+// Non-blocking engine: one acceptor plus a fixed number of selector loops that multiplex all sockets.
+// An idle connection costs a SelectionKey and a NioTransport, no thread and no read buffer.
+class NioConnectionEngine implements ConnectionEngine {
+    private final ServerConfig config;
+    private ServerSocketChannel serverChannel;
+    private EventLoop acceptLoop;
+    private EventLoop[] ioLoops;
+    private SSLContext tls; // null without TLS
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private volatile boolean running;
+
+    NioConnectionEngine(ServerConfig config) {
+        this.config = config;
+    }
+
+    @Override
+    public void bind() throws IOException {
+        serverChannel = config.openListener();
+        serverChannel.configureBlocking(false);
+    }
+
+    @Override
+    public void start(Function<Transport, Listener> listenerFactory) throws IOException {
+        tls = config.createTlsContext();
+        // With TLS the read buffer receives the plaintext, and must hold a whole record
+        int readBufferSize = tls == null ? config.readBufferSize
+                : Math.max(config.readBufferSize, TlsSession.applicationBufferSize(tls));
+        if (serverChannel == null) {
+            bind();
+        }
+        running = true;
+
+        ioLoops = new EventLoop[Math.max(1, config.ioThreads)];
+        for (int i = 0; i < ioLoops.length; i++) {
+            ioLoops[i] = new EventLoop("chat-io-" + i, readBufferSize, config.writeBatchSize);
+            ioLoops[i].start();
+        }
+
+        acceptLoop = new EventLoop("chat-accept", 0, 0);
+        acceptLoop.start();
+        TokenBucket admission = config.acceptLimit.bucket(); // accept loop only
+        acceptLoop.execute(() -> {
+            try {
+                serverChannel.register(acceptLoop.selector, SelectionKey.OP_ACCEPT,
+                        (SelectHandler) key -> acceptAll(key, admission, listenerFactory));
+            } catch (ClosedChannelException e) {
+                Log.error("engine.accept.failed", e);
+            }
+        });
+    }
+
+    private void acceptAll(SelectionKey key, TokenBucket admission, Function<Transport, Listener> listenerFactory) {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+                EventLoop loop = ioLoops[Math.floorMod(nextLoop.getAndIncrement(), ioLoops.length)];
+                TlsSession session = tls == null ? null : new TlsSession(TlsSession.serverEngine(tls, config.tlsProtocols));
+                NioTransport transport = new NioTransport(loop, channel, config.newOutboundQueue(), session);
+                loop.execute(() -> transport.register(listenerFactory.apply(transport)));
+                long wait = admission.take(1);
+                if (wait > 0) {
+                    // Over the admission rate: the rest waits in the listen backlog until the bucket refills
+                    Metrics.SERVER.acceptsThrottled.increment();
+                    key.interestOps(0);
+                    acceptLoop.schedule(() -> {
+                        if (key.isValid()) {
+                            key.interestOps(SelectionKey.OP_ACCEPT);
+                        }
+                    }, wait);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            if (running) {
+                Log.error("engine.accept.failed", e);
+            }
+        }
+    }
+
+    @Override
+    public void stopAccepting() {
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            Log.error("engine.stop.failed", e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        stopAccepting();
+        acceptLoop.shutdown();
+        for (EventLoop loop : ioLoops) {
+            loop.shutdown();
+        }
+    }
+
+    private interface SelectHandler {
+        void handle(SelectionKey key);
+    }
+
+    private record Timer(long deadline, Runnable task) {
+    }
+
+    // A selector thread with a task queue so other threads can hand it work, and timers for itself.
+    private static class EventLoop extends Thread {
+        final Selector selector;
+        final ByteBuffer readBuffer; // shared by every connection on this loop
+        final ByteBuffer[] writeBatch; // shared too, a flush never spans two connections
+        final Frame[] writeBatchFrames;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final PriorityQueue<Timer> timers = new PriorityQueue<>(Comparator.comparingLong(Timer::deadline)); // loop only
+        private final AtomicBoolean wakeupPending = new AtomicBoolean();
+        private volatile boolean running = true;
+
+        EventLoop(String name, int readBufferSize, int writeBatchSize) throws IOException {
+            super(name);
+            this.selector = Selector.open();
+            this.readBuffer = readBufferSize > 0 ? ByteBuffer.allocateDirect(readBufferSize) : null;
+            this.writeBatch = new ByteBuffer[Math.max(1, writeBatchSize)];
+            this.writeBatchFrames = new Frame[writeBatch.length];
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != this && wakeupPending.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == this;
+        }
+
+        // Loop thread only. Runs the task on this loop after the delay.
+        void schedule(Runnable task, long delayNanos) {
+            timers.add(new Timer(System.nanoTime() + delayNanos, task));
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    long timeout = runTimers();
+                    if (timeout > 0) {
+                        selector.select(timeout);
+                    } else {
+                        selector.select();
+                    }
+                    wakeupPending.set(false);
+                    runTasks();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.isValid()) {
+                            ((SelectHandler) key.attachment()).handle(key);
+                        }
+                    }
+                } catch (Exception e) {
+                    Log.error("engine.loop.failed", e); // keep the loop alive, one bad connection must not stop the others
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException ignored) {
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                Log.error("engine.stop.failed", e);
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+
+        // Runs the timers that are due; returns the milliseconds until the next one, 0 if there is none
+        private long runTimers() {
+            Timer timer;
+            while ((timer = timers.peek()) != null) {
+                long remaining = timer.deadline - System.nanoTime();
+                if (remaining > 0) {
+                    return Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining + 999_999));
+                }
+                timers.poll();
+                timer.task.run();
+            }
+            return 0;
+        }
+    }
+
+    private static class NioTransport implements Transport, SelectHandler {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final SocketAddress remoteAddress;
+        private final OutboundQueue pendingWrites;
+        private final TlsSession tls; // null for plaintext
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private SelectionKey key;
+        private Listener listener;
+        private Consumer<ByteBuffer> onRead; // listener::onRead, made once
+        private long readsSuspendedUntil; // loop only
+        private boolean readsSuspended;
+        private volatile long blockedSince; // when the socket last filled up, 0 while it takes what we write
+        private volatile boolean closeRequested;
+        private volatile boolean closed;
+
+        NioTransport(EventLoop loop, SocketChannel channel, OutboundQueue pendingWrites, TlsSession tls) throws IOException {
+            this.loop = loop;
+            this.channel = channel;
+            this.pendingWrites = pendingWrites;
+            this.tls = tls;
+            this.remoteAddress = channel.getRemoteAddress();
+        }
+
+        void register(Listener listener) {
+            this.listener = listener;
+            this.onRead = listener::onRead;
+            try {
+                key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+            } catch (IOException e) {
+                closeNow();
+                return;
+            }
+            listener.onOpen();
+        }
+
+        @Override
+        public void handle(SelectionKey key) {
+            if (key.isReadable()) {
+                read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                blockedSince = 0; // the peer took some of it
+                flush();
+            }
+        }
+
+        private void read() {
+            ByteBuffer buffer = loop.readBuffer;
+            if (tls != null) {
+                readTls(buffer);
+                return;
+            }
+            buffer.clear();
+            int n;
+            try {
+                n = channel.read(buffer);
+            } catch (IOException e) {
+                n = -1;
+            }
+            if (n < 0) {
+                closeNow();
+                return;
+            }
+            buffer.flip();
+            if (buffer.hasRemaining()) {
+                listener.onRead(buffer);
+            }
+        }
+
+        private void readTls(ByteBuffer buffer) {
+            int n;
+            try {
+                n = tls.read(channel, buffer, onRead);
+            } catch (IOException e) {
+                n = -1; // a bad record or handshake as well, the session can't go on
+            }
+            if (n < 0) {
+                closeNow();
+            } else if (!closed && (tls.hasPendingOutput() || !pendingWrites.isEmpty())) {
+                scheduleFlush(); // handshake messages, or what waited for the handshake to finish
+            }
+        }
+
+        // Called from onRead, so on the loop
+        @Override
+        public void suspendReads(long nanos) {
+            readsSuspendedUntil = Math.max(readsSuspendedUntil, System.nanoTime() + nanos);
+            if (!readsSuspended && key != null && key.isValid()) {
+                readsSuspended = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                loop.schedule(this::resumeReads, nanos);
+            }
+        }
+
+        private void resumeReads() {
+            long remaining = readsSuspendedUntil - System.nanoTime();
+            if (remaining > 0) {
+                loop.schedule(this::resumeReads, remaining); // suspended again meanwhile
+                return;
+            }
+            readsSuspended = false;
+            if (key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+
+        @Override
+        public void write(Frame frame) {
+            if (closed || closeRequested) {
+                return;
+            }
+            if (!pendingWrites.offer(frame)) {
+                closeRequested = true; // stop accepting writes, the queue is discarded anyway
+                Log.warn("connection.slow", "remote", remoteAddress, "reason", "outbound queue full");
+                loop.execute(this::closeNow);
+                return;
+            }
+            scheduleFlush();
+        }
+
+        private void scheduleFlush() {
+            if (flushScheduled.compareAndSet(false, true)) {
+                if (loop.inLoop()) {
+                    flush();
+                } else {
+                    loop.execute(this::flush);
+                }
+            }
+        }
+
+        // Runs on the loop thread only
+        private void flush() {
+            if (closed) {
+                return;
+            }
+            ByteBuffer[] batch = loop.writeBatch;
+            Frame[] batchFrames = loop.writeBatchFrames;
+            int count = 0;
+            try {
+                if (tls != null && (!tls.isEstablished() || !tls.flush(channel))) {
+                    waitForTls(); // nothing can go out before the handshake or ahead of its messages
+                    return;
+                }
+                while ((count = pendingWrites.drainTo(batch, batchFrames, 0)) > 0) {
+                    count = pendingWrites.splitAtFileRegion(batch, batchFrames, count);
+                    if (batchFrames[0].isFileRegion()) {
+                        Frame region = batchFrames[0];
+                        if (!(tls == null ? region.transferTo(channel) : tls.transfer(channel, region))) {
+                            pendingWrites.requeueFront(batch, batchFrames, 0, 1);
+                            batch[0] = null;
+                            batchFrames[0] = null;
+                            count = 0;
+                            waitForWritable();
+                            return;
+                        }
+                        OutboundQueue.releaseBatch(batch, batchFrames, 0, 1);
+                        count = 0;
+                        continue;
+                    }
+                    // One syscall for the whole batch instead of one per message
+                    if (tls == null) {
+                        Metrics.SERVER.bytesOut.add(channel.write(batch, 0, count));
+                    } else {
+                        tls.write(channel, batch, 0, count);
+                    }
+                    int sent = 0;
+                    while (sent < count && !batch[sent].hasRemaining()) {
+                        sent++;
+                    }
+                    if (sent < count) {
+                        // Socket buffer is full, continue when the selector reports it writable
+                        pendingWrites.requeueFront(batch, batchFrames, sent, count);
+                        Arrays.fill(batch, sent, count, null);
+                        Arrays.fill(batchFrames, sent, count, null);
+                        OutboundQueue.releaseBatch(batch, batchFrames, 0, sent);
+                        count = 0;
+                        waitForWritable();
+                        return;
+                    }
+                    OutboundQueue.releaseBatch(batch, batchFrames, 0, count);
+                    count = 0;
+                }
+                if (tls != null && tls.hasPendingOutput()) {
+                    waitForWritable(); // the last records
+                    return;
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                flushScheduled.set(false);
+                if (!pendingWrites.isEmpty()) {
+                    scheduleFlush(); // a writer raced with us after the queue looked empty
+                } else if (closeRequested) {
+                    closeNow();
+                }
+            } catch (IOException | CancelledKeyException e) {
+                OutboundQueue.releaseBatch(batch, batchFrames, 0, count);
+                closeNow();
+            }
+        }
+
+        // Waiting for the handshake, the read that finishes it flushes again, or for the socket to take
+        // the TLS records that are already waiting
+        private void waitForTls() {
+            if (tls.hasPendingOutput()) {
+                waitForWritable();
+                return;
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            flushScheduled.set(false);
+        }
+
+        // The socket is full, flush again once it takes more
+        private void waitForWritable() {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            if (blockedSince == 0) {
+                blockedSince = System.nanoTime();
+            }
+        }
+
+        @Override
+        public void close() {
+            closeRequested = true;
+            if (loop.inLoop()) {
+                closeIfFlushed();
+            } else {
+                loop.execute(this::closeIfFlushed);
+            }
+        }
+
+        @Override
+        public void abort() {
+            closeRequested = true;
+            if (loop.inLoop()) {
+                closeNow();
+            } else {
+                loop.execute(this::closeNow);
+            }
+        }
+
+        private void closeIfFlushed() {
+            if (pendingWrites.isEmpty() && (tls == null || !tls.hasPendingOutput())) {
+                closeNow();
+            }
+        }
+
+        private void closeNow() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            pendingWrites.clear();
+            if (key != null) {
+                key.cancel();
+            }
+            if (tls != null) {
+                tls.close(channel, true); // non-blocking, close_notify goes out if the socket takes it
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.error("connection.close.failed", e, "remote", remoteAddress);
+            }
+            if (listener != null) {
+                listener.onClose();
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed && !closeRequested;
+        }
+
+        @Override
+        public SocketAddress remoteAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        public int queuedMessages() {
+            return pendingWrites.size();
+        }
+
+        @Override
+        public long writeBlockedNanos() {
+            long since = blockedSince;
+            return since == 0 || closed ? 0 : System.nanoTime() - since;
+        }
+    }
+}
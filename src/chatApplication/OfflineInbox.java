@@ -0,0 +1,293 @@
+package chatApplication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+// Private messages for users who are offline, kept on disk until they next log in. Every user with
+// waiting messages has a file in the inbox directory, named after the hex of the username, of records
+//
+//   [length: 4][time: 8][sender: 2 byte length + UTF-8][text: UTF-8]
+//
+// Storing a message and asking for a user's inbox only put a request into a RingBuffer and return; the
+// inbox-writer thread does all file work. It takes whatever piled up, appends each user's messages with
+// one write and one force, and hands an inbox over to its user in one piece when asked to. Because the
+// same thread does both, a message that comes in after its recipient asked for the inbox is delivered
+// straight away rather than left in the file.
+//
+// An inbox holds at most maxMessages, there are at most maxUsers of them, and messages older than ttl
+// are never delivered; an inbox nobody added to for that long is deleted by the hourly sweep.
+class OfflineInbox {
+    record Message(long time, String sender, String text) {
+    }
+
+    // How the inbox reaches users who are online on this node
+    interface Delivery {
+        // Returns false if the user isn't (any more) logged in here
+        boolean deliver(String username, List<Message> messages);
+    }
+
+    // recipient null: a drain request for the username in sender
+    private record Request(String recipient, Message message) {
+    }
+
+    private static final String SUFFIX = ".inbox";
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long SWEEP_NANOS = TimeUnit.HOURS.toNanos(1);
+
+    private final Path directory;
+    private final int maxMessages;
+    private final int maxUsers;
+    private final long ttlMillis;
+    private final RingBuffer<Request> requests;
+    private final Thread writer;
+    private final Map<String, Integer> counts = new HashMap<>(); // writer only, messages per inbox file
+    private Delivery delivery;
+    private volatile boolean idle;
+    private volatile boolean stopping;
+
+    OfflineInbox(Path directory, int maxMessages, int maxUsers, long ttlMillis, int queueSize) throws IOException {
+        this.directory = directory;
+        this.maxMessages = maxMessages;
+        this.maxUsers = maxUsers;
+        this.ttlMillis = ttlMillis;
+        this.requests = new RingBuffer<>(queueSize);
+        Files.createDirectories(directory);
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(file -> file.getFileName().toString().endsWith(SUFFIX))
+                    .forEach(file -> counts.put(file.getFileName().toString(), -1)); // counted when first used
+        }
+        writer = new Thread(this::run, "inbox-writer");
+        writer.setDaemon(true);
+    }
+
+    void start(Delivery delivery) {
+        this.delivery = delivery;
+        writer.start();
+    }
+
+    // Any thread. Returns false if the message couldn't even be queued.
+    boolean store(String recipient, String sender, String text) {
+        return offer(new Request(recipient, new Message(System.currentTimeMillis(), sender, text)));
+    }
+
+    // Any thread, once the user has logged in: the messages waiting for them, through Delivery
+    void drain(String username) {
+        offer(new Request(null, new Message(0, username, null)));
+    }
+
+    // At shutdown: what was stored is written before the writer stops
+    void stop() {
+        stopping = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean offer(Request request) {
+        if (!requests.offer(request)) {
+            Metrics.SERVER.inboxDropped.increment();
+            return false;
+        }
+        if (idle) {
+            LockSupport.unpark(writer);
+        }
+        return true;
+    }
+
+    private void run() {
+        long nextSweep = System.nanoTime();
+        while (true) {
+            List<Request> batch = new ArrayList<>();
+            Request request;
+            while ((request = requests.poll()) != null) {
+                batch.add(request);
+            }
+            if (!batch.isEmpty()) {
+                handle(batch);
+                continue;
+            }
+            if (stopping) {
+                return;
+            }
+            if (System.nanoTime() - nextSweep >= 0) {
+                sweep();
+                nextSweep = System.nanoTime() + SWEEP_NANOS;
+            }
+            idle = true;
+            if ((request = requests.poll()) == null) { // a request that came in before idle was set
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+            idle = false;
+            if (request != null) {
+                handle(List.of(request));
+            }
+        }
+    }
+
+    // Stores run up to the next drain are appended per user, so each user's file is written once. A
+    // request that fails is logged and skipped; the writer carries on with the others.
+    private void handle(List<Request> batch) {
+        Map<String, List<Message>> pending = new LinkedHashMap<>();
+        for (Request request : batch) {
+            try {
+                if (request.recipient == null) {
+                    appendAll(pending);
+                    pending.clear();
+                    deliverInbox(request.message.sender());
+                } else if (!delivery.deliver(request.recipient, List.of(request.message))) {
+                    pending.computeIfAbsent(request.recipient, name -> new ArrayList<>()).add(request.message);
+                }
+            } catch (RuntimeException e) {
+                Log.error("inbox.request.failed", e, "user",
+                        request.recipient == null ? request.message.sender() : request.recipient);
+            }
+        }
+        appendAll(pending);
+    }
+
+    private void appendAll(Map<String, List<Message>> pending) {
+        for (Map.Entry<String, List<Message>> entry : pending.entrySet()) {
+            try {
+                append(entry.getKey(), entry.getValue());
+            } catch (IOException | RuntimeException e) {
+                Log.error("inbox.write.failed", e, "user", entry.getKey());
+            }
+        }
+    }
+
+    private void append(String username, List<Message> messages) throws IOException {
+        String name = fileName(username);
+        Integer count = counts.get(name);
+        if (count == null && counts.size() >= maxUsers) {
+            discard(username, messages.size(), "too many inboxes");
+            return;
+        }
+        if (count == null || count < 0) {
+            count = count == null ? 0 : read(directory.resolve(name)).size();
+        }
+        int room = Math.max(0, Math.min(messages.size(), maxMessages - count));
+        if (room < messages.size()) {
+            discard(username, messages.size() - room, "inbox full");
+        }
+        if (room == 0) {
+            counts.put(name, count);
+            return;
+        }
+        ByteBuffer[] records = new ByteBuffer[room];
+        for (int i = 0; i < room; i++) {
+            records[i] = encode(messages.get(i));
+        }
+        try (FileChannel file = FileChannel.open(directory.resolve(name),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (records[room - 1].hasRemaining()) {
+                file.write(records);
+            }
+            file.force(false);
+        }
+        counts.put(name, count + room);
+        Metrics.SERVER.inboxStored.add(room);
+    }
+
+    // Hands the whole inbox over and deletes it; it stays if the user has gone again meanwhile
+    private void deliverInbox(String username) {
+        String name = fileName(username);
+        if (!counts.containsKey(name)) {
+            return;
+        }
+        Path file = directory.resolve(name);
+        try {
+            long oldest = System.currentTimeMillis() - ttlMillis;
+            List<Message> messages = new ArrayList<>();
+            for (Message message : read(file)) {
+                if (message.time >= oldest) {
+                    messages.add(message);
+                }
+            }
+            if (!messages.isEmpty() && !delivery.deliver(username, messages)) {
+                return;
+            }
+            Files.deleteIfExists(file);
+            counts.remove(name);
+            Metrics.SERVER.inboxDelivered.add(messages.size());
+        } catch (IOException | RuntimeException e) {
+            Log.error("inbox.read.failed", e, "user", username);
+        }
+    }
+
+    // Inboxes nobody wrote to for longer than the ttl only hold expired messages
+    private void sweep() {
+        long oldest = System.currentTimeMillis() - ttlMillis;
+        for (String name : new ArrayList<>(counts.keySet())) {
+            Path file = directory.resolve(name);
+            try {
+                if (!Files.exists(file) || Files.getLastModifiedTime(file).toMillis() < oldest) {
+                    Files.deleteIfExists(file);
+                    counts.remove(name);
+                }
+            } catch (IOException | RuntimeException e) {
+                Log.error("inbox.sweep.failed", e, "file", file);
+            }
+        }
+    }
+
+    private void discard(String username, int count, String reason) {
+        Log.warn("inbox.discarded", "user", username, "messages", count, "reason", reason);
+        Metrics.SERVER.inboxDropped.add(count);
+    }
+
+    private static ByteBuffer encode(Message message) {
+        byte[] sender = BinaryProtocol.utf8(message.sender);
+        byte[] text = BinaryProtocol.utf8(message.text);
+        int length = 8 + 2 + sender.length + text.length;
+        ByteBuffer record = ByteBuffer.allocate(4 + length).putInt(length).putLong(message.time);
+        BinaryProtocol.putString(record, sender);
+        return record.put(text).flip();
+    }
+
+    // Stops at a record a crash cut short, or one that doesn't make sense
+    private static List<Message> read(Path file) throws IOException {
+        List<Message> messages = new ArrayList<>();
+        if (!Files.exists(file)) {
+            return messages;
+        }
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file));
+        while (data.remaining() >= 4) {
+            int length = data.getInt();
+            if (length < 10 || length > data.remaining()) {
+                break;
+            }
+            ByteBuffer record = data.slice(data.position(), length);
+            data.position(data.position() + length);
+            try {
+                long time = record.getLong();
+                String sender = BinaryProtocol.getString(record);
+                messages.add(new Message(time, sender, BinaryProtocol.getRemainingString(record)));
+            } catch (RuntimeException e) {
+                Log.warn("inbox.corrupt", "file", file, "messages", messages.size());
+                break;
+            }
+        }
+        return messages;
+    }
+
+    private static String fileName(String username) {
+        return HexFormat.of().formatHex(username.getBytes(StandardCharsets.UTF_8)) + SUFFIX;
+    }
+}
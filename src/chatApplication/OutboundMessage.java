@@ -0,0 +1,223 @@
+package chatApplication;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A server-to-client message. It is encoded at most once per wire format, on first use, and that
+// frame is then shared by every recipient speaking the same protocol; likewise it is compressed at most
+// once for all recipients that asked for compression. Reference counted like Frame, the encoded frames
+// are given back when the last holder releases the message.
+final class OutboundMessage {
+    enum Kind { CHAT, PRIVATE, ROOM, USERS, PRESENCE, ERROR, CONTROL }
+
+    final Kind kind;
+    final String sender; // PRIVATE: who sent it, ROOM: the room it was said in
+    final String text;
+    final Collection<String> usernames; // USERS: everyone online, PRESENCE: who joined
+    final Collection<String> left; // PRESENCE only
+    final long baseVersion; // PRESENCE: the version the delta applies to
+    final long version; // USERS and PRESENCE: the presence version after this message
+
+    private final AtomicInteger references = new AtomicInteger(1);
+    private Frame textFrame;
+    private Frame binaryFrame;
+    private Frame compressedFrame; // may be binaryFrame again, if compressing didn't pay
+
+    private OutboundMessage(Kind kind, String sender, String text, Collection<String> usernames) {
+        this(kind, sender, text, usernames, null, 0, 0);
+    }
+
+    private OutboundMessage(Kind kind, String sender, String text, Collection<String> usernames,
+                            Collection<String> left, long baseVersion, long version) {
+        this.kind = kind;
+        this.sender = sender;
+        this.text = text;
+        this.usernames = usernames;
+        this.left = left;
+        this.baseVersion = baseVersion;
+        this.version = version;
+    }
+
+    // A line to display, e.g. "alice: hello" or "bob connected"
+    static OutboundMessage chat(String line) {
+        return new OutboundMessage(Kind.CHAT, null, line, null);
+    }
+
+    static OutboundMessage privateMessage(String sender, String text) {
+        return new OutboundMessage(Kind.PRIVATE, sender, text, null);
+    }
+
+    // A line said in a room, e.g. "alice: hello", for the room's members only
+    static OutboundMessage room(String room, String line) {
+        return new OutboundMessage(Kind.ROOM, room, line, null);
+    }
+
+    // Full user list, see Presence
+    static OutboundMessage users(long version, Collection<String> usernames) {
+        // Copied so the text and binary encodings list the same users
+        return new OutboundMessage(Kind.USERS, null, null, List.copyOf(usernames), null, 0, version);
+    }
+
+    // Who joined and left between two presence versions
+    static OutboundMessage presence(long baseVersion, long version, Collection<String> joined, Collection<String> left) {
+        return new OutboundMessage(Kind.PRESENCE, null, null, List.copyOf(joined), List.copyOf(left), baseVersion, version);
+    }
+
+    static OutboundMessage error(String text) {
+        return new OutboundMessage(Kind.ERROR, null, text, null);
+    }
+
+    // Protocol housekeeping the text protocol has no equivalent for, it is never sent to text clients
+    static OutboundMessage control(String command) {
+        return new OutboundMessage(Kind.CONTROL, null, command, null);
+    }
+
+    // Returns the shared frame for the format, or null if the message doesn't exist in that format
+    synchronized Frame frame(ProtocolCodec.Format format) {
+        if (format == ProtocolCodec.Format.BINARY) {
+            if (binaryFrame == null) {
+                binaryFrame = marked(encodeBinary());
+            }
+            return binaryFrame;
+        }
+        if (textFrame == null && kind != Kind.CONTROL) {
+            textFrame = marked(Frame.text(encodeText()));
+        }
+        return textFrame;
+    }
+
+    // The binary frame for recipients that negotiated compression, compressed if it is at least threshold
+    // bytes and gets smaller
+    synchronized Frame compressedFrame(int threshold) {
+        if (compressedFrame == null) {
+            compressedFrame = marked(Compression.compress(frame(ProtocolCodec.Format.BINARY), threshold));
+        }
+        return compressedFrame;
+    }
+
+    // Chat lines may be dropped for a client that can't keep up, see OutboundQueue.OverflowPolicy
+    private Frame marked(Frame frame) {
+        return kind == Kind.CHAT || kind == Kind.PRIVATE || kind == Kind.ROOM ? frame.droppable() : frame;
+    }
+
+    OutboundMessage retain() {
+        references.incrementAndGet();
+        return this;
+    }
+
+    // The last release gives back the encoded frames; recipients that still have them queued hold
+    // their own references to the frames
+    void release() {
+        if (references.decrementAndGet() == 0) {
+            releaseFrames();
+        }
+    }
+
+    private synchronized void releaseFrames() {
+        if (textFrame != null) {
+            textFrame.release();
+            textFrame = null;
+        }
+        if (binaryFrame != null) {
+            binaryFrame.release();
+            binaryFrame = null;
+        }
+        if (compressedFrame != null) {
+            compressedFrame.release();
+            compressedFrame = null;
+        }
+    }
+
+    private String encodeText() {
+        return switch (kind) {
+            case PRIVATE -> sender + " (private): " + text;
+            case ROOM -> "[" + sender + "] " + text;
+            case USERS -> {
+                StringBuilder userListBuilder = new StringBuilder("/users ").append(version).append(' ');
+                for (String user : usernames) {
+                    userListBuilder.append(user).append(",");
+                }
+                yield userListBuilder.toString();
+            }
+            case PRESENCE -> {
+                // "/presence <base> <version> +joined,-left,"
+                StringBuilder delta = new StringBuilder("/presence ").append(baseVersion).append(' ').append(version).append(' ');
+                for (String user : usernames) {
+                    delta.append('+').append(user).append(",");
+                }
+                for (String user : left) {
+                    delta.append('-').append(user).append(",");
+                }
+                yield delta.toString();
+            }
+            default -> text;
+        };
+    }
+
+    private Frame encodeBinary() {
+        ByteBuffer buffer;
+        switch (kind) {
+            case PRIVATE, ROOM -> {
+                byte[] name = BinaryProtocol.utf8(sender);
+                byte[] body = BinaryProtocol.utf8(text);
+                byte type = kind == Kind.ROOM ? BinaryProtocol.ROOM : BinaryProtocol.PRIVATE;
+                buffer = BinaryProtocol.allocateFrame(type, 2 + name.length + body.length);
+                BinaryProtocol.putString(buffer, name);
+                buffer.put(body);
+            }
+            case USERS -> {
+                byte[][] names = utf8(usernames);
+                buffer = BinaryProtocol.allocateFrame(BinaryProtocol.USER_LIST, 13 + encodedLength(names));
+                buffer.put(BinaryProtocol.USERS_SNAPSHOT).putLong(version).putInt(names.length);
+                for (byte[] name : names) {
+                    BinaryProtocol.putString(buffer, name);
+                }
+            }
+            case PRESENCE -> {
+                byte[][] joined = utf8(usernames);
+                byte[][] gone = utf8(left);
+                int length = 21 + encodedLength(joined) + joined.length + encodedLength(gone) + gone.length;
+                buffer = BinaryProtocol.allocateFrame(BinaryProtocol.USER_LIST, length);
+                buffer.put(BinaryProtocol.USERS_DELTA).putLong(baseVersion).putLong(version)
+                        .putInt(joined.length + gone.length);
+                for (byte[] name : joined) {
+                    BinaryProtocol.putString(buffer.put(BinaryProtocol.USERS_JOINED), name);
+                }
+                for (byte[] name : gone) {
+                    BinaryProtocol.putString(buffer.put(BinaryProtocol.USERS_LEFT), name);
+                }
+            }
+            case ERROR, CONTROL -> {
+                byte[] body = BinaryProtocol.utf8(kind == Kind.ERROR ? "/error " + text : text);
+                buffer = BinaryProtocol.allocateFrame(BinaryProtocol.CONTROL, body.length);
+                buffer.put(body);
+            }
+            default -> {
+                byte[] body = BinaryProtocol.utf8(text);
+                buffer = BinaryProtocol.allocateFrame(BinaryProtocol.CHAT, body.length);
+                buffer.put(body);
+            }
+        }
+        return Frame.pooled(buffer.flip());
+    }
+
+    private static byte[][] utf8(Collection<String> values) {
+        byte[][] encoded = new byte[values.size()][];
+        int i = 0;
+        for (String value : values) {
+            encoded[i++] = BinaryProtocol.utf8(value);
+        }
+        return encoded;
+    }
+
+    // Bytes taken by the strings with their 2 byte length prefixes
+    private static int encodedLength(byte[][] values) {
+        int length = 0;
+        for (byte[] value : values) {
+            length += 2 + value.length;
+        }
+        return length;
+    }
+}
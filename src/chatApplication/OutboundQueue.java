@@ -0,0 +1,156 @@
+package chatApplication;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+// Bounded queue of messages waiting to be written to one connection. Senders only enqueue, the
+// connection's writer drains several messages at a time and sends them with one gathering write,
+// so a slow client never holds up the thread that is broadcasting to it.
+// Each entry is a frame shared with other connections plus this connection's own view of its bytes;
+// the queue holds a reference on the frame until the writer or an overflow releases it.
+class OutboundQueue {
+
+    // Only chat lines are ever dropped, see Frame.droppable, and only whole ones: a frame the writer has
+    // sent part of, a file region or a protocol frame goes out as it is. When the policy finds nothing
+    // it may drop, the connection is dropped as with DISCONNECT.
+    enum OverflowPolicy {
+        DISCONNECT,  // drop the slow client, it has fallen too far behind to be useful
+        DROP_NEWEST, // keep the connection, discard the message that didn't fit
+        DROP_OLDEST  // keep the connection, discard the oldest queued message to make room
+    }
+
+    private final ArrayDeque<ByteBuffer> messages = new ArrayDeque<>();
+    private final ArrayDeque<Frame> frames = new ArrayDeque<>(); // same order as messages
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private long queuedBytes;
+    private long droppedMessages;
+
+    OutboundQueue(int capacity, OverflowPolicy policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    // Returns false when the queue is full and the policy says the connection must be dropped
+    synchronized boolean offer(Frame frame) {
+        if (messages.size() >= capacity) {
+            switch (policy) {
+                case DISCONNECT -> {
+                    return false;
+                }
+                case DROP_NEWEST -> {
+                    if (!frame.isDroppable()) {
+                        return false;
+                    }
+                    droppedMessages++;
+                    return true;
+                }
+                case DROP_OLDEST -> {
+                    if (!dropOldest()) {
+                        return false;
+                    }
+                    droppedMessages++;
+                }
+            }
+        }
+        ByteBuffer view = frame.retain().view();
+        messages.addLast(view);
+        frames.addLast(frame);
+        queuedBytes += view.remaining();
+        return true;
+    }
+
+    // The first queued chat line that none of has been written yet
+    private boolean dropOldest() {
+        Iterator<ByteBuffer> views = messages.iterator();
+        Iterator<Frame> queued = frames.iterator();
+        while (views.hasNext()) {
+            ByteBuffer view = views.next();
+            Frame frame = queued.next();
+            if (frame.isDroppable() && view.remaining() == frame.length()) {
+                views.remove();
+                queued.remove();
+                queuedBytes -= view.remaining();
+                frame.release();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Moves up to batch.length - offset messages into the batch, returns how many were moved.
+    // The frames come along so the writer can release them once their bytes are sent.
+    synchronized int drainTo(ByteBuffer[] batch, Frame[] batchFrames, int offset) {
+        int count = 0;
+        while (offset + count < batch.length && !messages.isEmpty()) {
+            ByteBuffer message = messages.pollFirst();
+            queuedBytes -= message.remaining();
+            batch[offset + count] = message;
+            batchFrames[offset + count++] = frames.pollFirst();
+        }
+        return count;
+    }
+
+    // Puts back the part of a batch the socket didn't accept, in order and ahead of anything queued since
+    synchronized void requeueFront(ByteBuffer[] batch, Frame[] batchFrames, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            messages.addFirst(batch[i]);
+            frames.addFirst(batchFrames[i]);
+            queuedBytes += batch[i].remaining();
+        }
+    }
+
+    // File regions are sent on their own with transferTo. Cuts the batch so it is either a single file
+    // region or only buffers, puts the rest back and returns the new batch size.
+    int splitAtFileRegion(ByteBuffer[] batch, Frame[] batchFrames, int count) {
+        for (int i = 0; i < count; i++) {
+            if (batchFrames[i].isFileRegion()) {
+                int end = i == 0 ? 1 : i;
+                requeueFront(batch, batchFrames, end, count);
+                for (int j = end; j < count; j++) {
+                    batch[j] = null;
+                    batchFrames[j] = null;
+                }
+                return end;
+            }
+        }
+        return count;
+    }
+
+    // Releases the frames of a fully written batch and clears both arrays
+    static void releaseBatch(ByteBuffer[] batch, Frame[] batchFrames, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (batchFrames[i] != null) {
+                batchFrames[i].release();
+            }
+            batchFrames[i] = null;
+            batch[i] = null;
+        }
+    }
+
+    synchronized boolean isEmpty() {
+        return messages.isEmpty();
+    }
+
+    synchronized int size() {
+        return messages.size();
+    }
+
+    synchronized long queuedBytes() {
+        return queuedBytes;
+    }
+
+    synchronized long droppedMessages() {
+        return droppedMessages;
+    }
+
+    synchronized void clear() {
+        messages.clear();
+        for (Frame frame : frames) {
+            frame.release();
+        }
+        frames.clear();
+        queuedBytes = 0;
+    }
+}
@@ -0,0 +1,148 @@
+package chatApplication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A stored file being sent to one client in chunks, see BinaryProtocol for the exchange. Only
+// TRANSFER_WINDOW chunks are queued at a time and more are queued as the client acknowledges them, so a
+// large download neither fills the outbound queue nor holds up the chat messages queued after it.
+// The chunk data goes out as file regions with transferTo; the checksum is taken from a mapping of the
+// same range, so the file never passes through the heap. Called from the connection's handler only.
+//
+// For a client that negotiated compression the chunks are deflated instead (see Compression), which
+// does read them into a pooled buffer. Files that are compressed already are sent as they are, and so is
+// the rest of a file once a chunk didn't get smaller.
+class OutgoingFile {
+    final String fileName;
+    final long size;
+    private final Transport client;
+    private final ProtocolCodec.Format format;
+    private final byte[] nameBytes;
+    private final FileChannel file;
+    private boolean compress;
+    private final AtomicInteger references = new AtomicInteger(1); // ours plus one per queued region
+    private long nextOffset = -1; // nothing is sent before the client's first /resume
+    private long acknowledged;
+    private boolean closed;
+
+    private OutgoingFile(Transport client, ProtocolCodec.Format format, boolean compress, String fileName,
+                         FileChannel file, long size) {
+        this.client = client;
+        this.format = format;
+        this.compress = compress;
+        this.fileName = fileName;
+        this.nameBytes = BinaryProtocol.utf8(fileName);
+        this.file = file;
+        this.size = size;
+    }
+
+    static OutgoingFile open(Transport client, ProtocolCodec.Format format, boolean compress, String fileName, Path path)
+            throws IOException {
+        FileChannel file = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new OutgoingFile(client, format, compress && !startsCompressed(file), fileName, file, file.size());
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    // The client has everything before offset; (re)send from there. Returns true if that is the whole file.
+    boolean resume(long offset) throws IOException {
+        if (offset < 0 || offset > size) {
+            return false; // not an offset of this file, the client is ignored like a stale ack
+        }
+        acknowledged = offset;
+        nextOffset = offset;
+        sendWindow();
+        return acknowledged == size;
+    }
+
+    // Returns true once the client has acknowledged the whole file
+    boolean acknowledge(long offset) throws IOException {
+        if (offset > acknowledged && offset <= nextOffset) {
+            acknowledged = offset;
+            sendWindow();
+        }
+        return acknowledged == size;
+    }
+
+    void close() {
+        if (!closed) {
+            closed = true;
+            release();
+        }
+    }
+
+    private void sendWindow() throws IOException {
+        long windowEnd = acknowledged + (long) BinaryProtocol.TRANSFER_WINDOW * BinaryProtocol.FILE_CHUNK_SIZE;
+        while (nextOffset < size && nextOffset < windowEnd && client.isOpen()) {
+            int length = (int) Math.min(BinaryProtocol.FILE_CHUNK_SIZE, size - nextOffset);
+            MappedByteBuffer data = file.map(FileChannel.MapMode.READ_ONLY, nextOffset, length);
+            int crc = BinaryProtocol.checksum(data);
+            if (compress) {
+                Frame chunk = compressedChunk(nextOffset, crc, data);
+                if (chunk != null) {
+                    send(chunk);
+                    Metrics.SERVER.fileBytesSent.add(length);
+                    nextOffset += length;
+                    continue;
+                }
+                compress = false;
+            }
+            send(header(nextOffset, length, crc));
+            references.incrementAndGet();
+            send(Frame.fileRegion(file, nextOffset, length, this::release));
+            nextOffset += length;
+        }
+    }
+
+    private Frame header(long offset, int length, int crc) {
+        if (format == ProtocolCodec.Format.TEXT) {
+            return Frame.text("/chunk " + offset + " " + length + " " + crc + " " + fileName);
+        }
+        ByteBuffer header = BinaryProtocol.allocateFrame(BinaryProtocol.FILE_CHUNK, 2 + nameBytes.length + 12 + length);
+        BinaryProtocol.putString(header, nameBytes);
+        header.putLong(offset).putInt(crc);
+        return Frame.pooled(header.flip());
+    }
+
+    // A whole FILE_CHUNK frame, compressed; null if it doesn't get smaller
+    private Frame compressedChunk(long offset, int crc, ByteBuffer data) {
+        ByteBuffer head = ByteBuffer.allocate(2 + nameBytes.length + 12);
+        BinaryProtocol.putString(head, nameBytes);
+        head.putLong(offset).putInt(crc).flip();
+        ByteBuffer frame = Compression.compress(BinaryProtocol.FILE_CHUNK, head, data);
+        return frame == null ? null : Frame.pooled(frame);
+    }
+
+    private static boolean startsCompressed(FileChannel file) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(8);
+        file.read(head, 0);
+        return Compression.isCompressedFormat(head.flip());
+    }
+
+    private void send(Frame frame) {
+        try {
+            client.write(frame);
+        } finally {
+            frame.release();
+        }
+    }
+
+    // The file stays open until the last queued region has been written or dropped
+    private void release() {
+        if (references.decrementAndGet() == 0) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                Log.error("file.close.failed", e, "name", fileName);
+            }
+        }
+    }
+}
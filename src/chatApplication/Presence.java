@@ -0,0 +1,96 @@
+package chatApplication;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+// Tells clients who is online. Logins and logouts only mark a name as changed; batchMillis later the net
+// change is sent to everyone as one delta from version n to n + 1, so a login storm costs one small message
+// per client per batch instead of a full user list per login. A client gets the full list (a snapshot) when
+// it logs in and when it asks for one because a delta didn't start at the version it has.
+class Presence {
+    private final Predicate<String> online; // on any node of the cluster
+    private final long batchMillis;
+    private final ScheduledExecutorService flusher;
+
+    // Guarded by this
+    private final Set<String> published = new LinkedHashSet<>(); // the list as of version
+    private final Set<String> changed = new HashSet<>();
+    private long version;
+    private boolean flushScheduled;
+    private OutboundMessage snapshot; // cached for the current version
+
+    Presence(Predicate<String> online, long batchMillis) {
+        this.online = online;
+        this.batchMillis = batchMillis;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "presence-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Called after a user logged in or out here or on another node
+    void changed(String username) {
+        boolean flushNow;
+        synchronized (this) {
+            changed.add(username);
+            flushNow = batchMillis <= 0;
+            if (!flushNow && !flushScheduled) {
+                flushScheduled = true;
+                flusher.schedule(this::flush, batchMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (flushNow) {
+            flush();
+        }
+    }
+
+    // The full list at the current version, the caller releases it
+    synchronized OutboundMessage snapshot() {
+        if (snapshot == null) {
+            snapshot = OutboundMessage.users(version, published);
+        }
+        return snapshot.retain();
+    }
+
+    // Checks every changed name again, so a user who logged in and out within one batch
+    // doesn't show up at all
+    void flush() {
+        OutboundMessage delta;
+        synchronized (this) {
+            flushScheduled = false;
+            List<String> joined = new ArrayList<>();
+            List<String> left = new ArrayList<>();
+            for (String username : changed) {
+                boolean isOnline = online.test(username);
+                if (isOnline && published.add(username)) {
+                    joined.add(username);
+                } else if (!isOnline && published.remove(username)) {
+                    left.add(username);
+                }
+            }
+            changed.clear();
+            if (joined.isEmpty() && left.isEmpty()) {
+                return;
+            }
+            delta = OutboundMessage.presence(version, version + 1, joined, left);
+            version++;
+            if (snapshot != null) {
+                snapshot.release();
+                snapshot = null;
+            }
+        }
+        try {
+            Server.ConnectionHandler.broadcast(delta);
+        } finally {
+            delta.release();
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package chatApplication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Turns the bytes of one connection into calls on its ConnectionHandler. Every connection starts with a
+// TextCodec, which hands over to a BinaryCodec when the client negotiates the binary protocol.
+interface ProtocolCodec {
+    enum Format { TEXT, BINARY }
+
+    Format format();
+
+    // Consumes bytes until the buffer is empty or the handler switched to another codec.
+    // Incomplete input is kept for the next call.
+    void decode(ByteBuffer data, Server.ConnectionHandler handler) throws IOException;
+}
@@ -0,0 +1,203 @@
+package chatApplication;
+
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+
+// What a ConnectionHandler writes through: a session that can outlive the connection it started on. Every
+// byte written in the session is counted, and once the user is logged in the last frames are kept, at
+// most maxFrames of them and maxBytes in all. When the connection drops, the session stays behind without
+// one. A client that reconnects in time says how many bytes it received, gets the rest of them again and
+// carries on where it was; the handler's codec carries on where it was with the client's bytes too.
+//
+// The frames are kept by reference, as they were queued; a broadcast is still one frame however many
+// sessions keep it. A file region being kept holds its file open, see Frame.from.
+//
+// Writes hold the session's lock while they go to the connection, so the bytes are counted in the order
+// the connection sends them.
+final class ResumableTransport implements Transport {
+    private final int maxFrames;
+    private final long maxBytes;
+
+    // Guarded by this
+    private final ArrayDeque<Frame> replay = new ArrayDeque<>();
+    private long sent; // bytes written in the session
+    private long replayStart; // where in the session the first kept frame starts
+    private long replayBytes;
+    private boolean keeping; // frames are only kept for sessions that can be resumed
+    private long detachedSince; // System.nanoTime() when the connection dropped
+    private boolean ended;
+
+    private volatile Transport current; // null while the session has no connection, only set under the lock
+    private volatile boolean closed; // nothing more is written, the session can't be resumed
+    private volatile long received; // bytes the handler read in the session, one connection's thread at a time
+    private volatile SocketAddress remoteAddress;
+
+    ResumableTransport(Transport connection, int maxFrames, long maxBytes) {
+        this.current = connection;
+        this.remoteAddress = connection.remoteAddress();
+        this.maxFrames = maxFrames;
+        this.maxBytes = maxBytes;
+    }
+
+    // From here on frames are kept for a reconnect
+    synchronized void keepForResume() {
+        keeping = true;
+        replayStart = sent;
+    }
+
+    void received(int bytes) {
+        received += bytes;
+    }
+
+    @Override
+    public synchronized void write(Frame frame) {
+        if (closed) {
+            return;
+        }
+        long size = frame.size();
+        sent += size;
+        if (keeping) {
+            replay.addLast(frame.retain());
+            replayBytes += size;
+            while (replay.size() > maxFrames || replayBytes > maxBytes) {
+                Frame oldest = replay.pollFirst();
+                replayStart += oldest.size();
+                replayBytes -= oldest.size();
+                oldest.release();
+            }
+        }
+        Transport connection = current;
+        if (connection != null) {
+            connection.write(frame);
+        }
+    }
+
+    @Override
+    public void suspendReads(long nanos) {
+        Transport connection = current;
+        if (connection != null) {
+            connection.suspendReads(nanos);
+        }
+    }
+
+    // Ends the session: the connection is closed once what was written has been sent
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        clearReplay();
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    // Drops the connection only, the session may still be resumed
+    @Override
+    public synchronized void abort() {
+        if (current != null) {
+            current.abort();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public SocketAddress remoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public int queuedMessages() {
+        Transport connection = current;
+        return connection == null ? 0 : connection.queuedMessages();
+    }
+
+    @Override
+    public long writeBlockedNanos() {
+        Transport connection = current;
+        return connection == null ? 0 : connection.writeBlockedNanos();
+    }
+
+    // The connection has closed. Returns false if it wasn't the session's connection (any more).
+    synchronized boolean disconnected(Transport connection) {
+        if (connection != current) {
+            return false;
+        }
+        current = null;
+        detachedSince = System.nanoTime();
+        return true;
+    }
+
+    // How long the session has been without a connection, -1 while it has one or has ended
+    synchronized long detachedNanos() {
+        return current != null || ended ? -1 : System.nanoTime() - detachedSince;
+    }
+
+    // Ends the session if it has been without a connection for graceNanos, or closed without one. Returns
+    // true if this call ended it, the caller then cleans up after it.
+    synchronized boolean expire(long graceNanos) {
+        if (current != null || ended || (!closed && System.nanoTime() - detachedSince < graceNanos)) {
+            return false;
+        }
+        ended = true;
+        closed = true;
+        clearReplay();
+        return true;
+    }
+
+    // A reconnect found the old connection still open; we hadn't noticed it was gone. Returns false if
+    // there was none to drop.
+    synchronized boolean dropConnection() {
+        if (current == null || closed) {
+            return false;
+        }
+        current.abort();
+        return true;
+    }
+
+    // Continues the session on a new connection whose client received the first clientReceived bytes of
+    // it: tells the client how much of its side we got, then sends what it missed. Returns false if those
+    // bytes are no longer kept.
+    synchronized boolean resume(Transport connection, long clientReceived) {
+        if (closed || current != null || !keeping || clientReceived < replayStart || clientReceived > sent) {
+            return false;
+        }
+        current = connection;
+        remoteAddress = connection.remoteAddress();
+        Frame reply = Frame.text("/reconnected " + received); // not part of the session, never counted
+        try {
+            connection.write(reply);
+        } finally {
+            reply.release();
+        }
+        long offset = replayStart;
+        for (Frame frame : replay) {
+            long size = frame.size();
+            if (offset + size > clientReceived) {
+                Frame missed = frame.from(Math.max(0, clientReceived - offset));
+                try {
+                    connection.write(missed);
+                } finally {
+                    missed.release();
+                }
+            }
+            offset += size;
+        }
+        Metrics.SERVER.sessionReplayBytes.add(sent - clientReceived);
+        return true;
+    }
+
+    private void clearReplay() {
+        Frame frame;
+        while ((frame = replay.pollFirst()) != null) {
+            frame.release();
+        }
+        replayBytes = 0;
+        replayStart = sent;
+    }
+}
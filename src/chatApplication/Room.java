@@ -0,0 +1,113 @@
+package chatApplication;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A named audience. The members are split into shards, one per fan-out thread of the RoomRegistry, and
+// shard i of every room is always delivered by thread i. A message to a big room is therefore handed to
+// all fan-out threads at once, while each member still gets the room's messages in the order they were
+// published. Small rooms are cheaper to deliver on the publishing thread, which is done whenever none of
+// the room's earlier messages is still waiting for a fan-out thread.
+class Room {
+    final String name;
+    private final Set<Server.ConnectionHandler>[] shards;
+    private final ExecutorService[] owners;
+    private final int parallelThreshold;
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger pendingShards = new AtomicInteger();
+    private boolean closed; // guarded by this, see RoomRegistry
+
+    @SuppressWarnings("unchecked")
+    Room(String name, ExecutorService[] owners, int parallelThreshold) {
+        this.name = name;
+        this.owners = owners;
+        this.parallelThreshold = parallelThreshold;
+        this.shards = (Set<Server.ConnectionHandler>[]) new Set<?>[owners.length];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = ConcurrentHashMap.newKeySet();
+        }
+    }
+
+    // Returns false if the room was closed because it became empty; the caller then looks it up again
+    synchronized boolean join(Server.ConnectionHandler member) {
+        if (closed) {
+            return false;
+        }
+        if (shardOf(member).add(member)) {
+            size.incrementAndGet();
+        }
+        return true;
+    }
+
+    // Returns true if the room is now empty and has been closed
+    synchronized boolean leave(Server.ConnectionHandler member, boolean closeWhenEmpty) {
+        if (shardOf(member).remove(member)) {
+            size.decrementAndGet();
+        }
+        if (closeWhenEmpty && size.get() == 0) {
+            closed = true;
+        }
+        return closed;
+    }
+
+    boolean contains(Server.ConnectionHandler member) {
+        return shardOf(member).contains(member);
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    // Queues the message for every member. The caller keeps its reference to the message.
+    void publish(OutboundMessage message) {
+        long start = System.nanoTime();
+        if (size.get() < parallelThreshold && pendingShards.get() == 0) {
+            for (Set<Server.ConnectionHandler> shard : shards) {
+                deliver(shard, message);
+            }
+            Metrics.SERVER.broadcastLatency.record(System.nanoTime() - start);
+            return;
+        }
+        // The latency is taken when the last shard is done
+        AtomicInteger remaining = new AtomicInteger(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            Set<Server.ConnectionHandler> shard = shards[i];
+            if (shard.isEmpty()) {
+                shardDone(remaining, start);
+                continue;
+            }
+            message.retain();
+            pendingShards.incrementAndGet();
+            owners[i].execute(() -> {
+                try {
+                    deliver(shard, message);
+                } finally {
+                    pendingShards.decrementAndGet();
+                    message.release();
+                    shardDone(remaining, start);
+                }
+            });
+        }
+    }
+
+    private static void deliver(Set<Server.ConnectionHandler> shard, OutboundMessage message) {
+        int delivered = 0;
+        for (Server.ConnectionHandler member : shard) {
+            member.send(message);
+            delivered++;
+        }
+        Metrics.SERVER.messagesDelivered.add(delivered); // once per shard, not per member
+    }
+
+    private static void shardDone(AtomicInteger remaining, long start) {
+        if (remaining.decrementAndGet() == 0) {
+            Metrics.SERVER.broadcastLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    private Set<Server.ConnectionHandler> shardOf(Server.ConnectionHandler member) {
+        return shards[Math.floorMod(System.identityHashCode(member), shards.length)];
+    }
+}
@@ -0,0 +1,73 @@
+package chatApplication;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+// All rooms by name. A room is created by its first join and dropped when its last member leaves, except
+// the lobby: every logged-in user is in it, and a broadcast is a message to the lobby.
+class RoomRegistry {
+    static final String LOBBY = "lobby";
+    private static final Pattern VALID_NAME = Pattern.compile("[A-Za-z0-9_-]{1,32}");
+
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final ExecutorService[] fanOutThreads;
+    private final int parallelThreshold;
+    private final Room lobby;
+
+    RoomRegistry(int fanOutThreads, int parallelThreshold) {
+        this.fanOutThreads = new ExecutorService[Math.max(1, fanOutThreads)];
+        for (int i = 0; i < this.fanOutThreads.length; i++) {
+            String threadName = "fan-out-" + i;
+            this.fanOutThreads[i] = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        this.parallelThreshold = parallelThreshold;
+        this.lobby = new Room(LOBBY, this.fanOutThreads, parallelThreshold);
+        rooms.put(LOBBY, lobby);
+    }
+
+    static boolean isValidName(String name) {
+        return VALID_NAME.matcher(name).matches();
+    }
+
+    Room lobby() {
+        return lobby;
+    }
+
+    Room lookup(String name) {
+        return rooms.get(name);
+    }
+
+    Room join(String name, Server.ConnectionHandler member) {
+        while (true) {
+            Room room = rooms.computeIfAbsent(name, key -> new Room(key, fanOutThreads, parallelThreshold));
+            if (room.join(member)) {
+                return room;
+            }
+            // Closed by its last member leaving while we looked it up, the next lookup creates a new one
+        }
+    }
+
+    void leave(String name, Server.ConnectionHandler member) {
+        Room room = rooms.get(name);
+        if (room != null && room.leave(member, room != lobby)) {
+            rooms.remove(name, room);
+        }
+    }
+
+    // "name (members)" for every room
+    List<String> describe() {
+        List<String> list = new ArrayList<>();
+        for (Room room : rooms.values()) {
+            list.add(room.name + " (" + room.size() + ")");
+        }
+        return list;
+    }
+}
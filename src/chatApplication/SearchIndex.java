@@ -0,0 +1,951 @@
+package chatApplication;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+// Full-text search over what was said in the lobby and in private, for "/search". Every node indexes the
+// lobby lines it journals and the private messages it passes on, so a search only looks at this node.
+//
+// Messages reach the index the way they reach the OfflineInbox: add puts them in a RingBuffer and returns,
+// and the search-indexer thread appends them to documents.dat and adds their terms to the tail, an inverted
+// index of the newest documents on the heap. Documents are numbered in the order they come. When the tail
+// holds segmentDocuments documents it is written out as a segment file and mapped, and the search-merger
+// thread merges every mergeFactor neighbouring segments of the same size into one. A segment is
+//
+//   [first document: 4][end document: 4][term count: 4][term table position: 4]
+//   the terms in byte order, each [length: 2][UTF-8][documents: 4][last document: 4][postings length: 4][postings]
+//   the term table: where each term starts, for binary search
+//
+// and a posting list is pairs of varints, (document - previous document, occurrences), so documents close
+// to each other take a byte or two. The segments live outside the heap; on it there are the tail and some
+// 28 bytes per document (where its record is, its time, its sender and recipient and its length) in
+// primitive arrays.
+//
+// A query matches the messages with all its terms, ranked by BM25 and up to twice as high for new ones. A
+// private message is only found by its sender and its recipient. Searches run on their own few threads.
+//
+// After a restart the segments are mapped again and only the documents after the last one are indexed anew.
+// documents.dat is forced before a segment is written, so no segment refers to a document the file lost.
+class SearchIndex {
+    // sender and recipient are null for a lobby line, its text starts with who said it
+    record Message(long time, String sender, String recipient, String text) {
+    }
+
+    // total: the matches the user may see, hits: the page asked for, best first
+    record Results(int total, List<Message> hits) {
+    }
+
+    private record Scored(double score, int document) {
+    }
+
+    private record PostingList(ByteBuffer data, int count, int last) {
+    }
+
+    private record TermPostings(byte[] term, PostingList postings) {
+    }
+
+    // What searches look at, replaced as a whole when a segment is added or merged
+    private record View(List<Segment> segments, Tail tail) {
+    }
+
+    private interface RecordSink {
+        void accept(long position, ByteBuffer record) throws IOException;
+    }
+
+    private static final String STORE = "documents.dat";
+    private static final String SUFFIX = ".idx";
+    private static final String TEMP = ".tmp";
+    private static final int HEADER_LENGTH = 16;
+    private static final int MAX_RECORD = 128 * 1024; // longer messages are not indexed
+    private static final int READ_BUFFER = 1024 * 1024;
+    private static final int MAX_TERM_LENGTH = 64;
+    private static final int MAX_QUERY_TERMS = 8;
+    private static final int MAX_RESULTS = 1000; // pages further down are empty
+    private static final int MAX_QUEUED_SEARCHES = 256;
+    private static final long MAX_SEGMENT_BYTES = Integer.MAX_VALUE; // positions in a segment are ints
+    private static final double K1 = 1.2; // BM25: how soon more occurrences of a term stop adding much
+    private static final double B = 0.75; // BM25: how much longer messages are marked down
+    private static final double RECENCY_MILLIS = TimeUnit.DAYS.toMillis(7); // a week old counts 1.5 times, new twice
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final Comparator<Scored> BY_SCORE =
+            Comparator.comparingDouble(Scored::score).thenComparingInt(Scored::document); // newer wins a tie
+    private static final Set<String> STOP_WORDS = Set.of("a", "an", "and", "are", "as", "at", "be", "but", "by",
+            "for", "i", "if", "in", "is", "it", "me", "my", "of", "on", "or", "so", "that", "the", "this", "to",
+            "was", "we", "with", "you");
+
+    private final Path directory;
+    private final int segmentDocuments;
+    private final int mergeFactor;
+    private final RingBuffer<Message> requests;
+    private final ExecutorService searchers;
+    private final Thread indexer;
+    private final Thread merger;
+    private final FileChannel store;
+    private long storeEnd; // indexer only
+    // Per document, set by the indexer before the document is in any posting list
+    private final LongColumn positions = new LongColumn(); // of its record in the store
+    private final LongColumn times = new LongColumn();
+    private final IntColumn senders = new IntColumn(); // user ids, 0 for a lobby line
+    private final IntColumn recipients = new IntColumn();
+    private final IntColumn lengths = new IntColumn(); // terms, repeated ones included
+    private final Map<String, Integer> userIds = new ConcurrentHashMap<>(); // added to by the indexer only
+    private int nextUserId = 1;
+    private volatile int documentCount;
+    private volatile long termCount; // of all documents, for their average length
+    private volatile View view;
+    private volatile boolean idle;
+
+    SearchIndex(Path directory, int segmentDocuments, int mergeFactor, int queueSize, int threads) throws IOException {
+        this.directory = directory;
+        this.segmentDocuments = Math.max(1, segmentDocuments);
+        this.mergeFactor = Math.max(2, mergeFactor);
+        this.requests = new RingBuffer<>(queueSize);
+        Files.createDirectories(directory);
+        store = FileChannel.open(directory.resolve(STORE),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        loadStore();
+        List<Segment> segments = openSegments();
+        Tail tail = new Tail(segments.isEmpty() ? 0 : segments.get(segments.size() - 1).end);
+        reindex(tail);
+        view = new View(segments, tail);
+        searchers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_QUEUED_SEARCHES), runnable -> {
+            Thread thread = new Thread(runnable, "search");
+            thread.setDaemon(true);
+            return thread;
+        });
+        indexer = new Thread(this::runIndexer, "search-indexer");
+        indexer.setDaemon(true);
+        merger = new Thread(this::runMerger, "search-merger");
+        merger.setDaemon(true);
+    }
+
+    void start() {
+        merger.start();
+        indexer.start();
+    }
+
+    // Any thread; sender and recipient null for a lobby line. Returns false if the indexer is too far
+    // behind to take it.
+    boolean add(String sender, String recipient, String text) {
+        if (!requests.offer(new Message(System.currentTimeMillis(), sender, recipient, text))) {
+            Metrics.SERVER.searchDropped.increment();
+            return false;
+        }
+        if (idle) {
+            LockSupport.unpark(indexer);
+        }
+        return true;
+    }
+
+    // Any thread: page (from 0) of the results, pageSize to a page, is handed to answer on a search thread,
+    // null if the search failed. Returns false if too many searches are waiting already.
+    boolean search(String username, String query, int page, int pageSize, Consumer<Results> answer) {
+        try {
+            searchers.execute(() -> {
+                long start = System.nanoTime();
+                Results results;
+                try {
+                    results = find(username, query, (long) page * pageSize, pageSize);
+                } catch (IOException | RuntimeException e) {
+                    Log.error("search.failed", e, "user", username, "query", query);
+                    results = null;
+                }
+                Metrics.SERVER.searchLatency.record(System.nanoTime() - start);
+                answer.accept(results);
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    int documents() {
+        return documentCount;
+    }
+
+    int segmentCount() {
+        return view.segments.size();
+    }
+
+    // Lower-cased runs of letters and digits, without stop words and runs too long to be words
+    static List<String> terms(String text) {
+        List<String> terms = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (letter && start < 0) {
+                start = i;
+            } else if (!letter && start >= 0) {
+                String term = text.substring(start, i).toLowerCase(Locale.ROOT);
+                if (term.length() <= MAX_TERM_LENGTH && !STOP_WORDS.contains(term)) {
+                    terms.add(term);
+                }
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    // The names of a private message's sender and recipient can be searched for, as a lobby line's sender can
+    private static String searchable(Message message) {
+        return message.sender == null ? message.text : message.sender + " " + message.recipient + " " + message.text;
+    }
+
+    private Results find(String username, String query, long offset, int count) throws IOException {
+        List<String> terms = new ArrayList<>(new LinkedHashSet<>(terms(query)));
+        if (terms.isEmpty()) {
+            return new Results(0, List.of());
+        }
+        terms = terms.subList(0, Math.min(terms.size(), MAX_QUERY_TERMS));
+        View view = this.view;
+        int documents = Math.max(1, documentCount);
+        double averageLength = Math.max(1.0, (double) termCount / documents);
+        Integer id = userIds.get(username);
+        int me = id == null ? -1 : id;
+
+        // Every term's posting list in every segment and the tail, null where there is none
+        List<Segment> segments = view.segments;
+        PostingList[][] lists = new PostingList[segments.size() + 1][terms.size()];
+        double[] weights = new double[terms.size()];
+        for (int t = 0; t < terms.size(); t++) {
+            ByteBuffer term = ByteBuffer.wrap(BinaryProtocol.utf8(terms.get(t)));
+            for (int s = 0; s < segments.size(); s++) {
+                lists[s][t] = segments.get(s).postings(term);
+            }
+            lists[segments.size()][t] = view.tail.postings(terms.get(t));
+            int containing = 0;
+            for (PostingList[] source : lists) {
+                containing += source[t] == null ? 0 : source[t].count;
+            }
+            weights[t] = Math.log(1 + (documents - containing + 0.5) / (containing + 0.5)); // BM25's idf
+        }
+
+        int keep = (int) Math.min(offset + count, MAX_RESULTS);
+        PriorityQueue<Scored> best = new PriorityQueue<>(BY_SCORE); // the worst of the best first
+        int total = 0;
+        long now = System.currentTimeMillis();
+        for (PostingList[] source : lists) {
+            total += match(source, weights, me, averageLength, now, best, keep);
+        }
+        List<Scored> ranked = new ArrayList<>(best);
+        ranked.sort(BY_SCORE.reversed());
+        List<Message> hits = new ArrayList<>();
+        for (int i = (int) Math.min(offset, ranked.size()); i < ranked.size(); i++) { // past MAX_RESULTS, none
+            hits.add(read(ranked.get(i).document));
+        }
+        return new Results(total, hits);
+    }
+
+    // Goes through the documents of one segment that have every term, the rarest term's list leading, and
+    // keeps the best in best. Returns how many of them the user may see.
+    private int match(PostingList[] lists, double[] weights, int me, double averageLength, long now,
+                      PriorityQueue<Scored> best, int keep) {
+        Cursor[] cursors = new Cursor[lists.length];
+        for (int t = 0; t < lists.length; t++) {
+            if (lists[t] == null) {
+                return 0;
+            }
+            cursors[t] = new Cursor(lists[t], weights[t]);
+        }
+        Arrays.sort(cursors, Comparator.comparingInt(cursor -> cursor.count));
+        int total = 0;
+        int target = 0;
+        while (true) {
+            boolean everyTerm = true;
+            for (Cursor cursor : cursors) {
+                if (!cursor.advance(target)) {
+                    return total;
+                }
+                if (cursor.document > target) {
+                    target = cursor.document;
+                    everyTerm = false;
+                    break;
+                }
+            }
+            if (!everyTerm) {
+                continue;
+            }
+            if (isVisible(target, me)) {
+                total++;
+                Scored scored = new Scored(score(target, cursors, averageLength, now), target);
+                if (best.size() < keep) {
+                    best.add(scored);
+                } else if (keep > 0 && BY_SCORE.compare(scored, best.peek()) > 0) {
+                    best.poll();
+                    best.add(scored);
+                }
+            }
+            target++;
+        }
+    }
+
+    private boolean isVisible(int document, int user) {
+        int recipient = recipients.get(document);
+        return recipient == 0 || recipient == user || senders.get(document) == user;
+    }
+
+    private double score(int document, Cursor[] cursors, double averageLength, long now) {
+        double lengthFactor = K1 * (1 - B + B * lengths.get(document) / averageLength);
+        double score = 0;
+        for (Cursor cursor : cursors) {
+            score += cursor.weight * cursor.frequency * (K1 + 1) / (cursor.frequency + lengthFactor);
+        }
+        long age = Math.max(0, now - times.get(document));
+        return score * (1 + RECENCY_MILLIS / (RECENCY_MILLIS + age));
+    }
+
+    private Message read(int document) throws IOException {
+        long position = positions.get(document);
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(length, position);
+        ByteBuffer record = ByteBuffer.allocate(length.flip().getInt());
+        readFully(record, position + 4);
+        return decode(record.flip());
+    }
+
+    // Positional reads, any number of searches read while the indexer appends
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (store.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Search document store is shorter than its index");
+            }
+        }
+    }
+
+    private void runIndexer() {
+        while (true) {
+            List<Message> batch = new ArrayList<>();
+            Message message;
+            while ((message = requests.poll()) != null) {
+                batch.add(message);
+            }
+            if (!batch.isEmpty()) {
+                index(batch);
+                continue;
+            }
+            idle = true;
+            if ((message = requests.poll()) == null) { // one that came in before idle was set
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+            idle = false;
+            if (message != null) {
+                index(List.of(message));
+            }
+        }
+    }
+
+    // The batch goes to the store in one write, then into the tail
+    private void index(List<Message> batch) {
+        List<ByteBuffer> records = new ArrayList<>();
+        List<Message> messages = new ArrayList<>();
+        List<Map<String, Integer>> frequencies = new ArrayList<>();
+        for (Message message : batch) {
+            List<String> terms = terms(searchable(message));
+            ByteBuffer record = encode(message, terms.size());
+            if (record.remaining() > MAX_RECORD) {
+                Metrics.SERVER.searchDropped.increment();
+                continue;
+            }
+            Map<String, Integer> counts = new LinkedHashMap<>();
+            for (String term : terms) {
+                counts.merge(term, 1, Integer::sum);
+            }
+            records.add(record);
+            messages.add(message);
+            frequencies.add(counts);
+        }
+        try {
+            ByteBuffer[] buffers = records.toArray(new ByteBuffer[0]);
+            store.position(storeEnd);
+            while (buffers.length > 0 && buffers[buffers.length - 1].hasRemaining()) {
+                store.write(buffers);
+            }
+            Tail tail = view.tail;
+            for (int i = 0; i < messages.size(); i++) {
+                Message message = messages.get(i);
+                int length = frequencies.get(i).values().stream().mapToInt(Integer::intValue).sum();
+                int document = addDocument(storeEnd, message.time, message.sender, message.recipient, length);
+                storeEnd += records.get(i).limit();
+                tail.add(document, frequencies.get(i));
+            }
+            Metrics.SERVER.documentsIndexed.add(messages.size());
+            if (tail.documents() >= segmentDocuments) {
+                seal(tail);
+            }
+        } catch (IOException e) {
+            Log.error("search.index.failed", e, "messages", messages.size()); // the next batch overwrites them
+        }
+    }
+
+    private int addDocument(long position, long time, String sender, String recipient, int length) {
+        int document = documentCount;
+        positions.set(document, position);
+        times.set(document, time);
+        senders.set(document, userId(sender));
+        recipients.set(document, userId(recipient));
+        lengths.set(document, length);
+        termCount += length;
+        documentCount = document + 1;
+        return document;
+    }
+
+    private int userId(String username) {
+        return username == null ? 0 : userIds.computeIfAbsent(username, name -> nextUserId++);
+    }
+
+    // Writes the tail out as a segment and starts a new one
+    private void seal(Tail tail) throws IOException {
+        store.force(false); // the documents first, see the class comment
+        Path path = directory.resolve(Segment.fileName(tail.base, tail.end()));
+        Path temp = path.resolveSibling(path.getFileName() + TEMP);
+        try (SegmentWriter writer = new SegmentWriter(temp, tail.base, tail.end())) {
+            for (TermPostings term : tail.sorted()) {
+                writer.term(term.term, List.of(term.postings));
+            }
+            writer.finish();
+        }
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+        Segment segment = Segment.open(path);
+        synchronized (this) {
+            List<Segment> segments = new ArrayList<>(view.segments);
+            segments.add(segment);
+            view = new View(segments, new Tail(tail.end()));
+        }
+        LockSupport.unpark(merger);
+    }
+
+    private void runMerger() {
+        while (true) {
+            List<Segment> run = mergeCandidates(view.segments);
+            if (run.isEmpty()) {
+                LockSupport.park(this);
+                continue;
+            }
+            try {
+                merge(run);
+            } catch (IOException | RuntimeException e) {
+                Log.error("search.merge.failed", e);
+                LockSupport.parkNanos(this, TimeUnit.MINUTES.toNanos(1)); // the disk may be full, no busy retries
+            }
+        }
+    }
+
+    // mergeFactor neighbours of the same size class, segmentDocuments times the same power of mergeFactor
+    private List<Segment> mergeCandidates(List<Segment> segments) {
+        for (int i = 0; i + mergeFactor <= segments.size(); i++) {
+            int tier = tier(segments.get(i));
+            boolean sameTier = true;
+            long bytes = 0;
+            for (int j = i; j < i + mergeFactor; j++) {
+                sameTier &= tier(segments.get(j)) == tier;
+                bytes += segments.get(j).size();
+            }
+            if (sameTier && bytes <= MAX_SEGMENT_BYTES) {
+                return new ArrayList<>(segments.subList(i, i + mergeFactor));
+            }
+        }
+        return List.of();
+    }
+
+    private int tier(Segment segment) {
+        int tier = 0;
+        for (long size = (long) segmentDocuments * mergeFactor; segment.documents() >= size; size *= mergeFactor) {
+            tier++;
+        }
+        return tier;
+    }
+
+    // Goes through the segments' terms side by side in byte order; a term's posting lists are joined in
+    // document order. Searches keep using the old segments until the merged one replaces them.
+    private void merge(List<Segment> run) throws IOException {
+        Segment first = run.get(0);
+        Segment last = run.get(run.size() - 1);
+        Path path = directory.resolve(Segment.fileName(first.base, last.end));
+        Path temp = path.resolveSibling(path.getFileName() + TEMP);
+        try (SegmentWriter writer = new SegmentWriter(temp, first.base, last.end)) {
+            int[] next = new int[run.size()];
+            while (true) {
+                ByteBuffer smallest = null;
+                for (int s = 0; s < run.size(); s++) {
+                    if (next[s] < run.get(s).termCount) {
+                        ByteBuffer term = run.get(s).term(next[s]);
+                        if (smallest == null || term.compareTo(smallest) < 0) {
+                            smallest = term;
+                        }
+                    }
+                }
+                if (smallest == null) {
+                    break;
+                }
+                List<PostingList> parts = new ArrayList<>();
+                for (int s = 0; s < run.size(); s++) {
+                    if (next[s] < run.get(s).termCount && run.get(s).term(next[s]).equals(smallest)) {
+                        parts.add(run.get(s).postings(next[s]++));
+                    }
+                }
+                byte[] term = new byte[smallest.remaining()];
+                smallest.get(term);
+                writer.term(term, parts);
+            }
+            writer.finish();
+        }
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        Segment merged = Segment.open(path);
+        synchronized (this) {
+            List<Segment> segments = new ArrayList<>(view.segments);
+            int index = segments.indexOf(first);
+            segments.subList(index, index + run.size()).clear();
+            segments.add(index, merged);
+            view = new View(segments, view.tail);
+        }
+        // Searches still reading them keep their mappings, the files can go
+        for (Segment segment : run) {
+            Files.deleteIfExists(segment.path);
+        }
+        Log.info("search.merged", "segments", run.size(), "documents", merged.documents());
+    }
+
+    // Rebuilds the per-document arrays from the store, cutting off a record a crash left half written
+    private void loadStore() throws IOException {
+        storeEnd = forEachRecord(0, (position, record) -> {
+            long time = record.getLong();
+            int length = record.getShort() & 0xFFFF;
+            String sender = BinaryProtocol.getString(record);
+            String recipient = BinaryProtocol.getString(record);
+            addDocument(position, time, sender.isEmpty() ? null : sender, recipient.isEmpty() ? null : recipient, length);
+        });
+        store.truncate(storeEnd);
+    }
+
+    // The segments that cover the documents from the first on without a gap. What a merge left behind and
+    // segments of documents the store lost are deleted, those documents are indexed again.
+    private List<Segment> openSegments() throws IOException {
+        List<int[]> ranges = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.toList()) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TEMP)) {
+                    Files.delete(file);
+                } else if (name.endsWith(SUFFIX)) {
+                    String[] range = name.substring(0, name.length() - SUFFIX.length()).split("-");
+                    ranges.add(new int[] {Integer.parseInt(range[0]), Integer.parseInt(range[1])});
+                }
+            }
+        }
+        ranges.sort(Comparator.<int[]>comparingInt(range -> range[0]).thenComparingInt(range -> -range[1]));
+        List<Segment> segments = new ArrayList<>();
+        int covered = 0;
+        for (int[] range : ranges) {
+            Path file = directory.resolve(Segment.fileName(range[0], range[1]));
+            if (range[0] == covered && range[1] <= documentCount) {
+                segments.add(Segment.open(file));
+                covered = range[1];
+            } else {
+                Files.delete(file);
+            }
+        }
+        return segments;
+    }
+
+    // The documents after the last segment, back into the tail
+    private void reindex(Tail tail) throws IOException {
+        if (tail.base >= documentCount) {
+            return;
+        }
+        int[] document = {tail.base};
+        forEachRecord(positions.get(tail.base), (position, record) -> {
+            Map<String, Integer> counts = new HashMap<>();
+            for (String term : terms(searchable(decode(record)))) {
+                counts.merge(term, 1, Integer::sum);
+            }
+            tail.add(document[0]++, counts);
+        });
+    }
+
+    // Hands the store's records from position on to the sink. Returns where the last whole one ends.
+    private long forEachRecord(long position, RecordSink sink) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER).limit(0);
+        long size = store.size();
+        long read = position;
+        long next = position;
+        while (true) {
+            if (buffer.remaining() < 4 || buffer.remaining() < 4 + buffer.getInt(buffer.position())) {
+                buffer.compact();
+                int n = read < size ? store.read(buffer, read) : -1;
+                buffer.flip();
+                if (n <= 0) {
+                    return next;
+                }
+                read += n;
+                continue;
+            }
+            int length = buffer.getInt();
+            if (length < 14 || length > MAX_RECORD) {
+                return next;
+            }
+            sink.accept(next, buffer.slice(buffer.position(), length));
+            buffer.position(buffer.position() + length);
+            next += 4 + length;
+        }
+    }
+
+    //   [length: 4][time: 8][terms: 2][sender: 2 + UTF-8][recipient: 2 + UTF-8][text: UTF-8]
+    // with empty names for a lobby line
+    private static ByteBuffer encode(Message message, int terms) {
+        byte[] sender = BinaryProtocol.utf8(message.sender == null ? "" : message.sender);
+        byte[] recipient = BinaryProtocol.utf8(message.recipient == null ? "" : message.recipient);
+        byte[] text = BinaryProtocol.utf8(message.text);
+        int length = 8 + 2 + 2 + sender.length + 2 + recipient.length + text.length;
+        ByteBuffer record = ByteBuffer.allocate(4 + length).putInt(length).putLong(message.time)
+                .putShort((short) Math.min(terms, 0xFFFF));
+        BinaryProtocol.putString(record, sender);
+        BinaryProtocol.putString(record, recipient);
+        return record.put(text).flip();
+    }
+
+    private static Message decode(ByteBuffer record) {
+        long time = record.getLong();
+        record.getShort(); // terms
+        String sender = BinaryProtocol.getString(record);
+        String recipient = BinaryProtocol.getString(record);
+        return new Message(time, sender.isEmpty() ? null : sender, recipient.isEmpty() ? null : recipient,
+                BinaryProtocol.getRemainingString(record));
+    }
+
+    private static int putVarInt(byte[] target, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            target[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        target[position++] = (byte) value;
+        return position;
+    }
+
+    private static int getVarInt(ByteBuffer data) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    private static int varIntLength(int value) {
+        int length = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    // Reads one posting list forwards
+    private static final class Cursor {
+        final int count;
+        final double weight; // the term's idf
+        private final ByteBuffer data;
+        private int read;
+        int document = -1;
+        int frequency;
+
+        Cursor(PostingList list, double weight) {
+            this.data = list.data.duplicate();
+            this.count = list.count;
+            this.weight = weight;
+        }
+
+        // To the first document at or after target; false if there is none
+        boolean advance(int target) {
+            while (document < target) {
+                if (read == count) {
+                    return false;
+                }
+                document += getVarInt(data);
+                frequency = getVarInt(data);
+                read++;
+            }
+            return true;
+        }
+    }
+
+    // The newest documents' inverted index, on the heap until it is written out as a segment. Only the
+    // indexer adds to it, searches copy out of it.
+    private static final class Tail {
+        final int base; // the first document
+        private final Map<String, Postings> terms = new HashMap<>();
+        private int end;
+
+        Tail(int base) {
+            this.base = base;
+            this.end = base;
+        }
+
+        synchronized void add(int document, Map<String, Integer> frequencies) {
+            for (Map.Entry<String, Integer> term : frequencies.entrySet()) {
+                terms.computeIfAbsent(term.getKey(), key -> new Postings()).add(document, term.getValue());
+            }
+            end = document + 1;
+        }
+
+        synchronized int end() {
+            return end;
+        }
+
+        synchronized int documents() {
+            return end - base;
+        }
+
+        synchronized PostingList postings(String term) {
+            Postings postings = terms.get(term);
+            return postings == null ? null : postings.list();
+        }
+
+        // In byte order, as a segment has them
+        synchronized List<TermPostings> sorted() {
+            List<TermPostings> sorted = new ArrayList<>(terms.size());
+            for (Map.Entry<String, Postings> term : terms.entrySet()) {
+                sorted.add(new TermPostings(BinaryProtocol.utf8(term.getKey()), term.getValue().list()));
+            }
+            sorted.sort((a, b) -> Arrays.compare(a.term, b.term));
+            return sorted;
+        }
+    }
+
+    // A posting list being built
+    private static final class Postings {
+        private byte[] data = new byte[8];
+        private int size;
+        private int count;
+        private int last = -1;
+
+        void add(int document, int frequency) {
+            if (size + 10 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            size = putVarInt(data, size, document - last);
+            size = putVarInt(data, size, frequency);
+            last = document;
+            count++;
+        }
+
+        PostingList list() {
+            return new PostingList(ByteBuffer.wrap(Arrays.copyOf(data, size)), count, last);
+        }
+    }
+
+    // A part of the index written out, mapped read-only. Terms compare as ByteBuffers do, byte by byte;
+    // any order does as long as it is always the same.
+    private static final class Segment {
+        final Path path;
+        final int base; // the first document
+        final int end; // one after the last
+        final int termCount;
+        private final MappedByteBuffer data;
+        private final int table;
+
+        private Segment(Path path, MappedByteBuffer data) {
+            this.path = path;
+            this.data = data;
+            this.base = data.getInt(0);
+            this.end = data.getInt(4);
+            this.termCount = data.getInt(8);
+            this.table = data.getInt(12);
+        }
+
+        static Segment open(Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                return new Segment(path, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            }
+        }
+
+        static String fileName(int base, int end) {
+            return String.format("%010d-%010d", base, end) + SUFFIX;
+        }
+
+        int documents() {
+            return end - base;
+        }
+
+        long size() {
+            return data.capacity();
+        }
+
+        // The bytes of the index-th term
+        ByteBuffer term(int index) {
+            int position = data.getInt(table + 4 * index);
+            return data.slice(position + 2, data.getShort(position) & 0xFFFF);
+        }
+
+        PostingList postings(int index) {
+            int position = data.getInt(table + 4 * index);
+            position += 2 + (data.getShort(position) & 0xFFFF);
+            return new PostingList(data.slice(position + 12, data.getInt(position + 8)),
+                    data.getInt(position), data.getInt(position + 4));
+        }
+
+        PostingList postings(ByteBuffer term) {
+            int low = 0;
+            int high = termCount - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int comparison = term(middle).compareTo(term);
+                if (comparison < 0) {
+                    low = middle + 1;
+                } else if (comparison > 0) {
+                    high = middle - 1;
+                } else {
+                    return postings(middle);
+                }
+            }
+            return null;
+        }
+    }
+
+    // Writes a segment file one term after the other, in byte order
+    private static final class SegmentWriter implements AutoCloseable {
+        private final FileChannel channel;
+        private final DataOutputStream out;
+        private final int base;
+        private final int end;
+        private final byte[] copy = new byte[8192];
+        private int[] positions = new int[1024];
+        private int termCount;
+
+        SegmentWriter(Path path, int base, int end) throws IOException {
+            this.base = base;
+            this.end = end;
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE);
+            out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+            out.write(new byte[HEADER_LENGTH]); // see finish
+        }
+
+        // The term's posting lists from consecutive segments, in document order, joined into one: only each
+        // list's first delta changes
+        void term(byte[] term, List<PostingList> parts) throws IOException {
+            if (termCount == positions.length) {
+                positions = Arrays.copyOf(positions, termCount * 2);
+            }
+            positions[termCount++] = out.size();
+            int count = 0;
+            int size = 0;
+            int previous = -1;
+            for (PostingList part : parts) {
+                ByteBuffer data = part.data.duplicate();
+                int first = getVarInt(data) - 1;
+                size += varIntLength(first - previous) + data.remaining();
+                count += part.count;
+                previous = part.last;
+            }
+            out.writeShort(term.length);
+            out.write(term);
+            out.writeInt(count);
+            out.writeInt(previous);
+            out.writeInt(size);
+            previous = -1;
+            byte[] delta = new byte[5];
+            for (PostingList part : parts) {
+                ByteBuffer data = part.data.duplicate();
+                int first = getVarInt(data) - 1;
+                out.write(delta, 0, putVarInt(delta, 0, first - previous));
+                while (data.hasRemaining()) {
+                    int length = Math.min(copy.length, data.remaining());
+                    data.get(copy, 0, length);
+                    out.write(copy, 0, length);
+                }
+                previous = part.last;
+            }
+        }
+
+        // The term table, the header, and everything on disk
+        void finish() throws IOException {
+            int tablePosition = out.size();
+            for (int i = 0; i < termCount; i++) {
+                out.writeInt(positions[i]);
+            }
+            out.flush();
+            channel.write(ByteBuffer.allocate(HEADER_LENGTH).putInt(base).putInt(end).putInt(termCount)
+                    .putInt(tablePosition).flip(), 0);
+            channel.force(true);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    // Grows a chunk at a time, only the small array of chunks is ever copied. The indexer sets values,
+    // searches read those published to them.
+    private static final class LongColumn {
+        private long[][] chunks = new long[64][];
+
+        long get(int index) {
+            return chunks[index >>> 14][index & 0x3FFF];
+        }
+
+        void set(int index, long value) {
+            int chunk = index >>> 14;
+            if (chunk == chunks.length) {
+                chunks = Arrays.copyOf(chunks, chunk * 2);
+            }
+            if (chunks[chunk] == null) {
+                chunks[chunk] = new long[1 << 14];
+            }
+            chunks[chunk][index & 0x3FFF] = value;
+        }
+    }
+
+    private static final class IntColumn {
+        private int[][] chunks = new int[64][];
+
+        int get(int index) {
+            return chunks[index >>> 14][index & 0x3FFF];
+        }
+
+        void set(int index, int value) {
+            int chunk = index >>> 14;
+            if (chunk == chunks.length) {
+                chunks = Arrays.copyOf(chunks, chunk * 2);
+            }
+            if (chunks[chunk] == null) {
+                chunks[chunk] = new int[1 << 14];
+            }
+            chunks[chunk][index & 0x3FFF] = value;
+        }
+    }
+}
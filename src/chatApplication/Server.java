@@ -1,182 +1,1110 @@
 package chatApplication;
 
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import javax.management.JMException;
 
 public class Server {
-    static ArrayList<ConnectionHandler> connections = new ArrayList<>();
-    static ArrayList<String> connectedUsernames = new ArrayList<>();
-    static ArrayList<String> disconnectedUsernames = new ArrayList<>();
-    static final String FILE_DIRECTORY = "C:\\Users\\nis\\IdeaProjects\\chatApplication\\files\\";
-    private static ServerGUI serverGUI;
+    static volatile ServerConfig config; // replaced when the config file changes, see watchConfig
+    static SessionRegistry sessions; // logged-in users, see SessionRegistry
+    static FileStore files; // everything users have sent, see FileStore
+    static MessageJournal journal; // broadcast history, see MessageJournal
+    private static final List<ServerEvents> subscribers = new CopyOnWriteArrayList<>(); // e.g. the GUI
+
+    static Presence presence; // who is online, as told to the clients
+    static RoomRegistry rooms; // who hears what, see RoomRegistry
+    static Cluster cluster; // the other server nodes, see Cluster
+    static OfflineInbox inbox; // private messages for users who are offline, see OfflineInbox
+    static SearchIndex search; // what /search looks through, see SearchIndex
+    static TimingWheel idleTimers; // heartbeats and idle timeouts of every connection
+    private static ConnectionEngine engine;
+    private static FileChannel dataLock; // held until the process exits, see lockData
+    private static volatile boolean started;
+    private static volatile boolean stopping; // see shutdown
 
     public static void main(String[] args) throws IOException {
+        config = ServerConfig.load();
+        Log.start(config);
+        // SIGTERM, Ctrl-C and closing the GUI all end in System.exit, which runs this
+        Runtime.getRuntime().addShutdownHook(new Thread(Server::shutdown, "server-shutdown"));
+        // The engine owns the sockets and threads, the handlers only see bytes
+        engine = config.createEngine();
+        engine.bind();
+        lockData(config);
+        sessions = new SessionRegistry(config.disconnectedHistoryLimit);
+        cluster = new Cluster(config.createClusterTransport(), new ClusterEvents());
+        presence = new Presence(name -> sessions.isUsernameInUse(name) || cluster.isRemoteUser(name), config.presenceBatchMillis);
+        rooms = config.createRooms();
+        files = config.createFileStore();
+        journal = config.openJournal();
+        journal.start();
+        inbox = config.openInbox();
+        inbox.start(ConnectionHandler::deliverOffline);
+        search = config.openSearchIndex();
+        search.start();
 
-        serverGUI = new ServerGUI(); // Instantiate the ServerGUI
-        serverGUI.setVisible(true); // Make the GUI visible
+        // Headless servers never load a single AWT class
+        if (config.gui) {
+            subscribe(ServerGUIEvents.start(sessions, config.guiRefreshMillis, config.guiLogLines));
+        }
+        cluster.start();
+        startMetrics(config);
 
-        ServerSocket serverSocket = new ServerSocket(12345);
-        System.out.println("Server is running...");
+        idleTimers = new TimingWheel("idle-timers", config.idleTickMillis, config.idleWheelSlots);
+        if (config.configReloadSeconds > 0) {
+            long modified = config.configFileModified();
+            idleTimers.schedule(() -> watchConfig(modified), TimeUnit.SECONDS.toNanos(config.configReloadSeconds));
+        }
+        engine.start(ConnectionHandler::new);
+        started = true;
+        Log.info("server.started", "engine", config.engine, "port", config.port, "node", cluster.nodeId());
+    }
 
-        while (true) {
+    // One process at a time works on the data directories. For a restart without downtime, run every
+    // process with chat.reusePort and start the new one before stopping the old: it listens on the port
+    // from the start, so new clients queue up in its backlog, waits here until the old one has shut down,
+    // then takes them. The old one's sessions end, see shutdown; their clients log in again on the new one.
+    private static void lockData(ServerConfig config) throws IOException {
+        dataLock = FileChannel.open(config.lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (dataLock.tryLock() == null) {
+            Log.info("server.waiting", "lock", config.lockFile);
+            dataLock.lock();
+        }
+    }
+
+    // On the idle timer thread, every configReloadSeconds
+    private static void watchConfig(long modified) {
+        if (stopping) {
+            return;
+        }
+        ServerConfig current = config;
+        long now = current.configFileModified();
+        if (now != modified) {
             try {
-                Socket client = serverSocket.accept();
+                ServerConfig next = current.reload();
+                Log.level(next.logLevel);
+                config = next;
+                Log.info("config.reloaded", "file", next.configFile);
+            } catch (IOException | RuntimeException e) {
+                Log.error("config.reload.failed", e, "file", current.configFile); // carries on as it was
+            }
+        }
+        idleTimers.schedule(() -> watchConfig(now), TimeUnit.SECONDS.toNanos(current.configReloadSeconds));
+    }
 
-                ConnectionHandler handler = new ConnectionHandler(client);
-                connections.add(handler);
+    // The listening socket is closed first; a new process listening on the port as well takes the clients
+    // from there, see lockData. The sessions are then closed over shutdownSpreadSeconds rather than all at
+    // once, each after what is queued for it has been sent, so their clients don't all come back in the
+    // same instant. Whatever is still connected shutdownDrainSeconds later is cut off, and what the
+    // journal and the inbox hold in memory goes to disk.
+    private static void shutdown() {
+        try {
+            if (started) {
+                stopServer();
+            }
+        } catch (RuntimeException e) {
+            Log.error("server.stop.failed", e);
+        } finally {
+            Log.stop();
+        }
+    }
 
-                new Thread(handler).start();
-            } catch (Exception e) {
-                e.printStackTrace();
+    private static void stopServer() {
+        stopping = true;
+        ServerConfig config = Server.config;
+        List<ConnectionHandler> open = new ArrayList<>(sessions.sessions());
+        Log.info("server.stopping", "users", open.size());
+        engine.stopAccepting();
+        long spread = TimeUnit.SECONDS.toNanos(config.shutdownSpreadSeconds);
+        long start = System.nanoTime();
+        for (int i = 0; i < open.size(); i++) {
+            LockSupport.parkNanos(start + spread * i / open.size() - System.nanoTime());
+            open.get(i).shutdown();
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.shutdownDrainSeconds);
+        while (!sessions.sessions().isEmpty() && System.nanoTime() - deadline < 0) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(50));
+        }
+        int left = sessions.sessions().size();
+        engine.stop();
+        idleTimers.stop();
+        cluster.close();
+        inbox.stop();
+        journal.sync();
+        Log.info("server.stopped", "cutOff", left);
+    }
+
+    static void subscribe(ServerEvents subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    // Metrics are nice to have: a port that is taken or a JMX name already in use doesn't stop the server
+    private static void startMetrics(ServerConfig config) {
+        Metrics.SERVER.gauge("users_online", () -> sessions.connectedUsernames().size());
+        Metrics.SERVER.gauge("journal_sequence", journal::nextSequence);
+        Metrics.SERVER.gauge("log_events_dropped", Log::dropped);
+        Metrics.SERVER.gauge("search_documents", search::documents);
+        Metrics.SERVER.gauge("search_segments", search::segmentCount);
+        Metrics.SERVER.start(sessions.sessions());
+        MetricsExporter exporter = new MetricsExporter(Metrics.SERVER);
+        try {
+            if (config.metricsJmx) {
+                exporter.registerMBean();
+            }
+            if (config.metricsPort > 0) {
+                exporter.startEndpoint(config.metricsPort);
+                Log.info("metrics.endpoint", "url", "http://localhost:" + config.metricsPort + "/metrics");
             }
+        } catch (IOException | JMException e) {
+            Log.warn("metrics.unavailable", "reason", e);
         }
     }
 
-    static class ConnectionHandler implements Runnable {
-        private Socket client;
-        private BufferedReader in;
-        private PrintWriter out;
+    // What other nodes pass on, delivered to the users on this node only
+    private static class ClusterEvents implements Cluster.Listener {
+        @Override
+        public void onBroadcast(byte journalKind, String line) {
+            ConnectionHandler.deliverBroadcast(line, journalKind);
+        }
+
+        @Override
+        public void onRoomMessage(String room, String line) {
+            ConnectionHandler.deliverToRoom(room, line);
+        }
+
+        @Override
+        public void onPrivateMessage(String sender, String recipient, String text) {
+            ConnectionHandler connection = sessions.lookup(recipient);
+            if (connection != null) {
+                connection.sendMessage(OutboundMessage.privateMessage(sender, text));
+                Metrics.SERVER.messagesDelivered.increment();
+            } else {
+                inbox.store(recipient, sender, text); // gone since the sender's node looked
+            }
+            search.add(sender, recipient, text); // the recipient's node, the sender's indexed it too
+        }
+
+        @Override
+        public void onPresenceChanged(String username) {
+            presence.changed(username);
+        }
+
+        @Override
+        public void onUsernameTaken(String username) {
+            ConnectionHandler connection = sessions.lookup(username);
+            if (connection != null) {
+                connection.sendUsernameAlreadyInUseMessage();
+                connection.client.close();
+            }
+        }
+    }
+
+    // Protocol-independent command handling. The codec turns the client's bytes into the on* callbacks
+    // below and each client gets server messages encoded in the format it negotiated.
+    static class ConnectionHandler implements ConnectionEngine.Listener {
+        // Heartbeats are the same for every client, made once and never released
+        private static final Frame PING_TEXT = Frame.text("/ping");
+        private static final Frame PING_BINARY = OutboundMessage.control("/ping").frame(ProtocolCodec.Format.BINARY);
+        private static final DateTimeFormatter SENT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
+
+        private final Transport connection; // the engine's, for the connection this handler was made for
+        private final ResumableTransport client; // the session, on whatever connection it is now
+        // The handler whose session this connection continues, see onReconnect; this one otherwise
+        private volatile ConnectionHandler session = this;
+        private String token; // the session's, while it can be resumed
+        // Read by every thread that sends to this client, see frameFor
+        private volatile ProtocolCodec codec;
+        private volatile boolean compress; // the client negotiated compressed frames, see Compression
 
         private String username;
 
-        public ConnectionHandler(Socket client) {
-            this.client = client;
+        private IncomingFile upload; // legacy "/file" upload in progress, see onFileStart
+        // Chunked transfers by file name, see BinaryProtocol. Any number of them can run side by side.
+        private final Map<String, IncomingFile> uploads = new HashMap<>();
+        private final Map<String, OutgoingFile> downloads = new HashMap<>();
+        private final Set<String> joinedRooms = new LinkedHashSet<>(); // besides the lobby
+
+        // Rate limits, used only from this connection's callbacks. Going over one suspends reading, see limit.
+        private final TokenBucket messageLimit;
+        private final TokenBucket privateLimit;
+        private final TokenBucket commandLimit;
+        private final TokenBucket fileByteLimit;
+        private long throttledUntil = System.nanoTime(); // when the current suspension ends
+        private ServerConfig limits; // the config the buckets were set from, they change with a reload
+
+        // Idle checks, see checkIdle
+        private volatile long lastActivity = System.nanoTime(); // the last read, or the end of a suspension
+        private volatile Frame heartbeat; // the /ping in this client's protocol, once it is logged in
+        private volatile boolean closed; // the session has ended
+        private long lastHeartbeat = System.nanoTime(); // idle timer thread only
+
+        public ConnectionHandler(Transport connection) {
+            ServerConfig config = Server.config;
+            this.connection = connection;
+            this.client = new ResumableTransport(connection, config.sessionReplayFrames, config.sessionReplayBytes);
+            this.codec = new TextCodec(config.maxLineLength);
+            this.limits = config;
+            this.messageLimit = config.messageLimit.bucket();
+            this.privateLimit = config.privateLimit.bucket();
+            this.commandLimit = config.commandLimit.bucket();
+            this.fileByteLimit = config.fileByteLimit.bucket();
+        }
+
+        @Override
+        public void onOpen() {
+            // Nothing to do until the client sends its username
+            Metrics.SERVER.connectionsAccepted.increment();
+            idleTimers.schedule(this::checkIdle, 0);
         }
 
         @Override
-        public void run() {
+        public void onRead(ByteBuffer data) {
+            Metrics.SERVER.bytesIn.add(data.remaining());
+            session.read(data);
+        }
+
+        private void read(ByteBuffer data) {
+            lastActivity = System.nanoTime();
+            client.received(data.remaining());
             try {
-                in = new BufferedReader(new InputStreamReader(client.getInputStream()));
-                out = new PrintWriter(client.getOutputStream(), true);
+                // A protocol switch replaces the codec, the new one picks up the rest of the buffer
+                while (data.hasRemaining() && client.isOpen()) {
+                    codec.decode(data, this);
+                    if (session != this) {
+                        session.read(data); // this connection has just resumed another session
+                        return;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                Log.error("connection.failed", e, "user", username, "remote", client.remoteAddress());
+                client.close();
+            }
+        }
+
+        @Override
+        public void onClose() {
+            Metrics.SERVER.connectionsClosed.increment();
+            session.connectionClosed(connection);
+        }
+
+        // The engine already closed the socket. A session that can be resumed and wasn't closed by either
+        // side waits for its client to reconnect, see checkIdle and onReconnect; it keeps the username,
+        // rooms and uploads meanwhile and nobody is told it was gone.
+        private void connectionClosed(Transport transport) {
+            if (!client.disconnected(transport)) {
+                return; // the session has moved on to a newer connection
+            }
+            if (token != null && client.isOpen()) {
+                Log.info("session.detached", "user", username, "remote", transport.remoteAddress());
+                Metrics.SERVER.sessionsDetached.increment();
+                idleTimers.schedule(this::expireDetached, TimeUnit.SECONDS.toNanos(config.sessionResumeSeconds));
+                return;
+            }
+            if (!client.expire(0)) {
+                return;
+            }
+            if (Thread.holdsLock(client)) {
+                // Closed from inside one of our own writes. Ending the session writes to other sessions,
+                // which must not wait for their locks while we hold ours.
+                idleTimers.schedule(this::endSession, 0);
+            } else {
+                endSession();
+            }
+        }
 
-                // Get the username from the client
-                username = in.readLine();
+        // Once, when the session is over
+        private void endSession() {
+            closed = true;
+            if (token != null) {
+                sessions.revokeToken(token);
+            }
+            abortUpload();
+            // Unfinished chunked uploads stay on disk so the client can resume them after reconnecting
+            uploads.values().forEach(IncomingFile::suspend);
+            uploads.clear();
+            downloads.values().forEach(OutgoingFile::close);
+            downloads.clear();
+            if (username != null) {
+                disconnectUser(); // a dropped connection frees the username, so the client can log in again
+            }
+        }
 
-                // Check if the username is already in use
-                if (isUsernameInUse(username)) {
-                    sendUsernameAlreadyInUseMessage();
-                    return; // Close connection
+        // On the idle timer thread, again and again until the connection is closed. A client that sent
+        // nothing for heartbeatSeconds is sent a /ping, which it answers with /pong. One that sent nothing
+        // for readTimeoutSeconds, or whose socket took none of our data for writeTimeoutSeconds, is gone or
+        // stuck: it is closed at once, and onClose takes it out of the sessions, rooms and presence as
+        // for any other disconnect. So a crashed client or a dropped NAT mapping doesn't hold its name,
+        // its queue and a place in every broadcast for good.
+        //
+        // A session without a connection has nothing to check until it is resumed, see expireDetached.
+        private void checkIdle() {
+            if (closed || session != this) {
+                return;
+            }
+            long resumeTimeout = TimeUnit.SECONDS.toNanos(config.sessionResumeSeconds);
+            long detached = client.detachedNanos();
+            if (detached >= 0) {
+                idleTimers.schedule(this::checkIdle, Math.max(resumeTimeout - detached, TimeUnit.SECONDS.toNanos(1)));
+                return;
+            }
+            long now = System.nanoTime();
+            long idle = now - lastActivity;
+            long blocked = client.writeBlockedNanos();
+            long readTimeout = TimeUnit.SECONDS.toNanos(config.readTimeoutSeconds);
+            long writeTimeout = TimeUnit.SECONDS.toNanos(config.writeTimeoutSeconds);
+            long heartbeatInterval = TimeUnit.SECONDS.toNanos(config.heartbeatSeconds);
+            if (readTimeout > 0 && idle >= readTimeout) {
+                reap("read timeout", idle);
+                return;
+            }
+            if (writeTimeout > 0 && blocked >= writeTimeout) {
+                reap("write timeout", blocked);
+                return;
+            }
+            long next = Long.MAX_VALUE;
+            if (readTimeout > 0) {
+                next = readTimeout - idle;
+            }
+            if (writeTimeout > 0) {
+                next = Math.min(next, writeTimeout - blocked);
+            }
+            Frame ping = heartbeat;
+            if (heartbeatInterval > 0 && ping != null) {
+                if (idle >= heartbeatInterval && now - lastHeartbeat >= heartbeatInterval) {
+                    client.write(ping);
+                    lastHeartbeat = now;
+                    Metrics.SERVER.heartbeatsSent.increment();
                 }
+                next = Math.min(next, heartbeatInterval - Math.min(idle, now - lastHeartbeat));
+            }
+            if (next != Long.MAX_VALUE) {
+                idleTimers.schedule(this::checkIdle, next);
+            }
+        }
 
-                // Add the username to the list of connected users
-                connectedUsernames.add(username);
-
-                serverGUI.updateConnectedUserList(connectedUsernames); // Update connected user list in GUI
-                serverGUI.logConnection(username); // Log connection
-
-                // Notify clients that a new user has connected
-                broadcast(username + " connected");
-                sendConnectedUsersList();
-
-                String message;
-                while ((message = in.readLine()) != null) {
-                    if (message.equalsIgnoreCase("/quit")) {
-                        // User wants to log out
-                        disconnectUser();
-                        break;
-                    } else if (message.equals("/file")) {
-                        receiveFile();
-                    } else if (message.startsWith("/msgto")) {
-                        sendMessageToSpecificUser(message);
-                    } else {
-                        // Broadcast the message to all clients
-                        broadcast(username + ": " + message);
-                    }
+        // On the idle timer thread, resumeSeconds after the connection dropped. If the client hasn't come
+        // back, the session ends as if it had been closed; a session that was resumed and dropped again
+        // meanwhile has a later one of these coming.
+        private void expireDetached() {
+            if (client.expire(TimeUnit.SECONDS.toNanos(config.sessionResumeSeconds))) {
+                Log.info("session.expired", "user", username);
+                Metrics.SERVER.sessionsExpired.increment();
+                endSession();
+            }
+        }
+
+        private void reap(String reason, long nanos) {
+            Log.warn("connection.reaped", "user", username, "remote", client.remoteAddress(), "reason", reason,
+                    "millis", TimeUnit.NANOSECONDS.toMillis(nanos));
+            Metrics.SERVER.connectionsReaped.increment();
+            client.abort();
+        }
+
+        // Messages queued for this client and not yet written to its socket
+        int queuedMessages() {
+            return client.queuedMessages();
+        }
+
+        boolean usesCodec(ProtocolCodec codec) {
+            return this.codec == codec && client.isOpen() && session == this;
+        }
+
+        // The binary handshake may come with options, e.g. "/proto binary/3 deflate/1"
+        void onProtocolRequest(String request) {
+            if (request.equals(BinaryProtocol.HANDSHAKE) || request.startsWith(BinaryProtocol.HANDSHAKE + " ")) {
+                List<String> options = List.of(request.substring(BinaryProtocol.HANDSHAKE.length()).trim().split(" +"));
+                compress = config.compression && options.contains(Compression.NAME);
+                // Last text line, binary frames from here on
+                sendLine(compress ? BinaryProtocol.HANDSHAKE + " " + Compression.NAME : BinaryProtocol.HANDSHAKE);
+                codec = new BinaryCodec(compress);
+            } else {
+                sendLine(BinaryProtocol.TEXT_FALLBACK);
+            }
+        }
+
+        void onLogin(String name) {
+            // Get the username from the client
+            username = name;
+
+            // The same user starting afresh rather than resuming: the old session is no use to them any more
+            ConnectionHandler previous = sessions.lookup(username);
+            if (previous != null) {
+                previous.endIfDetached();
+            }
+
+            // Claim the username, this fails if it is already in use here or on another node
+            if (!cluster.claim(username)) {
+                sendUsernameAlreadyInUseMessage();
+                username = null;
+                client.close(); // Close connection
+                return;
+            }
+            if (!sessions.claim(username, this)) {
+                cluster.release(username);
+                sendUsernameAlreadyInUseMessage();
+                username = null;
+                client.close(); // Close connection
+                return;
+            }
+
+            if (codec.format() == ProtocolCodec.Format.BINARY) {
+                sendMessage(OutboundMessage.control("/welcome " + username));
+            }
+            heartbeat = codec.format() == ProtocolCodec.Format.TEXT ? PING_TEXT : PING_BINARY;
+            if (config.sessionsResumable()) {
+                // First thing after the login, text clients take it for the reply to their username
+                token = sessions.issueToken(this);
+                client.keepForResume();
+                sendCommand("/session " + token + " " + config.sessionResumeSeconds);
+            }
+
+            Log.info("user.connected", "user", username, "remote", client.remoteAddress());
+            for (ServerEvents subscriber : subscribers) {
+                subscriber.userConnected(username);
+            }
+
+            // What was said before this user arrived, then who is online now
+            sendHistory(journal.nextSequence() - config.historyOnLogin, config.historyOnLogin);
+            sendMessage(presence.snapshot());
+            rooms.join(RoomRegistry.LOBBY, this); // from here on every broadcast reaches this user
+            inbox.drain(username); // private messages sent while this user was away
+
+            // Notify clients that a new user has connected
+            broadcast(username + " connected");
+            presence.changed(username);
+        }
+
+        // "/reconnect <token> <received>" instead of a username: a client that lost its connection wants its
+        // session back, with what it missed after the first received bytes. From here on this connection's
+        // bytes go to the session's handler and its codec, see read.
+        void onReconnect(String request) {
+            String[] parts = request.split(" ");
+            ConnectionHandler target = parts.length == 3 ? sessions.resumable(parts[1]) : null;
+            if (target != null && target.client.dropConnection()) {
+                client.close(); // we hadn't noticed the old connection is gone, the client tries again
+                return;
+            }
+            long received;
+            try {
+                received = parts.length == 3 ? Long.parseLong(parts[2]) : -1;
+            } catch (NumberFormatException e) {
+                received = -1;
+            }
+            if (target != null) {
+                session = target; // before resume, which may already see this connection close
+                if (target.client.resume(connection, received)) {
+                    target.resumed();
+                    return;
                 }
+                session = this;
+                target.endIfDetached(); // its bytes are gone, the client logs in again
+            }
+            sendLine("/expired");
+            client.close();
+        }
 
-            } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
-                try {
-                    in.close();
-                    out.close();
-                    client.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+        private void resumed() {
+            lastActivity = System.nanoTime();
+            Log.info("session.resumed", "user", username, "remote", client.remoteAddress());
+            Metrics.SERVER.sessionsResumed.increment();
+        }
+
+        // Server shutdown: the session ends, its connection once what is queued for it has been sent
+        void shutdown() {
+            client.close();
+            endIfDetached();
+        }
+
+        // Any thread
+        private void endIfDetached() {
+            if (client.expire(0)) {
+                Log.info("session.expired", "user", username);
+                Metrics.SERVER.sessionsExpired.increment();
+                endSession();
+            }
+        }
+
+        // A line of the text protocol, either a command or a chat message
+        void onLine(String message) throws IOException {
+            if (message.startsWith("/") && onCommand(message)) {
+                return;
+            }
+            onChat(message);
+        }
+
+        // A command sent in a binary CONTROL frame
+        void onControl(String command) throws IOException {
+            if (username == null && command.startsWith("/login ")) {
+                onLogin(command.substring(7));
+            } else if (!onCommand(command)) {
+                Log.warn("command.unknown", "user", username, "command", command);
+            }
+        }
+
+        private boolean onCommand(String message) throws IOException {
+            if (username == null) {
+                return true; // not logged in, ignore
+            }
+            if (message.equalsIgnoreCase("/quit")) {
+                // User wants to log out
+                disconnectUser();
+                client.close();
+            } else if (message.startsWith("/msgto")) {
+                sendMessageToSpecificUser(message);
+            } else if (message.startsWith("/get ")) {
+                sendStoredFile(message.substring(5));
+            } else if (message.equals("/users")) {
+                sendMessage(presence.snapshot()); // the client missed a presence delta
+            } else if (message.equals("/history") || message.startsWith("/history ")) {
+                onHistoryRequest(message);
+            } else if (message.equals("/search") || message.startsWith("/search ")) {
+                onSearch(message.substring(7).trim());
+            } else if (message.startsWith("/join ")) {
+                joinRoom(message.substring(6).trim());
+            } else if (message.startsWith("/leave ")) {
+                leaveRoom(message.substring(7).trim());
+            } else if (message.equals("/rooms")) {
+                sendMessage(OutboundMessage.chat("Rooms: " + String.join(", ", rooms.describe())));
+            } else if (message.startsWith("/to ")) {
+                sayInRoom(message);
+            } else if (message.startsWith("/upload ")) {
+                startUpload(message);
+            } else if (message.startsWith("/resume ") || message.startsWith("/ack ")) {
+                onDownloadProgress(message); // paces our own download, not limited
+                return true;
+            } else if (message.equals("/pong")) {
+                return true; // the answer to a heartbeat, that it was read is all that counts
+            } else {
+                return false;
+            }
+            if (!message.startsWith("/msgto") && !message.startsWith("/to ")) { // messages have limits of their own
+                limit(commandLimit, 1, Metrics.SERVER.commandsThrottled, "commands");
+            }
+            return true;
+        }
+
+        // Takes from the bucket; if it is in debt, nothing more is read from this client until it is paid
+        // off. The rest of the current read is still handled, the debt makes up for it.
+        private void limit(TokenBucket bucket, long tokens, LongAdder throttled, String name) {
+            ServerConfig current = config;
+            if (current != limits) {
+                messageLimit.change(current.messageLimit);
+                privateLimit.change(current.privateLimit);
+                commandLimit.change(current.commandLimit);
+                fileByteLimit.change(current.fileByteLimit);
+                limits = current;
+            }
+            long wait = bucket.take(tokens);
+            if (wait <= 0) {
+                return;
+            }
+            throttled.increment();
+            long now = System.nanoTime();
+            if (now - throttledUntil >= 0) { // once per suspension, not for every message in the read
+                Log.warn("user.throttled", "user", username, "limit", name, "millis", TimeUnit.NANOSECONDS.toMillis(wait));
+                throttledUntil = now;
+            }
+            if (now + wait - throttledUntil > 0) {
+                Metrics.SERVER.throttledMillis.add(TimeUnit.NANOSECONDS.toMillis(now + wait - throttledUntil));
+                throttledUntil = now + wait;
+                lastActivity = throttledUntil; // not idle while we aren't reading
+            }
+            client.suspendReads(wait);
+        }
+
+        void onChat(String message) {
+            if (username != null) {
+                Metrics.SERVER.messagesReceived.increment();
+                limit(messageLimit, 1, Metrics.SERVER.messagesThrottled, "messages");
+                // Broadcast the message to all clients
+                broadcast(username + ": " + message, MessageJournal.MESSAGE);
+            }
+        }
+
+        void onPrivateMessage(String recipient, String message) {
+            if (username == null) {
+                return;
+            }
+            Metrics.SERVER.messagesReceived.increment();
+            limit(privateLimit, 1, Metrics.SERVER.privateThrottled, "private");
+            ConnectionHandler connection = sessions.lookup(recipient);
+            if (connection != null) {
+                connection.sendMessage(OutboundMessage.privateMessage(username, message));
+                Metrics.SERVER.messagesDelivered.increment();
+            } else if (!cluster.tell(username, recipient, message)) { // the recipient may be on another node
+                if (inbox.store(recipient, username, message)) {
+                    sendMessage(OutboundMessage.chat(recipient + " is offline and will get your message on their next login."));
+                } else {
+                    sendMessage(OutboundMessage.chat("Your message to " + recipient + " could not be kept, please try again later."));
+                    return;
                 }
             }
+            search.add(username, recipient, message);
         }
 
-        private void sendUsernameAlreadyInUseMessage() {
-            out.println("Username already in use. Please choose a different username.");
-            //out.println("/quit"); // Send /quit command to close the client's connection
+        // The inbox's Delivery, on the inbox writer's thread
+        static boolean deliverOffline(String username, List<OfflineInbox.Message> messages) {
+            ConnectionHandler connection = sessions.lookup(username);
+            if (connection == null) {
+                return false;
+            }
+            connection.sendOffline(messages);
+            return true;
         }
 
-        private boolean isUsernameInUse(String username) {
-            return connectedUsernames.contains(username);
+        // Private messages from the inbox, marked with when they were sent. On the inbox writer's thread,
+        // like any other sender's; the writer batches them into few writes anyway.
+        private void sendOffline(List<OfflineInbox.Message> messages) {
+            for (OfflineInbox.Message message : messages) {
+                String text = "(sent " + SENT.format(Instant.ofEpochMilli(message.time())) + ") " + message.text();
+                sendMessage(OutboundMessage.privateMessage(message.sender(), text));
+            }
+            Metrics.SERVER.messagesDelivered.add(messages.size());
         }
 
-        private void disconnectUser() {
-            connectedUsernames.remove(username);
-            disconnectedUsernames.add(username);
+        private void sendUsernameAlreadyInUseMessage() {
+            sendMessage(OutboundMessage.error("Username already in use. Please choose a different username."));
+            //out.println("/quit"); // Send /quit command to close the client's connection
+        }
 
-            serverGUI.updateConnectedUserList(connectedUsernames); // Update connected user list in GUI
-            serverGUI.updateDisconnectedUserList(disconnectedUsernames); // Update disconnected user list in GUI
-            serverGUI.logDisconnection(username); // Log disconnection
+        private void disconnectUser() {
+            if (!sessions.release(username, this)) {
+                return; // already disconnected
+            }
+            rooms.leave(RoomRegistry.LOBBY, this);
+            for (String room : joinedRooms) {
+                rooms.leave(room, this);
+                publish(room, username + " left");
+            }
+            joinedRooms.clear();
 
+            Log.info("user.disconnected", "user", username);
+            for (ServerEvents subscriber : subscribers) {
+                subscriber.userDisconnected(username);
+            }
 
-            broadcast(username + " disconnected");
-            sendConnectedUsersList();
+            // A user who lost the name to an older claim on another node was never really connected. At
+            // shutdown everybody goes, the others aren't told about each one.
+            if (cluster.release(username) && !stopping) {
+                broadcast(username + " disconnected");
+            }
+            if (!stopping) {
+                presence.changed(username);
+            }
         }
 
 
-        private static final int DEFAULT_BUFFER_SIZE = 8192; // Default buffer size
+        void onFileStart(String name, long fileSize) {
+            if (username == null) {
+                return;
+            }
+            abortUpload(); // a new upload replaces one that never finished
+            String fileName = IncomingFile.safeFileName(name);
+            if (fileName == null || fileSize < 0 || fileSize > config.maxFileSize) {
+                Log.warn("file.rejected", "user", username, "name", name, "size", fileSize);
+                return;
+            }
+            Log.info("file.receiving", "user", username, "name", fileName, "size", fileSize);
+            try {
+                upload = files.receive(username, fileName, fileSize, false);
+                if (fileSize == 0) {
+                    fileReceived(upload);
+                    upload = null;
+                }
+            } catch (IOException e) {
+                Log.error("file.failed", e, "user", username, "name", fileName);
+                abortUpload();
+            }
+        }
 
-        private void receiveFile() {
+        // Each chunk goes straight to disk, nothing of the file is kept in memory
+        void onFileData(ByteBuffer data) {
+            if (upload == null) {
+                return; // upload we refused in onFileStart
+            }
+            Metrics.SERVER.fileBytesReceived.add(data.remaining());
+            limit(fileByteLimit, data.remaining(), Metrics.SERVER.fileBytesThrottled, "fileBytes");
             try {
-                String fileName = in.readLine();
-                int fileSize = Integer.parseInt(in.readLine());
+                if (upload.write(data)) {
+                    fileReceived(upload);
+                    upload = null;
+                }
+            } catch (IOException e) {
+                Log.error("file.failed", e, "user", username, "name", upload.fileName);
+                abortUpload();
+            }
+        }
 
-                System.out.println("Receiving file: " + fileName + " (" + fileSize + " bytes)");
+        private void fileReceived(IncomingFile incoming) throws IOException {
+            FileStore.StoredFile saved = files.commit(username, incoming);
+            Metrics.SERVER.filesReceived.increment();
+            Log.info("file.saved", "user", username, "name", incoming.fileName, "size", incoming.received(), "path", saved.path());
+            broadcast(username + " sent a file: " + incoming.fileName, MessageJournal.MESSAGE);
+        }
 
-                byte[] fileContent = new byte[fileSize];
-                int bytesRead;
-                int totalBytesRead = 0;
-                int bufferSize = Math.min(DEFAULT_BUFFER_SIZE, fileSize); // Choose buffer size dynamically
+        private void abortUpload() {
+            if (upload != null) {
+                upload.abort();
+                upload = null;
+            }
+        }
 
-                while ((bytesRead = client.getInputStream().read(fileContent, totalBytesRead, bufferSize)) != -1) {
-                    totalBytesRead += bytesRead;
-                    if (totalBytesRead == fileSize) break;
-                    bufferSize = Math.min(DEFAULT_BUFFER_SIZE, fileSize - totalBytesRead); // Adjust buffer size for remaining bytes
-                }
+        // "/upload <size> [sha256:<digest>] <name>": answers with the offset to continue from, 0 unless an
+        // earlier attempt left part of the file behind. Content the store already has is done right away.
+        // Rejected when the command doesn't parse, the file is too large or the client already has too many
+        // uploads going.
+        private void startUpload(String command) throws IOException {
+            String[] parts = command.split(" ", 3);
+            long fileSize = parts.length > 1 ? parseSize(parts[1]) : -1;
+            String name = parts.length > 2 ? parts[2] : "";
+            String digest = null;
+            if (name.startsWith("sha256:") && name.indexOf(' ') > 0) {
+                digest = name.substring(7, name.indexOf(' '));
+                name = name.substring(name.indexOf(' ') + 1);
+            }
+            String fileName = IncomingFile.safeFileName(name);
+            if (fileName == null || fileSize < 0 || fileSize > config.maxFileSize
+                    || (!uploads.containsKey(fileName) && uploads.size() >= config.maxUploads)) {
+                Log.warn("file.rejected", "user", username, "command", command, "uploads", uploads.size());
+                sendCommand("/reject " + name);
+                return;
+            }
+            IncomingFile previous = uploads.remove(fileName);
+            if (previous != null) {
+                previous.suspend();
+            }
+            if (digest != null && files.link(username, fileName, fileSize, digest) != null) {
+                Log.info("file.deduplicated", "user", username, "name", fileName, "sha256", digest);
+                broadcast(username + " sent a file: " + fileName, MessageJournal.MESSAGE);
+                sendCommand("/resume " + fileSize + " " + fileName);
+                return;
+            }
+            IncomingFile incoming = files.receive(username, fileName, fileSize, true);
+            Log.info("file.receiving", "user", username, "name", fileName, "size", fileSize, "offset", incoming.received());
+            if (incoming.isComplete()) {
+                fileReceived(incoming);
+            } else {
+                uploads.put(fileName, incoming);
+            }
+            sendCommand("/resume " + incoming.received() + " " + fileName);
+        }
 
-                System.out.println("Bytes read: " + totalBytesRead);
+        // -1 for anything but a decimal number, sizes and offsets are never negative
+        private static long parseSize(String text) {
+            try {
+                return Long.parseLong(text);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
 
-                if (totalBytesRead == fileSize) {
-                    saveFile(fileName, fileContent);
-                    broadcast(username + " sent a file: " + fileName);
-                } else {
-                    System.err.println("Error receiving file: " + fileName);
+        // A chunk of a chunked upload. Chunks that don't continue the file where it ends are the ones the
+        // client sent before it got our last /resume, they are dropped.
+        void onFileChunk(String name, long offset, int checksum, ByteBuffer data) {
+            String fileName = IncomingFile.safeFileName(name);
+            IncomingFile incoming = fileName == null ? null : uploads.get(fileName);
+            if (username == null || incoming == null || offset != incoming.received()) {
+                return;
+            }
+            if (BinaryProtocol.checksum(data) != checksum) {
+                sendCommand("/resume " + incoming.received() + " " + fileName);
+                return;
+            }
+            Metrics.SERVER.fileBytesReceived.add(data.remaining());
+            limit(fileByteLimit, data.remaining(), Metrics.SERVER.fileBytesThrottled, "fileBytes");
+            try {
+                if (incoming.write(data)) {
+                    uploads.remove(fileName);
+                    fileReceived(incoming);
                 }
+                sendCommand("/ack " + incoming.received() + " " + fileName);
             } catch (IOException e) {
-                e.printStackTrace();
+                Log.error("file.failed", e, "user", username, "name", fileName);
+                uploads.remove(fileName);
+                incoming.abort();
+                sendCommand("/reject " + fileName);
+            }
+        }
+
+        private void joinRoom(String name) {
+            if (!RoomRegistry.isValidName(name)) {
+                sendMessage(OutboundMessage.chat("Room names are 1 to 32 letters, digits, '-' or '_'"));
+            } else if (!name.equals(RoomRegistry.LOBBY) && joinedRooms.add(name)) {
+                rooms.join(name, this);
+                publish(name, username + " joined");
             }
         }
 
+        private void leaveRoom(String name) {
+            if (name.equals(RoomRegistry.LOBBY)) {
+                sendMessage(OutboundMessage.chat("Everyone stays in the lobby, use /quit to leave"));
+            } else if (joinedRooms.remove(name)) {
+                rooms.leave(name, this);
+                publish(name, username + " left");
+                sendMessage(OutboundMessage.room(name, "You left"));
+            }
+        }
+
+        // "/to <room> <message>", only members can talk in a room. The lobby is everyone, so a message to
+        // it is an ordinary chat message.
+        private void sayInRoom(String command) {
+            String[] parts = command.split(" ", 3);
+            if (parts.length < 3) {
+                return;
+            }
+            if (parts[1].equals(RoomRegistry.LOBBY)) {
+                onChat(parts[2]);
+            } else if (joinedRooms.contains(parts[1])) {
+                Metrics.SERVER.messagesReceived.increment();
+                limit(messageLimit, 1, Metrics.SERVER.messagesThrottled, "messages");
+                publish(parts[1], username + ": " + parts[2]);
+            } else {
+                sendMessage(OutboundMessage.chat("Join " + parts[1] + " before talking in it: /join " + parts[1]));
+            }
+        }
 
+        // Room messages are not journaled, the history is the lobby's
+        private static void publish(String roomName, String line) {
+            deliverToRoom(roomName, line);
+            cluster.roomMessage(roomName, line);
+        }
 
-        private void saveFile(String fileName, byte[] fileContent) {
+        // To the room's members on this node
+        static void deliverToRoom(String roomName, String line) {
+            Room room = rooms.lookup(roomName);
+            if (room == null) {
+                return; // its last member just left
+            }
+            OutboundMessage message = OutboundMessage.room(roomName, line);
             try {
-                Files.write(Paths.get(FILE_DIRECTORY + fileName), fileContent);
-                System.out.println("File saved successfully: " + FILE_DIRECTORY + fileName);
+                room.publish(message);
+            } finally {
+                message.release();
+            }
+        }
+
+        // "/resume <offset> <name>" or "/ack <offset> <name>" for one of our downloads
+        private void onDownloadProgress(String command) throws IOException {
+            String[] parts = command.split(" ", 3);
+            OutgoingFile download = parts.length > 2 ? downloads.get(parts[2]) : null;
+            long offset = download == null ? -1 : parseSize(parts[1]);
+            if (offset < 0) {
+                return; // not one of ours, or an offset that makes no sense
+            }
+            boolean done = parts[0].equals("/resume") ? download.resume(offset) : download.acknowledge(offset);
+            if (done) {
+                downloads.remove(download.fileName).close();
+            }
+        }
+
+        // Announces a stored file, OutgoingFile sends it once the client says where to start
+        private void sendStoredFile(String name) {
+            String fileName = IncomingFile.safeFileName(name);
+            FileStore.StoredFile stored = fileName == null ? null : files.lookup(fileName);
+            if (stored == null) {
+                sendMessage(OutboundMessage.chat("File not found: " + name));
+                return;
+            }
+            OutgoingFile download;
+            try {
+                download = OutgoingFile.open(client, codec.format(), compress, stored.fileName(), stored.path());
             } catch (IOException e) {
-                e.printStackTrace();
+                Log.error("file.unreadable", e, "user", username, "name", fileName);
+                sendMessage(OutboundMessage.chat("File not found: " + name));
+                return;
+            }
+            OutgoingFile previous = downloads.put(fileName, download);
+            if (previous != null) {
+                previous.close();
+            }
+            sendCommand("/filedata " + download.size + " " + fileName);
+        }
+
+        // Queues a message for this client, encoded in the client's wire format. The frame is shared with
+        // every other recipient of the same message; the caller still owns the message.
+        void send(OutboundMessage message) {
+            Frame frame = frameFor(message);
+            if (frame != null) {
+                client.write(frame);
             }
         }
 
+        // The message's shared frame in this client's format, null if it has none; the message owns it
+        private Frame frameFor(OutboundMessage message) {
+            return compress ? message.compressedFrame(config.compressionThreshold) : message.frame(codec.format());
+        }
+
+        // Everyone logged in is in the lobby
+        static void broadcast(OutboundMessage message) {
+            rooms.lobby().publish(message);
+        }
 
+        // Notices such as "x connected" are journaled as NOTICE, compaction drops them from old history
         private void broadcast(String message) {
-            for (ConnectionHandler connection : connections) {
-                connection.sendMessage(message);
+            broadcast(message, MessageJournal.NOTICE);
+        }
+
+        private void broadcast(String message, byte journalKind) {
+            deliverBroadcast(message, journalKind);
+            cluster.broadcast(journalKind, message);
+        }
+
+        // Every node journals what it delivers, so each has the whole history
+        static void deliverBroadcast(String message, byte journalKind) {
+            journal.append(journalKind, message);
+            if (journalKind == MessageJournal.MESSAGE) {
+                search.add(null, null, message);
+            }
+            OutboundMessage chat = OutboundMessage.chat(message);
+            try {
+                broadcast(chat);
+            } finally {
+                chat.release();
+            }
+        }
+
+        // "/history" replays the usual amount, "/history <count>" the last count messages,
+        // "/history since <sequence>" everything from a cursor the client got earlier and
+        // "/history before <sequence>" a page of what came before it, see sendOlder. "/history 0" only
+        // answers with the current cursor.
+        private void onHistoryRequest(String command) {
+            String[] parts = command.split(" ");
+            int count = config.historyOnLogin;
+            long from;
+            try {
+                if (parts.length > 2 && parts[1].equals("before")) {
+                    sendOlder(Long.parseLong(parts[2]));
+                    return;
+                } else if (parts.length == 2 && parts[1].equals("0")) {
+                    sendCommand("/cursor " + journal.nextSequence());
+                    return;
+                } else if (parts.length > 2 && parts[1].equals("since")) {
+                    from = Long.parseLong(parts[2]);
+                    count = config.historyMax;
+                } else {
+                    if (parts.length > 1) {
+                        count = Math.min(Integer.parseInt(parts[1]), config.historyMax);
+                    }
+                    from = journal.nextSequence() - count;
+                }
+            } catch (NumberFormatException e) {
+                sendMessage(OutboundMessage.error("Usage: /history [count | since <sequence>]"));
+                return;
+            }
+            sendHistory(from, count);
+        }
+
+        // Streams journal records straight from the mapped segments, then "/cursor <next> <first>": next to
+        // ask for the messages after them with later, first to page back from with "/history before"
+        private void sendHistory(long from, int count) {
+            if (count <= 0) {
+                return;
+            }
+            long next = journal.replay(from, count, codec.format(), this::sendFrame);
+            sendCommand("/cursor " + next + " " + Math.max(from, journal.firstSequence()));
+        }
+
+        // A page of the history before the given sequence, for a client scrolling back. Each record comes
+        // as "/older <time> <line>" so the client can tell them from the live messages that arrive meanwhile,
+        // then "/oldest <sequence>" to continue from, or "/oldest -1" when there is nothing older left.
+        private void sendOlder(long before) {
+            long first = journal.firstSequence();
+            long from = Math.max(first, before - config.historyPage);
+            journal.replayText(from, before, config.historyPage, (time, line) -> sendCommand("/older " + time + " " + line));
+            sendCommand("/oldest " + (from > first ? from : -1));
+        }
+
+        // "/search <words>" answers with the best matches, "/search page <n> <words>" with the ones after
+        // them. The search runs on a search thread, which also sends the results, as chat lines.
+        private void onSearch(String query) {
+            int page = 0;
+            String[] parts = query.split(" ", 3);
+            if (parts.length == 3 && parts[0].equals("page")) {
+                try {
+                    page = Math.max(0, Integer.parseInt(parts[1]) - 1);
+                    query = parts[2];
+                } catch (NumberFormatException e) {
+                    // "page" is one of the words
+                }
+            }
+            if (query.isEmpty()) {
+                sendMessage(OutboundMessage.error("Usage: /search [page <n>] <words>"));
+                return;
+            }
+            String words = query;
+            int number = page;
+            if (!search.search(username, words, page, config.searchPageSize, results -> sendSearchResults(words, number, results))) {
+                sendMessage(OutboundMessage.chat("Search is busy, please try again in a moment."));
+            }
+        }
+
+        private void sendSearchResults(String query, int page, SearchIndex.Results results) {
+            if (results == null) {
+                sendMessage(OutboundMessage.chat("Search failed, please try again later."));
+                return;
+            }
+            List<SearchIndex.Message> hits = results.hits();
+            if (hits.isEmpty()) {
+                sendMessage(OutboundMessage.chat((results.total() == 0 ? "Nothing found for \"" : "No more results for \"") + query + "\""));
+                return;
+            }
+            int first = page * config.searchPageSize;
+            sendMessage(OutboundMessage.chat("Search \"" + query + "\": " + (first + 1) + "-" + (first + hits.size())
+                    + " of " + results.total()));
+            for (SearchIndex.Message hit : hits) {
+                String sent = "[" + SENT.format(Instant.ofEpochMilli(hit.time())) + "] ";
+                sendMessage(OutboundMessage.chat(hit.sender() == null ? sent + hit.text()
+                        : sent + hit.sender() + " to " + hit.recipient() + " (private): " + hit.text()));
+            }
+            if (first + hits.size() < results.total()) {
+                sendMessage(OutboundMessage.chat("More: /search page " + (page + 2) + " " + query));
+            }
+        }
+
+        private void sendMessage(OutboundMessage message) {
+            try {
+                send(message);
+            } finally {
+                message.release();
+            }
+        }
+
+        // Commands are plain lines for text clients and CONTROL frames for binary ones
+        private void sendCommand(String command) {
+            if (codec.format() == ProtocolCodec.Format.TEXT) {
+                sendLine(command);
+            } else {
+                sendMessage(OutboundMessage.control(command));
             }
         }
 
-        private void sendMessage(String message) {
-            out.println(message);
+        // Protocol negotiation happens in the text protocol, before any codec switch
+        private void sendLine(String line) {
+            sendFrame(Frame.text(line));
+        }
+
+        // Writes a frame that belongs to this connection alone and gives up our reference to it
+        private void sendFrame(Frame frame) {
+            try {
+                client.write(frame);
+            } finally {
+                frame.release();
+            }
         }
 
         private void sendMessageToSpecificUser(String message) {
@@ -187,23 +1115,8 @@ public class Server {
                 for (int i = 2; i < parts.length; i++) {
                     messageBuilder.append(parts[i]).append(" ");
                 }
-                String messageToSend = messageBuilder.toString().trim();
-                for (ConnectionHandler connection : connections) {
-                    if (connection.username.equals(recipient)) {
-                        connection.sendMessage(username + " (private): " + messageToSend);
-                        break;
-                    }
-                }
+                onPrivateMessage(recipient, messageBuilder.toString().trim());
             }
         }
-
-        private void sendConnectedUsersList() {
-            StringBuilder userListBuilder = new StringBuilder("/users ");
-            for (String user : connectedUsernames) {
-                userListBuilder.append(user).append(",");
-            }
-            broadcast(userListBuilder.toString());
-        }
-
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,412 @@
+package chatApplication;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+// The server's settings: the chat.* properties of the config file (chat-server.properties unless chat.config
+// names another) with the system properties on top, so -Dchat.port=... on the command line wins over the
+// file. While the server runs, a change to the file takes effect for the settings in RELOADABLE, and for
+// those in NEW_CONNECTIONS on connections accepted after it; the others are only read at startup and keep
+// their values until the next one, see reload.
+public class ServerConfig {
+    static final String ENGINE_NIO = "nio";
+    static final String ENGINE_VIRTUAL = "virtual";
+    static final String CLUSTER_LOCAL = "local";
+    static final String CLUSTER_TCP = "tcp";
+    // Keys, or prefixes of keys ending in a dot, of the settings a running server picks up from the file
+    static final List<String> RELOADABLE = List.of("chat.history.", "chat.limits.messages.",
+            "chat.limits.private.", "chat.limits.commands.", "chat.limits.fileBytes.", "chat.idle.heartbeatSeconds",
+            "chat.idle.readTimeoutSeconds", "chat.idle.writeTimeoutSeconds", "chat.compression", "chat.compression.",
+            "chat.search.pageSize", "chat.session.resumeSeconds", "chat.log.level", "chat.shutdown.");
+    // Settings a connection takes when it is accepted, a reload leaves the ones already open as they are
+    static final List<String> NEW_CONNECTIONS = List.of("chat.maxLineLength", "chat.session.replayFrames",
+            "chat.session.replayBytes");
+
+    private final Properties properties; // what this was made from, see reload
+    final Path configFile;
+    final int configReloadSeconds; // how often the config file is checked for changes, 0 never
+
+    final int port;
+    final String engine; // "nio" (selector event loop) or "virtual" (virtual thread per connection)
+    final int ioThreads; // number of selector loops used by the nio engine
+    final int readBufferSize;
+    final int maxLineLength; // protects the server against clients that never send a newline
+    final int disconnectedHistoryLimit; // how many recent disconnections the GUI keeps
+    final int outboundCapacity; // messages queued per connection before the overflow policy applies
+    final OutboundQueue.OverflowPolicy overflowPolicy;
+    final int writeBatchSize; // messages coalesced into one gathering write
+    final Path fileDirectory; // root of the LocalFileStore
+    final int maxUploads; // chunked uploads one connection may have in progress, each holds a file open
+    final long maxFileSize; // bytes, larger uploads are refused whatever size the client allows
+    final Path journalDirectory; // see MessageJournal
+    final int journalSegmentSize;
+    final int journalSyncMillis; // group commit interval
+    final int journalMaxSegments; // retention by count, 0 keeps all
+    final int journalRetentionHours; // retention by age, 0 keeps all
+    final int journalCompactAfterHours; // when notices are dropped from old segments, 0 never
+    final Path inboxDirectory; // private messages for offline users, see OfflineInbox
+    final int inboxMaxMessages; // per user, later ones are dropped
+    final int inboxMaxUsers;
+    final int inboxTtlHours; // older messages are never delivered
+    final int inboxQueueSize; // messages on their way to the inbox writer
+    final Path searchDirectory; // the /search index, see SearchIndex
+    final int searchSegmentDocuments; // messages indexed on the heap before they are written out as a segment
+    final int searchMergeFactor; // segments of one size merged into one
+    final int searchQueueSize; // messages on their way to the indexer
+    final int searchThreads; // searches running at the same time
+    final int searchPageSize; // results per /search page
+    final int historyOnLogin; // messages replayed to a client that logs in
+    final int historyMax; // most messages one /history replays, keep it below the outbound capacity
+    final int historyPage; // messages per "/history before" page, for clients scrolling back
+    final int presenceBatchMillis; // joins and leaves within this window go out as one delta
+    final int fanOutThreads; // threads delivering messages to big rooms, see Room
+    final int roomParallelThreshold; // members from which a room's messages are delivered in parallel
+    final String clusterTransport; // "local" (nodes in this JVM, by default just this one) or "tcp"
+    final String clusterNode; // unique per node
+    final int clusterPort; // where the tcp transport listens for other nodes
+    final String clusterBind; // the address it listens on, other machines' nodes need one they can reach
+    final String clusterSecret; // every node has the same, a peer that doesn't know it is turned away
+    final List<InetSocketAddress> clusterPeers; // host:port of every node, this one may be included
+    final int clusterQueueCapacity; // messages queued per peer before the link is reset
+    final boolean gui; // show the ServerGUI, see guiSetting
+    final int guiRefreshMillis; // how often the GUI shows what changed
+    final int metricsPort; // local port of the plain-text metrics endpoint, 0 for none
+    final boolean metricsJmx; // register the Metrics MBean
+    final Path logDirectory; // see Log
+    final Log.Level logLevel; // events below this level are not logged
+    final int logBufferSize; // events waiting for the log writer before new ones are dropped
+    final long logMaxFileBytes; // server.log is rotated when it gets this big
+    final int logMaxFiles; // server.log and its rotated predecessors
+    final boolean logConsole; // also print the log on the console
+    final int guiLogLines; // how much of the log the GUI keeps
+    // Per connection, see TokenBucket; a rate of 0 turns a limit off
+    final TokenBucket.Limit messageLimit; // chat and room messages per second
+    final TokenBucket.Limit privateLimit; // private messages per second
+    final TokenBucket.Limit commandLimit; // other commands per second, /history and the like
+    final TokenBucket.Limit fileByteLimit; // uploaded file bytes per second
+    final TokenBucket.Limit acceptLimit; // connections accepted per second, for the whole server
+    // Idle connections, see Server.ConnectionHandler.checkIdle; 0 turns a check off
+    final int heartbeatSeconds; // a client that sent nothing for this long is sent a /ping
+    final int readTimeoutSeconds; // a client that sent nothing for this long is disconnected
+    final int writeTimeoutSeconds; // a client whose socket took nothing of ours for this long is disconnected
+    final int idleTickMillis; // resolution of the TimingWheel that runs the checks
+    final int idleWheelSlots;
+    final boolean compression; // binary clients may ask for compressed frames, see Compression
+    final int compressionThreshold; // smaller payloads are never compressed
+    final boolean tls; // clients connect with TLS, see TlsSession
+    final Path tlsKeyStore; // the server's key and certificate
+    final String tlsKeyStorePassword;
+    final String[] tlsProtocols;
+    final int tlsSessionCacheSize; // sessions kept for resumption
+    final int tlsSessionTimeoutSeconds; // how long a client can resume its session
+    final int sessionResumeSeconds; // how long a dropped client's session waits for it to reconnect, 0 never
+    final int sessionReplayFrames; // frames kept per session for a client that reconnects, keep it below the outbound capacity
+    final int sessionReplayBytes; // and at most this many bytes of them
+    final boolean reusePort; // another server process may listen on the port too, see Server.shutdown
+    final Path lockFile; // held while the data directories are in use
+    final int shutdownSpreadSeconds; // sessions are closed over this long, so their clients come back gradually
+    final int shutdownDrainSeconds; // then what is still queued gets this long to be sent
+
+    ServerConfig(Properties properties) {
+        this.properties = (Properties) properties.clone();
+        configFile = configFile(properties);
+        configReloadSeconds = intValue(properties, "chat.config.reloadSeconds", 5);
+        port = intValue(properties, "chat.port", 12345);
+        engine = properties.getProperty("chat.engine", ENGINE_NIO);
+        ioThreads = intValue(properties, "chat.ioThreads", Runtime.getRuntime().availableProcessors());
+        readBufferSize = intValue(properties, "chat.readBufferSize", 4096);
+        maxLineLength = intValue(properties, "chat.maxLineLength", 64 * 1024);
+        disconnectedHistoryLimit = intValue(properties, "chat.disconnectedHistory", 1000);
+        outboundCapacity = intValue(properties, "chat.outbound.capacity", 1024);
+        overflowPolicy = OutboundQueue.OverflowPolicy.valueOf(
+                properties.getProperty("chat.outbound.policy", "DISCONNECT").trim().toUpperCase());
+        writeBatchSize = intValue(properties, "chat.outbound.batchSize", 64);
+        fileDirectory = Paths.get(properties.getProperty("chat.files.directory", "files"));
+        maxUploads = intValue(properties, "chat.files.maxUploads", 8);
+        maxFileSize = longValue(properties, "chat.files.maxSize", 10 * 1024 * 1024);
+        journalDirectory = Paths.get(properties.getProperty("chat.journal.directory", "journal"));
+        journalSegmentSize = intValue(properties, "chat.journal.segmentSize", 16 * 1024 * 1024);
+        journalSyncMillis = intValue(properties, "chat.journal.syncMillis", 20);
+        inboxDirectory = Paths.get(properties.getProperty("chat.inbox.directory", "inbox"));
+        inboxMaxMessages = intValue(properties, "chat.inbox.maxMessages", 200);
+        inboxMaxUsers = intValue(properties, "chat.inbox.maxUsers", 10_000);
+        inboxTtlHours = intValue(properties, "chat.inbox.ttlHours", 7 * 24);
+        inboxQueueSize = intValue(properties, "chat.inbox.queueSize", 4096);
+        searchDirectory = Paths.get(properties.getProperty("chat.search.directory", "search"));
+        searchSegmentDocuments = intValue(properties, "chat.search.segmentDocuments", 64 * 1024);
+        searchMergeFactor = intValue(properties, "chat.search.mergeFactor", 4);
+        searchQueueSize = intValue(properties, "chat.search.queueSize", 16 * 1024);
+        searchThreads = intValue(properties, "chat.search.threads", 2);
+        searchPageSize = intValue(properties, "chat.search.pageSize", 10);
+        journalMaxSegments = intValue(properties, "chat.journal.retention.segments", 64);
+        journalRetentionHours = intValue(properties, "chat.journal.retention.hours", 0);
+        journalCompactAfterHours = intValue(properties, "chat.journal.compactAfterHours", 24);
+        historyOnLogin = intValue(properties, "chat.history.onLogin", 50);
+        historyMax = intValue(properties, "chat.history.max", 500);
+        historyPage = intValue(properties, "chat.history.page", 100);
+        presenceBatchMillis = intValue(properties, "chat.presence.batchMillis", 50);
+        fanOutThreads = intValue(properties, "chat.rooms.fanOutThreads", Runtime.getRuntime().availableProcessors());
+        roomParallelThreshold = intValue(properties, "chat.rooms.parallelThreshold", 256);
+        clusterTransport = properties.getProperty("chat.cluster.transport", CLUSTER_LOCAL);
+        clusterNode = properties.getProperty("chat.cluster.node", "node-" + port);
+        clusterPort = intValue(properties, "chat.cluster.port", port + 1000);
+        clusterBind = properties.getProperty("chat.cluster.bind", "127.0.0.1");
+        clusterSecret = properties.getProperty("chat.cluster.secret", "");
+        clusterPeers = addresses(properties.getProperty("chat.cluster.peers", ""));
+        clusterQueueCapacity = intValue(properties, "chat.cluster.queueCapacity", 64 * 1024);
+        gui = guiSetting(properties.getProperty("chat.gui", "auto"), properties);
+        guiRefreshMillis = intValue(properties, "chat.gui.refreshMillis", 100);
+        metricsPort = intValue(properties, "chat.metrics.port", 9464);
+        metricsJmx = Boolean.parseBoolean(properties.getProperty("chat.metrics.jmx", "true"));
+        logDirectory = Paths.get(properties.getProperty("chat.log.directory", "logs"));
+        logLevel = Log.Level.valueOf(properties.getProperty("chat.log.level", "INFO").trim().toUpperCase());
+        logBufferSize = intValue(properties, "chat.log.bufferSize", 16 * 1024);
+        logMaxFileBytes = intValue(properties, "chat.log.maxFileBytes", 16 * 1024 * 1024);
+        logMaxFiles = intValue(properties, "chat.log.files", 5);
+        logConsole = Boolean.parseBoolean(properties.getProperty("chat.log.console", "true"));
+        guiLogLines = intValue(properties, "chat.gui.logLines", 1000);
+        messageLimit = limit(properties, "chat.limits.messages", 20, 50);
+        privateLimit = limit(properties, "chat.limits.private", 20, 50);
+        commandLimit = limit(properties, "chat.limits.commands", 10, 30);
+        fileByteLimit = limit(properties, "chat.limits.fileBytes", 16 * 1024 * 1024, 4 * 1024 * 1024);
+        acceptLimit = limit(properties, "chat.limits.accept", 1000, 1000);
+        heartbeatSeconds = intValue(properties, "chat.idle.heartbeatSeconds", 30);
+        readTimeoutSeconds = intValue(properties, "chat.idle.readTimeoutSeconds", 90);
+        writeTimeoutSeconds = intValue(properties, "chat.idle.writeTimeoutSeconds", 60);
+        idleTickMillis = intValue(properties, "chat.idle.tickMillis", 500);
+        idleWheelSlots = intValue(properties, "chat.idle.wheelSlots", 512);
+        compression = Boolean.parseBoolean(properties.getProperty("chat.compression", "true"));
+        compressionThreshold = intValue(properties, "chat.compression.threshold", Compression.DEFAULT_THRESHOLD);
+        tls = Boolean.parseBoolean(properties.getProperty("chat.tls", "false"));
+        tlsKeyStore = Paths.get(properties.getProperty("chat.tls.keyStore", "chat-server.p12"));
+        tlsKeyStorePassword = properties.getProperty("chat.tls.keyStorePassword", "changeit");
+        tlsProtocols = properties.getProperty("chat.tls.protocols", "TLSv1.3,TLSv1.2").split("\\s*,\\s*");
+        tlsSessionCacheSize = intValue(properties, "chat.tls.sessionCacheSize", 20_000);
+        tlsSessionTimeoutSeconds = intValue(properties, "chat.tls.sessionTimeoutSeconds", 24 * 3600);
+        sessionResumeSeconds = intValue(properties, "chat.session.resumeSeconds", 60);
+        sessionReplayFrames = intValue(properties, "chat.session.replayFrames", 512);
+        sessionReplayBytes = intValue(properties, "chat.session.replayBytes", 1024 * 1024);
+        reusePort = Boolean.parseBoolean(properties.getProperty("chat.reusePort", "false"));
+        lockFile = Paths.get(properties.getProperty("chat.lockFile", "chat-server.lock"));
+        shutdownSpreadSeconds = intValue(properties, "chat.shutdown.spreadSeconds", 10);
+        shutdownDrainSeconds = intValue(properties, "chat.shutdown.drainSeconds", 10);
+    }
+
+    static ServerConfig load() throws IOException {
+        return new ServerConfig(withSystemProperties(readFile(configFile(System.getProperties()))));
+    }
+
+    // The settings to carry on with after the config file changed: the reloadable ones as the file has them
+    // now, the others as they were. Logs what changed.
+    ServerConfig reload() throws IOException {
+        Properties fresh = withSystemProperties(readFile(configFile));
+        Properties next = new Properties();
+        Set<String> keys = new TreeSet<>(properties.stringPropertyNames());
+        keys.addAll(fresh.stringPropertyNames());
+        for (String key : keys) {
+            String before = properties.getProperty(key);
+            String after = fresh.getProperty(key);
+            String value = reloadable(key) || matches(NEW_CONNECTIONS, key) ? after : before;
+            if (value != null) {
+                next.setProperty(key, value);
+            }
+            if (key.startsWith("chat.") && !Objects.equals(before, after)) { // the JVM sets some of its own lazily
+                if (reloadable(key)) {
+                    Log.info("config.changed", "key", key); // no values, the file may hold passwords
+                } else if (matches(NEW_CONNECTIONS, key)) {
+                    Log.info("config.changed", "key", key, "appliesTo", "newConnections");
+                } else {
+                    Log.warn("config.restartRequired", "key", key);
+                }
+            }
+        }
+        return new ServerConfig(next);
+    }
+
+    long configFileModified() {
+        try {
+            return Files.exists(configFile) ? Files.getLastModifiedTime(configFile).toMillis() : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    static boolean reloadable(String key) {
+        return matches(RELOADABLE, key);
+    }
+
+    private static boolean matches(List<String> settings, String key) {
+        for (String setting : settings) {
+            if (setting.endsWith(".") ? key.startsWith(setting) : key.equals(setting)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Path configFile(Properties properties) {
+        return Paths.get(properties.getProperty("chat.config", "chat-server.properties"));
+    }
+
+    // No file is the same as an empty one
+    private static Properties readFile(Path file) throws IOException {
+        Properties properties = new Properties();
+        if (Files.exists(file)) {
+            try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                properties.load(reader);
+            }
+        }
+        return properties;
+    }
+
+    private static Properties withSystemProperties(Properties file) {
+        Properties properties = new Properties();
+        properties.putAll(file);
+        properties.putAll(System.getProperties());
+        return properties;
+    }
+
+    ConnectionEngine createEngine() {
+        if (ENGINE_VIRTUAL.equalsIgnoreCase(engine)) {
+            return new VirtualThreadConnectionEngine(this);
+        } else if (ENGINE_NIO.equalsIgnoreCase(engine)) {
+            return new NioConnectionEngine(this);
+        }
+        throw new IllegalArgumentException("Unknown connection engine: " + engine);
+    }
+
+    FileStore createFileStore() throws IOException {
+        return new LocalFileStore(fileDirectory);
+    }
+
+    MessageJournal openJournal() throws IOException {
+        return new MessageJournal(journalDirectory, journalSegmentSize, journalSyncMillis, journalMaxSegments,
+                TimeUnit.HOURS.toMillis(journalRetentionHours), TimeUnit.HOURS.toMillis(journalCompactAfterHours));
+    }
+
+    OfflineInbox openInbox() throws IOException {
+        return new OfflineInbox(inboxDirectory, inboxMaxMessages, inboxMaxUsers, TimeUnit.HOURS.toMillis(inboxTtlHours),
+                inboxQueueSize);
+    }
+
+    SearchIndex openSearchIndex() throws IOException {
+        return new SearchIndex(searchDirectory, searchSegmentDocuments, searchMergeFactor, searchQueueSize, searchThreads);
+    }
+
+    RoomRegistry createRooms() {
+        return new RoomRegistry(fanOutThreads, roomParallelThreshold);
+    }
+
+    ClusterTransport createClusterTransport() {
+        if (CLUSTER_TCP.equalsIgnoreCase(clusterTransport)) {
+            if (clusterSecret.isEmpty()) {
+                throw new IllegalArgumentException("The tcp cluster transport needs chat.cluster.secret");
+            }
+            return new TcpClusterTransport(clusterNode, new InetSocketAddress(clusterBind, clusterPort), clusterSecret,
+                    clusterPeers, clusterQueueCapacity);
+        } else if (CLUSTER_LOCAL.equalsIgnoreCase(clusterTransport)) {
+            return new LocalClusterTransport(clusterNode);
+        }
+        throw new IllegalArgumentException("Unknown cluster transport: " + clusterTransport);
+    }
+
+    // Where clients connect. With reusePort a new server process can listen on the port while this one is
+    // still shutting down; both must have it set.
+    ServerSocketChannel openListener() throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            if (reusePort) {
+                if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    throw new IOException("SO_REUSEPORT is not supported on this platform");
+                }
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channel.bind(new InetSocketAddress(port), 1024);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    // null unless TLS is on
+    SSLContext createTlsContext() throws IOException {
+        if (!tls) {
+            return null;
+        }
+        return TlsSession.serverContext(tlsKeyStore, tlsKeyStorePassword.toCharArray(), tlsSessionCacheSize,
+                tlsSessionTimeoutSeconds);
+    }
+
+    // Resuming needs every byte of the session to reach the client in order, which a policy that drops
+    // messages doesn't keep to
+    boolean sessionsResumable() {
+        return sessionResumeSeconds > 0 && overflowPolicy == OutboundQueue.OverflowPolicy.DISCONNECT;
+    }
+
+    OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(outboundCapacity, overflowPolicy);
+    }
+
+    // "true", "false" or "auto": a window unless java.awt.headless is set or, on Linux and other Unixes,
+    // there is no display to show it on. Decided without asking AWT, which would load it.
+    static boolean guiSetting(String value, Properties properties) {
+        if (!value.equalsIgnoreCase("auto")) {
+            return Boolean.parseBoolean(value);
+        }
+        if (Boolean.parseBoolean(properties.getProperty("java.awt.headless"))) {
+            return false;
+        }
+        String os = System.getProperty("os.name", "").toLowerCase();
+        if (os.contains("win") || os.contains("mac")) {
+            return true;
+        }
+        return System.getenv("DISPLAY") != null || System.getenv("WAYLAND_DISPLAY") != null;
+    }
+
+    // "host:port,host:port"
+    static List<InetSocketAddress> addresses(String value) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String address : value.split(",")) {
+            address = address.trim();
+            if (!address.isEmpty()) {
+                int colon = address.lastIndexOf(':');
+                addresses.add(new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))));
+            }
+        }
+        return addresses;
+    }
+
+    // <prefix>.rate per second and <prefix>.burst
+    static TokenBucket.Limit limit(Properties properties, String prefix, double rate, long burst) {
+        String perSecond = properties.getProperty(prefix + ".rate");
+        String size = properties.getProperty(prefix + ".burst");
+        return new TokenBucket.Limit(perSecond == null ? rate : Double.parseDouble(perSecond.trim()),
+                size == null ? burst : Long.parseLong(size.trim()));
+    }
+
+    static int intValue(Properties properties, String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    static long longValue(Properties properties, String key, long defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : Long.parseLong(value.trim());
+    }
+}
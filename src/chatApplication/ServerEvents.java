@@ -0,0 +1,9 @@
+package chatApplication;
+
+// What happens on the server that something besides the connection handling may want to show or count,
+// see Server.subscribe. Called on the connection's thread, so a subscriber has to be quick and thread safe.
+interface ServerEvents {
+    void userConnected(String username);
+
+    void userDisconnected(String username);
+}
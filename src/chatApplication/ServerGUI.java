@@ -1,12 +1,15 @@
 package chatApplication;
 
 import javax.swing.*;
+import javax.swing.text.BadLocationException;
 import java.awt.*;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Date;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.util.Collection;
 
+// Updated by ServerGUIEvents, on the EDT only
 public class ServerGUI extends JFrame {
+    private final int maxLogLines;
     private JLabel statusLabel;
     private JTextArea logArea;
     private JList<String> connectedUserList;
@@ -14,11 +17,20 @@ public class ServerGUI extends JFrame {
     private JList<String> disconnectedUserList;
     private DefaultListModel<String> disconnectedUserListModel;
 
-    public ServerGUI() {
+    public ServerGUI(int maxLogLines) {
+        this.maxLogLines = maxLogLines;
         setTitle("Server GUI");
         setSize(600, 400); // Adjusted size to accommodate both lists
-        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
         initComponents();
+        // System.exit runs the server's shutdown, which takes a while; the window shows its log meanwhile
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                statusLabel.setText("Server Status: Stopping");
+                new Thread(() -> System.exit(0), "gui-exit").start();
+            }
+        });
         setLocationRelativeTo(null); // Center the frame
     }
 
@@ -65,40 +77,33 @@ public class ServerGUI extends JFrame {
     }
 
 
+    // Older lines are dropped so the text area never grows past maxLogLines
     public void logMessage(String message) {
         logArea.append(message + "\n");
+        int excess = logArea.getLineCount() - 1 - maxLogLines; // the last line is the empty one after "\n"
+        if (excess > 0) {
+            try {
+                logArea.replaceRange(null, 0, logArea.getLineEndOffset(excess - 1));
+            } catch (BadLocationException e) {
+                logArea.setText(null);
+            }
+        }
     }
 
-    public void updateConnectedUserList(ArrayList<String> connectedUsernames) {
+    // addAll fires one change event for the whole list instead of one per user
+    public void updateConnectedUserList(Collection<String> connectedUsernames) {
         connectedUserListModel.clear();
-        for (String username : connectedUsernames) {
-            connectedUserListModel.addElement(username);
-        }
+        connectedUserListModel.addAll(connectedUsernames);
     }
 
-    public void updateDisconnectedUserList(ArrayList<String> disconnectedUsernames) {
+    public void updateDisconnectedUserList(Collection<String> disconnectedUsernames) {
         disconnectedUserListModel.clear();
-        for (String username : disconnectedUsernames) {
-            disconnectedUserListModel.addElement(username);
-        }
-    }
-
-    public void logConnection(String username) {
-        logMessage(getTimestamp() + " " + username + " connected");
-    }
-
-    public void logDisconnection(String username) {
-        logMessage(getTimestamp() + " " + username + " disconnected");
-    }
-
-    private String getTimestamp() {
-        SimpleDateFormat dateFormat = new SimpleDateFormat("HH:mm:ss");
-        return "[" + dateFormat.format(new Date()) + "]";
+        disconnectedUserListModel.addAll(disconnectedUsernames);
     }
 
     public static void main(String[] args) {
         SwingUtilities.invokeLater(() -> {
-            ServerGUI serverGUI = new ServerGUI();
+            ServerGUI serverGUI = new ServerGUI(1000);
             serverGUI.setVisible(true);
         });
     }
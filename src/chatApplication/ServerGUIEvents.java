@@ -0,0 +1,66 @@
+package chatApplication;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Shows the server log and the user lists in the ServerGUI. The log writer only queues its lines and an
+// event only marks the user lists as changed; a Swing timer applies everything that piled up on the EDT
+// every refreshMillis. A login storm therefore costs the connection threads next to nothing and the GUI
+// one list refresh per frame. Only the last logLines lines are kept, here and in the window.
+class ServerGUIEvents implements ServerEvents {
+    private final SessionRegistry sessions;
+    private final ArrayBlockingQueue<String> log;
+    private final AtomicBoolean usersChanged = new AtomicBoolean();
+    private ServerGUI gui; // EDT only
+
+    private ServerGUIEvents(SessionRegistry sessions, int logLines) {
+        this.sessions = sessions;
+        this.log = new ArrayBlockingQueue<>(logLines);
+    }
+
+    // Opens the window; the only way into AWT, a headless server never calls it
+    static ServerEvents start(SessionRegistry sessions, int refreshMillis, int logLines) {
+        ServerGUIEvents events = new ServerGUIEvents(sessions, logLines);
+        Log.tail(events::logged);
+        SwingUtilities.invokeLater(() -> {
+            events.gui = new ServerGUI(logLines);
+            events.gui.setVisible(true);
+            new Timer(refreshMillis, e -> events.refresh()).start();
+        });
+        return events;
+    }
+
+    @Override
+    public void userConnected(String username) {
+        usersChanged.set(true);
+    }
+
+    @Override
+    public void userDisconnected(String username) {
+        usersChanged.set(true);
+    }
+
+    // On the log writer thread. While the GUI is behind, older lines make room for new ones.
+    private void logged(String line) {
+        while (!log.offer(line)) {
+            log.poll();
+        }
+    }
+
+    private void refresh() {
+        StringBuilder lines = new StringBuilder();
+        String line;
+        while ((line = log.poll()) != null) {
+            lines.append(line).append('\n');
+        }
+        if (!lines.isEmpty()) {
+            gui.logMessage(lines.substring(0, lines.length() - 1));
+        }
+        if (usersChanged.getAndSet(false)) {
+            gui.updateConnectedUserList(sessions.connectedUsernames());
+            gui.updateDisconnectedUserList(sessions.disconnectedUsernames());
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package chatApplication;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Logged-in sessions keyed by username. Safe to use from every connection thread without extra locking:
+// claiming a name is a single putIfAbsent, lookups are O(1) and iteration never throws
+// ConcurrentModificationException (it sees a weakly consistent view of the map). Sessions that can be
+// resumed are also found by their token, see ResumableTransport.
+class SessionRegistry {
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final ConcurrentHashMap<String, Server.ConnectionHandler> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Server.ConnectionHandler> tokens = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedDeque<String> disconnectedUsernames = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger disconnectedCount = new AtomicInteger();
+    private final int disconnectedHistoryLimit;
+
+    SessionRegistry(int disconnectedHistoryLimit) {
+        this.disconnectedHistoryLimit = disconnectedHistoryLimit;
+    }
+
+    // Returns false if someone else already holds the name
+    boolean claim(String username, Server.ConnectionHandler handler) {
+        return sessions.putIfAbsent(username, handler) == null;
+    }
+
+    // Only the handler that claimed the name can release it
+    boolean release(String username, Server.ConnectionHandler handler) {
+        if (!sessions.remove(username, handler)) {
+            return false;
+        }
+        disconnectedUsernames.addLast(username);
+        // Keep only the most recent disconnections: every add past the limit evicts the oldest entry
+        if (disconnectedCount.incrementAndGet() > disconnectedHistoryLimit && disconnectedUsernames.pollFirst() != null) {
+            disconnectedCount.decrementAndGet();
+        }
+        return true;
+    }
+
+    // A new token for the session, 128 random bits: whoever has it can take the session over
+    String issueToken(Server.ConnectionHandler handler) {
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        String token = HexFormat.of().formatHex(bytes);
+        tokens.put(token, handler);
+        return token;
+    }
+
+    void revokeToken(String token) {
+        tokens.remove(token);
+    }
+
+    Server.ConnectionHandler resumable(String token) {
+        return tokens.get(token);
+    }
+
+    Server.ConnectionHandler lookup(String username) {
+        return sessions.get(username);
+    }
+
+    boolean isUsernameInUse(String username) {
+        return sessions.containsKey(username);
+    }
+
+    Collection<Server.ConnectionHandler> sessions() {
+        return Collections.unmodifiableCollection(sessions.values());
+    }
+
+    Set<String> connectedUsernames() {
+        return Collections.unmodifiableSet(sessions.keySet());
+    }
+
+    List<String> disconnectedUsernames() {
+        return new ArrayList<>(disconnectedUsernames);
+    }
+
+    int size() {
+        return sessions.size();
+    }
+}
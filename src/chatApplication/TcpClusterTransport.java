@@ -0,0 +1,271 @@
+package chatApplication;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// Nodes on other machines (or processes). Every node listens on its cluster port and dials every peer it
+// is configured with, so each pair of nodes has two connections: the one we dial carries our messages to
+// the peer, the one it dialed carries its messages to us. Both start with HELLO <node id> <secret> so either
+// side knows who is at the other end; a peer address that turns out to be ourselves is ignored, so all nodes
+// can share one peer list. Whoever doesn't know the cluster's secret is dropped before anything it sends is
+// passed on. The secret and the messages go in plain text, the cluster port belongs on a private network.
+//
+// Messages to a peer wait in a bounded queue and are written by that link's own thread. A peer that lets
+// the queue fill up is disconnected, it gets everything it needs again when the link is back up.
+class TcpClusterTransport implements ClusterTransport {
+    private static final String HELLO = "HELLO";
+    private static final long RECONNECT_MILLIS = 1000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+
+    private final String nodeId;
+    private final InetSocketAddress bind;
+    private final String secret;
+    private final List<Link> links = new ArrayList<>();
+    private final ConcurrentHashMap<String, Link> linksByNode = new ConcurrentHashMap<>(); // links that are up
+    private final ConcurrentHashMap<String, Socket> inbound = new ConcurrentHashMap<>();
+    private ServerSocket serverSocket;
+    private Receiver receiver;
+    private volatile boolean closed;
+
+    TcpClusterTransport(String nodeId, InetSocketAddress bind, String secret, List<InetSocketAddress> peers,
+                        int queueCapacity) {
+        this.nodeId = nodeId;
+        this.bind = bind;
+        this.secret = secret;
+        for (InetSocketAddress peer : peers) {
+            links.add(new Link(peer, queueCapacity));
+        }
+    }
+
+    @Override
+    public String nodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public void start(Receiver receiver) throws IOException {
+        this.receiver = receiver;
+        serverSocket = new ServerSocket();
+        serverSocket.bind(bind);
+        Thread.ofVirtual().name("cluster-accept").start(this::acceptPeers);
+        for (Link link : links) {
+            link.writer = Thread.ofVirtual().name("cluster-link-" + link.address).start(link::run);
+        }
+    }
+
+    @Override
+    public void sendToAll(String... message) {
+        for (Link link : linksByNode.values()) {
+            link.offer(message);
+        }
+    }
+
+    @Override
+    public void sendTo(String node, String... message) {
+        Link link = linksByNode.get(node);
+        if (link != null) {
+            link.offer(message);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        closeQuietly(serverSocket);
+        for (Link link : links) {
+            link.disconnect();
+        }
+        inbound.values().forEach(TcpClusterTransport::closeQuietly);
+    }
+
+    private void acceptPeers() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread.ofVirtual().name("cluster-in").start(() -> readPeer(socket));
+            } catch (IOException e) {
+                if (!closed) {
+                    Log.error("cluster.accept.failed", e);
+                }
+            }
+        }
+    }
+
+    // Messages from the peer that dialed us
+    private void readPeer(Socket socket) {
+        String node = null;
+        try (socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            String[] hello = read(in);
+            if (!isPeer(hello)) {
+                Log.warn("cluster.peer.rejected", "address", socket.getRemoteSocketAddress());
+                return;
+            }
+            write(out, HELLO, nodeId, secret);
+            out.flush();
+            if (hello[1].equals(nodeId)) {
+                return; // our own address in the peer list
+            }
+            node = hello[1];
+            // A reconnecting peer replaces its old connection; what it said there is stale before we read on
+            Socket previous = inbound.put(node, socket);
+            if (previous != null) {
+                closeQuietly(previous);
+                receiver.onPeerDown(node);
+            }
+            while (!closed) {
+                receiver.onMessage(node, read(in));
+            }
+        } catch (IOException e) {
+            // peer went away, it will dial us again when it is back
+        } finally {
+            if (node != null && inbound.remove(node, socket)) {
+                receiver.onPeerDown(node);
+            }
+        }
+    }
+
+    // HELLO <node id> <secret> with our secret
+    private boolean isPeer(String[] hello) {
+        return hello.length == 3 && hello[0].equals(HELLO)
+                && MessageDigest.isEqual(hello[2].getBytes(StandardCharsets.UTF_8),
+                        secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // [field count: 2 bytes] then per field [length: 4 bytes][UTF-8]
+    private static void write(DataOutputStream out, String... message) throws IOException {
+        out.writeShort(message.length);
+        for (String field : message) {
+            byte[] bytes = field.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String[] read(DataInputStream in) throws IOException {
+        String[] message = new String[in.readUnsignedShort()];
+        for (int i = 0; i < message.length; i++) {
+            int length = in.readInt();
+            if (length < 0 || length > BinaryProtocol.MAX_PAYLOAD_LENGTH) {
+                throw new IOException("Invalid field length " + length);
+            }
+            message[i] = new String(in.readNBytes(length), StandardCharsets.UTF_8);
+        }
+        return message;
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        } catch (Exception e) {
+            // nothing left to do with it
+        }
+    }
+
+    // The connection we dial to one peer address, redialed until the transport is closed
+    private class Link {
+        final InetSocketAddress address;
+        final LinkedBlockingQueue<String[]> queue;
+        volatile Thread writer;
+        volatile String node; // set while the link is up
+        volatile Socket socket;
+        private volatile List<String[]> snapshot; // what onPeerUp sends on the writer thread, see offer
+
+        Link(InetSocketAddress address, int queueCapacity) {
+            this.address = address;
+            this.queue = new LinkedBlockingQueue<>(queueCapacity);
+        }
+
+        // The snapshot onPeerUp sends on the link's own thread, one JOIN per local user, can be more than
+        // the queue holds and is written out before the queue; it is not bounded by it
+        void offer(String[] message) {
+            if (snapshot != null && Thread.currentThread() == writer) {
+                snapshot.add(message);
+                return;
+            }
+            if (node != null && !queue.offer(message)) {
+                Log.warn("cluster.peer.slow", "node", node, "action", "reconnecting");
+                disconnect();
+            }
+        }
+
+        // Closing the socket ends the write in progress, the interrupt ends a wait for the next message
+        void disconnect() {
+            closeQuietly(socket);
+            Thread thread = writer;
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+
+        void run() {
+            writer = Thread.currentThread(); // start may not have set it yet
+            while (!closed) {
+                String peer = null;
+                try (Socket socket = new Socket()) {
+                    this.socket = socket;
+                    socket.connect(address, CONNECT_TIMEOUT_MILLIS);
+                    socket.setTcpNoDelay(true);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    write(out, HELLO, nodeId, secret);
+                    out.flush();
+                    String[] hello = read(new DataInputStream(socket.getInputStream()));
+                    if (!isPeer(hello)) {
+                        Log.warn("cluster.peer.rejected", "address", address);
+                        throw new IOException("Not a cluster node: " + address);
+                    }
+                    if (hello[1].equals(nodeId)) {
+                        return; // that's us
+                    }
+                    peer = hello[1];
+                    queue.clear();
+                    node = peer;
+                    linksByNode.put(peer, this);
+                    snapshot = new ArrayList<>();
+                    try {
+                        receiver.onPeerUp(peer);
+                        for (String[] message : snapshot) {
+                            write(out, message);
+                        }
+                    } finally {
+                        snapshot = null;
+                    }
+                    out.flush();
+                    while (!closed) {
+                        write(out, queue.take());
+                        if (queue.isEmpty()) {
+                            out.flush(); // everything queued so far goes out in as few packets as possible
+                        }
+                    }
+                } catch (IOException | InterruptedException e) {
+                    Thread.interrupted(); // peer down or too slow, dial again
+                } finally {
+                    node = null;
+                    if (peer != null) {
+                        linksByNode.remove(peer, this);
+                    }
+                }
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException e) {
+                    // disconnect() of a link that was already down
+                }
+            }
+        }
+    }
+}
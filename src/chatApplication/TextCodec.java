@@ -0,0 +1,147 @@
+package chatApplication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// The original newline-delimited protocol. The first line is the username (or a /proto request, or a
+// /reconnect to a session that lost its connection, see ResumableTransport), then every line is a message
+// or a command. "/file" is followed by a name line, a size line and the raw bytes; "/chunk" lines of a
+// chunked transfer (see BinaryProtocol) are followed by the bytes of one chunk.
+class TextCodec implements ProtocolCodec {
+    private enum State { FIRST_LINE, LINES, FILE_NAME, FILE_SIZE, FILE_DATA, CHUNK_DATA }
+
+    private final LineDecoder in;
+    private State state = State.FIRST_LINE;
+    private String fileName;
+    private long fileRemaining;
+
+    // Chunk being received, see readChunk
+    private long chunkOffset;
+    private int chunkChecksum;
+    private ByteBuffer chunk;
+
+    TextCodec(int maxLineLength) {
+        this.in = new LineDecoder(maxLineLength);
+    }
+
+    @Override
+    public Format format() {
+        return Format.TEXT;
+    }
+
+    @Override
+    public void decode(ByteBuffer data, Server.ConnectionHandler handler) throws IOException {
+        while (data.hasRemaining() && handler.usesCodec(this)) {
+            if (state == State.FILE_DATA) {
+                // The file bytes follow the size line directly, so they are read from the same stream as the text
+                int length = (int) Math.min(data.remaining(), fileRemaining);
+                ByteBuffer chunk = data.slice(data.position(), length);
+                data.position(data.position() + length);
+                fileRemaining -= length;
+                if (fileRemaining == 0) {
+                    state = State.LINES;
+                }
+                handler.onFileData(chunk);
+                continue;
+            }
+            if (state == State.CHUNK_DATA) {
+                readChunk(data, handler);
+                continue;
+            }
+            String line = in.next(data);
+            if (line == null) {
+                return; // wait for the rest of the line
+            }
+            handleLine(line, handler);
+        }
+    }
+
+    // A chunk is handed over whole so its checksum can be checked before anything is written. When all of
+    // it is already in the read buffer it is passed on as a slice, otherwise it is collected in a pooled buffer.
+    private void readChunk(ByteBuffer data, Server.ConnectionHandler handler) {
+        if (chunk.position() == 0 && data.remaining() >= chunk.limit()) {
+            ByteBuffer slice = data.slice(data.position(), chunk.limit());
+            data.position(data.position() + chunk.limit());
+            finishChunk(slice, handler);
+            return;
+        }
+        int length = Math.min(chunk.remaining(), data.remaining());
+        chunk.put(chunk.position(), data, data.position(), length);
+        chunk.position(chunk.position() + length);
+        data.position(data.position() + length);
+        if (!chunk.hasRemaining()) {
+            finishChunk(chunk.flip(), handler);
+        }
+    }
+
+    private void finishChunk(ByteBuffer bytes, Server.ConnectionHandler handler) {
+        state = State.LINES;
+        try {
+            handler.onFileChunk(fileName, chunkOffset, chunkChecksum, bytes);
+        } finally {
+            BufferPool.SHARED.release(chunk);
+            chunk = null;
+        }
+    }
+
+    // "/chunk <offset> <length> <crc> <name>"
+    private void startChunk(String line) throws IOException {
+        String[] parts = line.split(" ", 5);
+        int length;
+        try {
+            chunkOffset = Long.parseLong(parts[1]);
+            length = Integer.parseInt(parts[2]);
+            chunkChecksum = Integer.parseInt(parts[3]);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Invalid chunk header: " + line);
+        }
+        if (parts.length < 5 || length <= 0 || length > BinaryProtocol.MAX_PAYLOAD_LENGTH) {
+            throw new IOException("Invalid chunk header: " + line);
+        }
+        fileName = parts[4];
+        chunk = BufferPool.SHARED.acquire(length).limit(length);
+        state = State.CHUNK_DATA;
+    }
+
+    private void handleLine(String line, Server.ConnectionHandler handler) throws IOException {
+        switch (state) {
+            case FIRST_LINE -> {
+                state = State.LINES;
+                if (line.startsWith("/proto ")) {
+                    state = State.FIRST_LINE; // the username follows if we stay on the text protocol
+                    handler.onProtocolRequest(line);
+                } else if (line.startsWith("/reconnect ")) {
+                    handler.onReconnect(line);
+                } else {
+                    handler.onLogin(line);
+                }
+            }
+            case FILE_NAME -> {
+                fileName = line;
+                state = State.FILE_SIZE;
+            }
+            case FILE_SIZE -> {
+                long fileSize;
+                try {
+                    fileSize = Long.parseLong(line.trim());
+                } catch (NumberFormatException e) {
+                    Log.warn("file.rejected", "name", fileName, "size", line);
+                    state = State.LINES;
+                    return;
+                }
+                fileRemaining = fileSize;
+                state = fileSize > 0 ? State.FILE_DATA : State.LINES;
+                handler.onFileStart(fileName, fileSize);
+            }
+            default -> {
+                if (line.equals("/file")) {
+                    state = State.FILE_NAME;
+                } else if (line.startsWith("/chunk ")) {
+                    startChunk(line);
+                } else {
+                    handler.onLine(line);
+                }
+            }
+        }
+    }
+}
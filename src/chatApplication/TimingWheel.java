@@ -0,0 +1,110 @@
+package chatApplication;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Timeouts for every connection on one thread: a hashed timing wheel. Time is cut into ticks and a
+// timeout goes into the slot of the tick it is due in, modulo the number of slots, together with the
+// number of whole turns it still has to wait. Every tick the thread looks at one slot only, so a timeout
+// costs the same however many there are, and a hundred thousand idle connections cost one wakeup per
+// tick rather than a timer each. Timeouts run up to one tick late.
+//
+// schedule may be called from any thread, new timeouts reach their slot through a queue. Tasks run on
+// the wheel's thread and must be short; they may schedule again. There is no cancelling: a task that is
+// no longer needed checks that for itself and returns.
+class TimingWheel {
+    private static final class Timeout {
+        private final Runnable task;
+        private final long deadline; // System.nanoTime()
+        private long rounds; // wheel thread only
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+    }
+
+    private final long tickNanos;
+    private final Timeout[] slots; // singly linked lists, wheel thread only
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private final long start = System.nanoTime();
+    private long tick; // the next tick to run
+    private volatile boolean running = true;
+
+    // slotCount is rounded up to a power of two
+    TimingWheel(String name, long tickMillis, int slotCount) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        this.slots = new Timeout[Integer.highestOneBit(Math.max(2, slotCount) - 1) << 1];
+        this.mask = slots.length - 1;
+        this.thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void schedule(Runnable task, long delayNanos) {
+        pending.add(new Timeout(task, System.nanoTime() + Math.max(0, delayNanos)));
+    }
+
+    void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    private void run() {
+        while (running) {
+            long sleep = start + (tick + 1) * tickNanos - System.nanoTime();
+            if (sleep > 0) {
+                LockSupport.parkNanos(this, sleep);
+                continue; // woken early or spuriously, look again
+            }
+            addPending();
+            expire((int) (tick & mask));
+            tick++;
+        }
+    }
+
+    private void addPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            // The tick whose end is at or after the deadline, this one if it is overdue
+            long due = Math.max(tick, Math.floorDiv(timeout.deadline - start + tickNanos - 1, tickNanos) - 1);
+            timeout.rounds = (due - tick) / slots.length;
+            int slot = (int) (due & mask);
+            timeout.next = slots[slot];
+            slots[slot] = timeout;
+        }
+    }
+
+    private void expire(int slot) {
+        Timeout previous = null;
+        Timeout timeout = slots[slot];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.rounds == 0) {
+                if (previous == null) {
+                    slots[slot] = next;
+                } else {
+                    previous.next = next;
+                }
+                timeout.next = null;
+                run(timeout);
+            } else {
+                timeout.rounds--;
+                previous = timeout;
+            }
+            timeout = next;
+        }
+    }
+
+    private static void run(Timeout timeout) {
+        try {
+            timeout.task.run();
+        } catch (RuntimeException e) {
+            Log.error("timer.failed", e); // one bad task must not stop the others
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package chatApplication;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+// TLS for one connection, an SSLEngine between a channel and the plaintext. Works the same with the
+// NIO loops' non-blocking channels and the virtual threads' blocking ones: read turns whatever arrived
+// into plaintext for a consumer, write encrypts plaintext and sends what the socket takes. Handshake
+// messages are produced and sent from inside read whenever the engine asks for them.
+//
+// The ciphertext buffers come from BufferPool.SHARED and only while they hold something, so an idle
+// TLS connection holds no buffer, just like a plain one. Both sides cache sessions in their SSLContext
+// (TLS 1.3 with tickets), so a client that reconnects resumes its session instead of paying for a full
+// handshake; that is what keeps a reconnect storm cheap.
+//
+// One thread may read while another writes, everything that produces ciphertext holds writeLock.
+class TlsSession {
+    private static final int BUFFER_SIZE = 64 * 1024; // the pool's largest class, a few records at a time
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SSLEngine engine;
+    private final int packetSize;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final long started = System.nanoTime();
+    private ByteBuffer netIn; // reader only, ciphertext not yet unwrapped, ready to be filled
+    private ByteBuffer netOut; // under writeLock, ciphertext not yet sent, ready to be written
+    private volatile boolean established; // the first handshake finished
+    private volatile boolean closed;
+
+    TlsSession(SSLEngine engine) throws SSLException {
+        this.engine = engine;
+        this.packetSize = engine.getSession().getPacketBufferSize();
+        engine.beginHandshake();
+    }
+
+    // The key and certificate from a PKCS12 (or JKS) key store, e.g. one made with
+    //   keytool -genkeypair -alias chat -keyalg EC -storetype PKCS12 -keystore chat-server.p12 -ext san=dns:localhost
+    static SSLContext serverContext(Path keyStore, char[] password, int sessionCacheSize, int sessionTimeoutSeconds)
+            throws IOException {
+        try (InputStream in = Files.newInputStream(keyStore)) {
+            KeyStore keys = KeyStore.getInstance(KeyStore.getDefaultType());
+            keys.load(in, password);
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keys, password);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagers.getKeyManagers(), null, null);
+            context.getServerSessionContext().setSessionCacheSize(sessionCacheSize);
+            context.getServerSessionContext().setSessionTimeout(sessionTimeoutSeconds);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot use key store " + keyStore, e);
+        }
+    }
+
+    static SSLEngine serverEngine(SSLContext context, String[] protocols) {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setEnabledProtocols(protocols);
+        return engine;
+    }
+
+    // The plaintext buffer handed to read must have room for this much, one whole record
+    static int applicationBufferSize(SSLContext context) {
+        return context.createSSLEngine().getSession().getApplicationBufferSize();
+    }
+
+    boolean isEstablished() {
+        return established;
+    }
+
+    // Reads from the channel once and gives the plaintext of every complete record to the consumer, in
+    // app (cleared first, flipped for the consumer, called as often as app fills up). Returns the bytes
+    // read from the channel, -1 once the peer has closed.
+    int read(ByteChannel channel, ByteBuffer app, Consumer<ByteBuffer> consumer) throws IOException {
+        boolean open = false;
+        try {
+            if (!progressHandshake(channel)) {
+                return -1;
+            }
+            if (netIn == null) {
+                netIn = BufferPool.SHARED.acquire(Math.max(BUFFER_SIZE, packetSize));
+            }
+            int n = channel.read(netIn);
+            netIn.flip();
+            app.clear();
+            open = unwrapAll(channel, app, consumer) && n >= 0;
+            return open ? n : -1;
+        } finally {
+            // Only the reader gives netIn back, the consumer may have closed the session meanwhile
+            if (netIn != null && open && !closed) {
+                netIn.compact();
+            }
+            if (netIn != null && (!open || closed || netIn.position() == 0)) {
+                BufferPool.SHARED.release(netIn); // nothing left of a partial record, or no more reading
+                netIn = null;
+            }
+        }
+    }
+
+    // Blocking channels: reads until the first handshake is done. Plaintext the peer sent right after
+    // its last handshake message goes to the consumer.
+    void handshake(ByteChannel channel, ByteBuffer app, Consumer<ByteBuffer> consumer) throws IOException {
+        while (!established) {
+            if (read(channel, app, consumer) < 0) {
+                throw new EOFException("Connection closed during the TLS handshake");
+            }
+        }
+    }
+
+    // Encrypts as much of the plaintext as fits in one buffer and sends what the channel takes. Returns
+    // the plaintext consumed: it counts as written even if part of its ciphertext is still waiting here,
+    // the next write or flush sends that first.
+    long write(WritableByteChannel channel, ByteBuffer[] sources, int offset, int length) throws IOException {
+        writeLock.lock();
+        try {
+            if (!established || !flushLocked(channel)) {
+                return 0;
+            }
+            netOut = BufferPool.SHARED.acquire(BUFFER_SIZE);
+            long consumed = 0;
+            // Leaves room for one more packet, for a handshake message the reader may have to add
+            while (netOut.remaining() >= 2 * packetSize) {
+                SSLEngineResult result = engine.wrap(sources, offset, length, netOut);
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new SSLException("TLS session closed");
+                }
+                consumed += result.bytesConsumed();
+                if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runTasks();
+                } else if (result.bytesConsumed() == 0
+                        && result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    break; // everything is wrapped
+                }
+            }
+            netOut.flip();
+            flushLocked(channel);
+            return consumed;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Sends a file region through the session, for which transferTo is no use. Returns false if the
+    // socket is full before all of it went out; call again with the same region once it is writable.
+    boolean transfer(WritableByteChannel channel, Frame region) throws IOException {
+        ByteBuffer[] chunk = {BufferPool.SHARED.acquire(16 * 1024)}; // the most a record holds
+        writeLock.lock(); // so the reader can't wrap a handshake message between the flush and the write
+        try {
+            while (region.length() > 0) {
+                if (!flushLocked(channel)) {
+                    return false;
+                }
+                // Nothing is waiting, so the whole chunk is wrapped and no file data is lost
+                chunk[0].clear();
+                region.read(chunk[0]);
+                chunk[0].flip();
+                write(channel, chunk, 0, 1);
+            }
+            return true;
+        } finally {
+            writeLock.unlock();
+            BufferPool.SHARED.release(chunk[0]);
+        }
+    }
+
+    // Sends the ciphertext still waiting; true once there is none
+    boolean flush(WritableByteChannel channel) throws IOException {
+        writeLock.lock();
+        try {
+            return flushLocked(channel);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Only meaningful to the thread that writes
+    boolean hasPendingOutput() {
+        return netOut != null;
+    }
+
+    // Ends the session, the caller closes the channel. With notifyPeer the peer is sent close_notify,
+    // as far as the socket takes it; don't ask for that on a blocking channel that may be full. The
+    // ciphertext still waiting is dropped.
+    void close(WritableByteChannel channel, boolean notifyPeer) {
+        closed = true;
+        engine.closeOutbound();
+        if (!writeLock.tryLock()) {
+            return; // a writer is stuck on a full socket, its buffer is left to the GC
+        }
+        try {
+            if (notifyPeer && netOut == null) {
+                netOut = BufferPool.SHARED.acquire(BUFFER_SIZE);
+                engine.wrap(EMPTY, netOut);
+                netOut.flip();
+                flushLocked(channel);
+            }
+        } catch (IOException ignored) {
+            // the peer is gone already
+        } finally {
+            if (netOut != null) {
+                BufferPool.SHARED.release(netOut);
+                netOut = null;
+            }
+            writeLock.unlock();
+        }
+    }
+
+    private boolean unwrapAll(ByteChannel channel, ByteBuffer app, Consumer<ByteBuffer> consumer) throws IOException {
+        while (true) {
+            if (!progressHandshake(channel)) {
+                deliver(app, consumer);
+                return false;
+            }
+            if (!netIn.hasRemaining()) {
+                deliver(app, consumer);
+                return true;
+            }
+            SSLEngineResult result = engine.unwrap(netIn, app);
+            if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+                handshakeFinished();
+            }
+            switch (result.getStatus()) {
+                case BUFFER_UNDERFLOW -> { // the rest of the record is still on its way
+                    deliver(app, consumer);
+                    return true;
+                }
+                case BUFFER_OVERFLOW -> {
+                    if (app.position() == 0) {
+                        throw new SSLException("Read buffer is smaller than a TLS record");
+                    }
+                    deliver(app, consumer);
+                }
+                case CLOSED -> {
+                    deliver(app, consumer);
+                    return false;
+                }
+                case OK -> {
+                }
+            }
+        }
+    }
+
+    private static void deliver(ByteBuffer app, Consumer<ByteBuffer> consumer) {
+        app.flip();
+        if (app.hasRemaining()) {
+            consumer.accept(app);
+        }
+        app.clear();
+    }
+
+    // Does what the handshake needs before more can be read: delegated tasks and outgoing messages.
+    // Returns false if the engine is closed.
+    private boolean progressHandshake(WritableByteChannel channel) throws IOException {
+        while (true) {
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK -> runTasks();
+                case NEED_WRAP -> {
+                    if (!wrapHandshake(channel)) {
+                        return false;
+                    }
+                }
+                default -> {
+                    return !engine.isInboundDone();
+                }
+            }
+        }
+    }
+
+    private boolean wrapHandshake(WritableByteChannel channel) throws IOException {
+        writeLock.lock();
+        try {
+            if (engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                return true; // the writer did it
+            }
+            if (netOut != null) {
+                netOut.compact(); // appended to what is still waiting, write left room for it
+            } else {
+                netOut = BufferPool.SHARED.acquire(BUFFER_SIZE);
+            }
+            SSLEngineResult result;
+            try {
+                result = engine.wrap(EMPTY, netOut);
+            } finally {
+                netOut.flip();
+            }
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                throw new SSLException("No room for a TLS handshake message");
+            }
+            if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+                handshakeFinished();
+            }
+            flushLocked(channel);
+            return result.getStatus() != SSLEngineResult.Status.CLOSED;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Key exchange and certificate work, run right here: a few hundred microseconds per full handshake,
+    // much less for a resumed one
+    private void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private void handshakeFinished() {
+        if (!established) {
+            established = true;
+            Metrics.SERVER.tlsHandshakes.record(System.nanoTime() - started);
+        }
+    }
+
+    private boolean flushLocked(WritableByteChannel channel) throws IOException {
+        if (netOut == null) {
+            return true;
+        }
+        while (netOut.hasRemaining()) {
+            int written = channel.write(netOut);
+            if (written <= 0) {
+                return false; // non-blocking and the socket buffer is full
+            }
+            Metrics.SERVER.bytesOut.add(written);
+        }
+        BufferPool.SHARED.release(netOut);
+        netOut = null;
+        return true;
+    }
+}
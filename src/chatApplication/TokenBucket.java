@@ -0,0 +1,47 @@
+package chatApplication;
+
+// A rate limit: tokens flow in at a fixed rate up to a burst, each message (or byte) takes some. Taking
+// more than there are is allowed and leaves the bucket in debt; the caller gets back how long it takes to
+// pay that off and stops reading from the client for that long. Nothing the client sent is dropped, it
+// waits in the socket buffers and TCP slows the client down.
+//
+// Not thread-safe: a connection's buckets are only used by the thread reading that connection, the accept
+// bucket only by the accept thread.
+class TokenBucket {
+    // perSecond 0 or less means no limit
+    record Limit(double perSecond, long burst) {
+        TokenBucket bucket() {
+            return new TokenBucket(perSecond, burst);
+        }
+    }
+
+    private double tokensPerNano;
+    private double burst;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    TokenBucket(double perSecond, long burst) {
+        this.tokensPerNano = perSecond / 1e9;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+    }
+
+    // A reloaded config's limit. The bucket keeps what it has, up to the new burst.
+    void change(Limit limit) {
+        tokensPerNano = limit.perSecond / 1e9;
+        burst = Math.max(1, limit.burst);
+        tokens = Math.min(tokens, burst);
+    }
+
+    // Returns 0, or the nanoseconds until the bucket is out of debt again
+    long take(long count) {
+        if (tokensPerNano <= 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+        tokens -= count;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / tokensPerNano);
+    }
+}
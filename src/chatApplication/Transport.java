@@ -0,0 +1,34 @@
+package chatApplication;
+
+import java.net.SocketAddress;
+
+// The byte pipe a ConnectionHandler talks through. Each ConnectionEngine provides its own implementation.
+interface Transport {
+
+    // Queues the frame for sending. The transport takes its own reference, the caller keeps (and
+    // eventually releases) the one it already holds, so one frame can be written to many transports.
+    void write(Frame frame);
+
+    // Stops reading from the connection for the given time, counted from now; only called from the
+    // listener's own callbacks. Nothing is dropped: what the peer sends meanwhile waits in the socket
+    // buffers, and once they are full TCP makes the peer wait too.
+    void suspendReads(long nanos);
+
+    // Closes the connection once everything written so far has been sent.
+    void close();
+
+    // Closes the connection right away, dropping what is still queued. Any thread; the listener's
+    // onClose follows on the connection's own thread.
+    void abort();
+
+    // False as soon as close() has been called
+    boolean isOpen();
+
+    SocketAddress remoteAddress();
+
+    // Messages waiting to be sent, for the metrics
+    int queuedMessages();
+
+    // How long the socket has taken none of what is waiting to be sent, 0 if nothing is held up. Any thread.
+    long writeBlockedNanos();
+}
@@ -0,0 +1,278 @@
+package chatApplication;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+// Blocking engine: one virtual thread per connection. Keeps the simple read loop of the original server,
+// but a parked virtual thread only costs a few hundred bytes of stack instead of a platform thread.
+class VirtualThreadConnectionEngine implements ConnectionEngine {
+    private final ServerConfig config;
+    private ServerSocketChannel serverChannel;
+    private ExecutorService executor;
+    private SSLContext tls; // null without TLS
+    private int readBufferSize;
+    private Thread acceptThread;
+    private volatile boolean running;
+
+    VirtualThreadConnectionEngine(ServerConfig config) {
+        this.config = config;
+    }
+
+    @Override
+    public void bind() throws IOException {
+        serverChannel = config.openListener();
+    }
+
+    @Override
+    public void start(Function<Transport, Listener> listenerFactory) throws IOException {
+        tls = config.createTlsContext();
+        // With TLS the read buffer receives the plaintext, and must hold a whole record
+        readBufferSize = tls == null ? config.readBufferSize
+                : Math.max(config.readBufferSize, TlsSession.applicationBufferSize(tls));
+        if (serverChannel == null) {
+            bind();
+        }
+        executor = Executors.newVirtualThreadPerTaskExecutor();
+        running = true;
+
+        TokenBucket admission = config.acceptLimit.bucket(); // accept thread only
+        acceptThread = Thread.ofPlatform().name("chat-accept").start(() -> {
+            while (running) {
+                try {
+                    SocketChannel channel = serverChannel.accept();
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    TlsSession session = tls == null ? null : new TlsSession(TlsSession.serverEngine(tls, config.tlsProtocols));
+                    BlockingTransport transport = new BlockingTransport(channel, config.newOutboundQueue(), session);
+                    executor.execute(() -> transport.serve(listenerFactory.apply(transport)));
+                    long wait = admission.take(1);
+                    if (wait > 0) {
+                        // Over the admission rate: the next ones wait in the listen backlog meanwhile
+                        Metrics.SERVER.acceptsThrottled.increment();
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                } catch (IOException e) {
+                    if (running) {
+                        Log.error("engine.accept.failed", e);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+    }
+
+    @Override
+    public void stopAccepting() {
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            Log.error("engine.stop.failed", e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        stopAccepting();
+        executor.shutdownNow();
+    }
+
+    private class BlockingTransport implements Transport {
+        private final SocketChannel channel;
+        private final SocketAddress remoteAddress;
+        private final OutboundQueue pendingWrites;
+        private final TlsSession tls; // null for plaintext
+        // Set while a writer task is draining the queue, so at most one runs per connection
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private volatile long writingSince; // when the writer's current socket write started, 0 between writes
+        private volatile boolean closeRequested;
+        private volatile boolean closed;
+        private long readsSuspendedUntil; // reader thread only
+        private volatile Thread reader;
+
+        BlockingTransport(SocketChannel channel, OutboundQueue pendingWrites, TlsSession tls) throws IOException {
+            this.channel = channel;
+            this.remoteAddress = channel.getRemoteAddress();
+            this.pendingWrites = pendingWrites;
+            this.tls = tls;
+        }
+
+        void serve(Listener listener) {
+            ByteBuffer buffer = ByteBuffer.allocate(readBufferSize);
+            Consumer<ByteBuffer> onRead = listener::onRead;
+            reader = Thread.currentThread();
+            try {
+                listener.onOpen();
+                if (tls != null) {
+                    tls.handshake(channel, buffer, onRead); // so nothing is written before it is done
+                }
+                while (!closed && read(buffer, onRead) >= 0) {
+                    long suspended = readsSuspendedUntil - System.nanoTime();
+                    if (suspended > 0) {
+                        // What the client sends meanwhile waits in the socket. Closing wakes us up early, a
+                        // spurious wakeup reads once more and is suspended again by the limit still in debt.
+                        LockSupport.parkNanos(this, suspended);
+                    } else {
+                        // Virtual threads aren't preempted: give the writers this read just woke up a turn
+                        // before reading more, otherwise a busy sender can fill its recipients' queues
+                        Thread.yield();
+                    }
+                }
+            } catch (IOException ignored) {
+                // peer reset, we closed the socket or the engine is stopping, handled below
+            } finally {
+                closeNow();
+                listener.onClose();
+            }
+        }
+
+        // Called from onRead, so on the reader thread
+        @Override
+        public void suspendReads(long nanos) {
+            readsSuspendedUntil = Math.max(readsSuspendedUntil, System.nanoTime() + nanos);
+        }
+
+        private int read(ByteBuffer buffer, Consumer<ByteBuffer> onRead) throws IOException {
+            if (tls != null) {
+                return tls.read(channel, buffer, onRead);
+            }
+            int n = channel.read(buffer.clear());
+            buffer.flip();
+            if (buffer.hasRemaining()) {
+                onRead.accept(buffer);
+            }
+            return n;
+        }
+
+        @Override
+        public void write(Frame frame) {
+            if (closed || closeRequested) {
+                return;
+            }
+            if (!pendingWrites.offer(frame)) {
+                closeRequested = true; // stop accepting writes, the queue is discarded anyway
+                Log.warn("connection.slow", "remote", remoteAddress, "reason", "outbound queue full");
+                closeNow();
+                return;
+            }
+            startWriter();
+        }
+
+        // The sender only enqueues, the blocking socket write happens on a virtual thread of its own
+        private void startWriter() {
+            if (draining.compareAndSet(false, true)) {
+                executor.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            ByteBuffer[] batch = new ByteBuffer[config.writeBatchSize];
+            Frame[] batchFrames = new Frame[batch.length];
+            int count = 0;
+            try {
+                while (true) {
+                    count = pendingWrites.drainTo(batch, batchFrames, 0);
+                    if (count == 0) {
+                        if (closeRequested) {
+                            if (tls != null) {
+                                tls.close(channel, true); // everything went out, so the socket has room
+                            }
+                            closeNow();
+                            return;
+                        }
+                        draining.set(false);
+                        // A sender or close() may have come in after drainTo came back empty
+                        if ((pendingWrites.isEmpty() && !closeRequested) || !draining.compareAndSet(false, true)) {
+                            return;
+                        }
+                        continue;
+                    }
+                    count = pendingWrites.splitAtFileRegion(batch, batchFrames, count);
+                    if (batchFrames[0].isFileRegion()) {
+                        Frame region = batchFrames[0];
+                        writingSince = System.nanoTime();
+                        while (!(tls == null ? region.transferTo(channel) : tls.transfer(channel, region))) {
+                            Thread.yield(); // only happens if the socket momentarily accepted nothing
+                        }
+                        writingSince = 0;
+                        OutboundQueue.releaseBatch(batch, batchFrames, 0, 1);
+                        continue;
+                    }
+                    // One gathering write for the whole batch
+                    writingSince = System.nanoTime();
+                    while (batch[count - 1].hasRemaining()) {
+                        if (tls == null) {
+                            Metrics.SERVER.bytesOut.add(channel.write(batch, 0, count));
+                        } else {
+                            tls.write(channel, batch, 0, count);
+                        }
+                    }
+                    writingSince = 0;
+                    OutboundQueue.releaseBatch(batch, batchFrames, 0, count);
+                }
+            } catch (IOException e) {
+                OutboundQueue.releaseBatch(batch, batchFrames, 0, count);
+                closeNow();
+            }
+        }
+
+        @Override
+        public void close() {
+            closeRequested = true;
+            startWriter(); // the writer closes the socket once the queue is empty
+        }
+
+        @Override
+        public void abort() {
+            closeRequested = true;
+            closeNow(); // a reader or writer blocked on the socket fails and finishes up
+        }
+
+        private void closeNow() {
+            closed = true;
+            pendingWrites.clear();
+            if (tls != null) {
+                tls.close(channel, false); // may be full, a blocking write could hang here
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.error("connection.close.failed", e, "remote", remoteAddress);
+            }
+            LockSupport.unpark(reader); // if it is waiting out a suspension
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed && !closeRequested;
+        }
+
+        @Override
+        public SocketAddress remoteAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        public int queuedMessages() {
+            return pendingWrites.size();
+        }
+
+        @Override
+        public long writeBlockedNanos() {
+            long since = writingSince;
+            return since == 0 || closed ? 0 : System.nanoTime() - since;
+        }
+    }
+}
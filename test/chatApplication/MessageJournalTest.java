@@ -0,0 +1,79 @@
+package chatApplication;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MessageJournalTest {
+    private static final int SEGMENT_SIZE = 4096;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void recoveryStopsAtTornTail() throws IOException {
+        MessageJournal journal = open();
+        journal.append(MessageJournal.MESSAGE, "alice: one");
+        journal.append(MessageJournal.NOTICE, "bob connected");
+        journal.append(MessageJournal.MESSAGE, "bob: two");
+        journal.sync();
+
+        // The machine went down while the next record was being written: its header made it, its end didn't
+        int end = recordLength("alice: one") + recordLength("bob connected") + recordLength("bob: two");
+        tear(end, recordLength("bob: three"), 3);
+
+        MessageJournal recovered = open();
+        assertEquals(3, recovered.nextSequence());
+        assertEquals(List.of("alice: one", "bob connected", "bob: two"), lines(recovered, 0));
+    }
+
+    @Test
+    void appendsContinueOverTornTail() throws IOException {
+        MessageJournal journal = open();
+        journal.append(MessageJournal.MESSAGE, "alice: one");
+        journal.sync();
+        tear(recordLength("alice: one"), SEGMENT_SIZE * 2, 1); // a length no segment can hold
+
+        MessageJournal recovered = open();
+        assertEquals(1, recovered.append(MessageJournal.MESSAGE, "alice: two"));
+        recovered.sync();
+
+        MessageJournal reopened = open();
+        assertEquals(2, reopened.nextSequence());
+        assertEquals(List.of("alice: one", "alice: two"), lines(reopened, 0));
+        assertEquals(List.of("alice: two"), lines(reopened, 1));
+    }
+
+    private MessageJournal open() throws IOException {
+        return new MessageJournal(directory, SEGMENT_SIZE, 20, 0, 0, 0);
+    }
+
+    // [length: 4][sequence: 8][time: 8][kind: 1][binary frame header: 6][UTF-8 text][\n]
+    private static int recordLength(String line) {
+        return 27 + BinaryProtocol.utf8(line).length + 1;
+    }
+
+    // Writes the start of a record at position in the first segment, without the rest of it
+    private void tear(int position, int length, long sequence) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory.resolve(String.format("%020d.seg", 0)),
+                StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(12).putInt(length).putLong(sequence).flip();
+            channel.write(header, position);
+        }
+    }
+
+    private static List<String> lines(MessageJournal journal, long from) {
+        List<String> lines = new ArrayList<>();
+        journal.replayText(from, Long.MAX_VALUE, 100, (time, line) -> lines.add(line));
+        return lines;
+    }
+}
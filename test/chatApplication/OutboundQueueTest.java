@@ -0,0 +1,103 @@
+package chatApplication;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutboundQueueTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void disconnectRefusesWhenFull() {
+        OutboundQueue queue = new OutboundQueue(2, OutboundQueue.OverflowPolicy.DISCONNECT);
+        assertTrue(queue.offer(chat("a")));
+        assertTrue(queue.offer(chat("b")));
+        assertFalse(queue.offer(chat("c")));
+        assertEquals(List.of("a", "b"), drain(queue));
+    }
+
+    @Test
+    void dropNewestDiscardsChatButNotProtocolFrames() {
+        OutboundQueue queue = new OutboundQueue(1, OutboundQueue.OverflowPolicy.DROP_NEWEST);
+        assertTrue(queue.offer(chat("a")));
+        assertTrue(queue.offer(chat("b")));
+        assertEquals(1, queue.droppedMessages());
+        assertFalse(queue.offer(control("/ping")));
+        assertEquals(List.of("a"), drain(queue));
+    }
+
+    @Test
+    void dropOldestSkipsProtocolFrames() {
+        OutboundQueue queue = new OutboundQueue(3, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        queue.offer(control("/users 1 a,"));
+        queue.offer(chat("a"));
+        queue.offer(chat("b"));
+        assertTrue(queue.offer(chat("c")));
+        assertEquals(1, queue.droppedMessages());
+        assertEquals(List.of("/users 1 a,", "b", "c"), drain(queue));
+    }
+
+    @Test
+    void dropOldestKeepsPartlyWrittenHead() {
+        OutboundQueue queue = new OutboundQueue(2, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        queue.offer(chat("hello"));
+        queue.offer(chat("b"));
+        // A short write sent two bytes of the head and put the rest back
+        ByteBuffer[] batch = new ByteBuffer[2];
+        Frame[] frames = new Frame[2];
+        assertEquals(2, queue.drainTo(batch, frames, 0));
+        batch[0].position(batch[0].position() + 2);
+        queue.requeueFront(batch, frames, 0, 2);
+
+        assertTrue(queue.offer(chat("c")));
+        assertEquals(List.of("llo", "c"), drain(queue));
+    }
+
+    @Test
+    void dropOldestDisconnectsWhenNothingCanGo() throws IOException {
+        Path file = Files.write(directory.resolve("file"), new byte[100]);
+        try (FileChannel channel = FileChannel.open(file)) {
+            OutboundQueue queue = new OutboundQueue(2, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+            queue.offer(Frame.fileRegion(channel, 0, 100, null));
+            queue.offer(control("/ping"));
+            assertFalse(queue.offer(chat("a")));
+            assertEquals(0, queue.droppedMessages());
+            assertEquals(2, queue.size());
+            queue.clear();
+        }
+    }
+
+    private static Frame chat(String text) {
+        return control(text).droppable();
+    }
+
+    private static Frame control(String text) {
+        return Frame.wrap(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // What is queued, as text, in order
+    private static List<String> drain(OutboundQueue queue) {
+        ByteBuffer[] batch = new ByteBuffer[16];
+        Frame[] frames = new Frame[16];
+        int count = queue.drainTo(batch, frames, 0);
+        List<String> texts = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            texts.add(StandardCharsets.UTF_8.decode(batch[i]).toString());
+        }
+        OutboundQueue.releaseBatch(batch, frames, 0, count);
+        return texts;
+    }
+}
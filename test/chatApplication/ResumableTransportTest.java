@@ -0,0 +1,116 @@
+package chatApplication;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ResumableTransportTest {
+    @Test
+    void resumeInsideWindowSendsTheRest() {
+        Connection first = new Connection();
+        ResumableTransport session = new ResumableTransport(first, 16, 1024);
+        write(session, "welcome"); // before login, never kept
+        session.keepForResume();
+        write(session, "one", "two", "three");
+        session.received(42);
+        assertTrue(session.disconnected(first));
+
+        // The client got "welcome\n", "one\n" and "t" before the connection dropped
+        Connection second = new Connection();
+        assertTrue(session.resume(second, 13));
+        assertEquals("/reconnected 42\nwo\nthree\n", second.text());
+        write(session, "four");
+        assertEquals("/reconnected 42\nwo\nthree\nfour\n", second.text());
+        assertEquals("welcome\none\ntwo\nthree\n", first.text());
+    }
+
+    @Test
+    void resumeOutsideWindowIsRefused() {
+        Connection first = new Connection();
+        ResumableTransport session = new ResumableTransport(first, 2, 1024);
+        session.keepForResume();
+        write(session, "one", "two", "three"); // 14 bytes, "one\n" no longer kept
+        session.disconnected(first);
+
+        Connection second = new Connection();
+        assertFalse(session.resume(second, 2)); // before the window
+        assertFalse(session.resume(second, 15)); // more than was ever sent
+        assertEquals("", second.text());
+        assertTrue(session.resume(second, 4)); // the window's start
+        assertEquals("/reconnected 0\ntwo\nthree\n", second.text());
+    }
+
+    @Test
+    void resumeByteLimitMovesWindow() {
+        Connection first = new Connection();
+        ResumableTransport session = new ResumableTransport(first, 16, 10);
+        session.keepForResume();
+        write(session, "one", "two", "three"); // 14 bytes, only the last 10 fit
+        session.disconnected(first);
+
+        assertFalse(session.resume(new Connection(), 3));
+        Connection second = new Connection();
+        assertTrue(session.resume(second, 14)); // got everything, nothing to send again
+        assertEquals("/reconnected 0\n", second.text());
+    }
+
+    private static void write(ResumableTransport session, String... lines) {
+        for (String line : lines) {
+            Frame frame = Frame.text(line);
+            session.write(frame);
+            frame.release();
+        }
+    }
+
+    // Keeps what is written to it as text
+    private static final class Connection implements Transport {
+        private final StringBuilder written = new StringBuilder();
+
+        @Override
+        public void write(Frame frame) {
+            written.append(StandardCharsets.UTF_8.decode(frame.view()));
+        }
+
+        String text() {
+            return written.toString();
+        }
+
+        @Override
+        public void suspendReads(long nanos) {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void abort() {
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public SocketAddress remoteAddress() {
+            return new InetSocketAddress(0);
+        }
+
+        @Override
+        public int queuedMessages() {
+            return 0;
+        }
+
+        @Override
+        public long writeBlockedNanos() {
+            return 0;
+        }
+    }
+}
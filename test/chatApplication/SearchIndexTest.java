@@ -0,0 +1,74 @@
+package chatApplication;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SearchIndexTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void resultsSurviveMerge() throws Exception {
+        // Two documents to a segment and two segments to a merge: four documents end up in one merged segment
+        SearchIndex index = new SearchIndex(directory, 2, 2, 64, 1);
+        index.start();
+        index.add(null, null, "alice: deploy the release");
+        index.add(null, null, "bob: lunch anyone");
+        index.add("carol", "dave", "the release notes are ready");
+        index.add(null, null, "bob: release went fine");
+        Path merged = directory.resolve("0000000000-0000000004.idx"); // documents [0, 4)
+        waitFor(() -> Files.exists(merged) && index.segmentCount() == 1);
+
+        assertEquals(Set.of("alice: deploy the release", "bob: release went fine"), texts(index, "eve", "release"));
+        assertEquals(Set.of("alice: deploy the release", "bob: release went fine", "the release notes are ready"),
+                texts(index, "dave", "release"));
+        assertEquals(Set.of("the release notes are ready"), texts(index, "carol", "carol notes"));
+
+        // And the merged segment is what a restart maps again
+        SearchIndex reopened = new SearchIndex(directory, 2, 2, 64, 1);
+        assertEquals(1, reopened.segmentCount());
+        assertEquals(Set.of("bob: lunch anyone"), texts(reopened, "eve", "lunch"));
+    }
+
+    @Test
+    void pagePastResultsIsEmpty() throws Exception {
+        SearchIndex index = new SearchIndex(directory, 64, 2, 64, 1);
+        index.start();
+        index.add(null, null, "alice: hello");
+        waitFor(() -> index.documents() == 1);
+
+        CompletableFuture<SearchIndex.Results> answer = new CompletableFuture<>();
+        assertTrue(index.search("bob", "hello", Integer.MAX_VALUE, 10, answer::complete));
+        SearchIndex.Results results = answer.get(10, TimeUnit.SECONDS);
+        assertEquals(1, results.total());
+        assertEquals(List.of(), results.hits());
+    }
+
+    private static Set<String> texts(SearchIndex index, String username, String query) throws Exception {
+        CompletableFuture<SearchIndex.Results> answer = new CompletableFuture<>();
+        assertTrue(index.search(username, query, 0, 10, answer::complete));
+        SearchIndex.Results results = answer.get(10, TimeUnit.SECONDS);
+        assertEquals(results.total(), results.hits().size());
+        return results.hits().stream().map(SearchIndex.Message::text).collect(Collectors.toSet());
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "timed out");
+            Thread.sleep(10);
+        }
+    }
+}